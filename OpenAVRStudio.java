@@ -5,10 +5,35 @@ import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.table.*;
 import javax.swing.text.*;
 import javax.swing.undo.UndoManager;
+import javax.swing.undo.UndoableEdit;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntSupplier;
+import java.util.function.LongConsumer;
+import java.util.function.ToLongFunction;
 import java.util.regex.*;
 
 public class OpenAVRStudio extends JFrame {
@@ -19,21 +44,32 @@ public class OpenAVRStudio extends JFrame {
 
     // --- CONFIG & STATE ---
     private File currentFile = null;
-    private boolean isRunning = false;
+    private volatile boolean isRunning = false;
+    private volatile boolean isBuilding = false;
+    private int runRequest = 0;   // EDT only; bumped on every run/stop so stale builds are ignored
     private Thread simThread;
 
+    // Execution modes (index into modeCombo)
+    private static final int MODE_SLOW_STEP = 0, MODE_REAL_TIME = 1, MODE_MAX_SPEED = 2;
+    private volatile int execMode = MODE_SLOW_STEP;
+    private volatile long clockHz = 16_000_000L;
+
     // --- GUI COMPONENTS ---
     private JTextPane codeEditor; 
+    private LineGutter gutter;
     private DefaultStyledDocument doc;
     private JTextArea consoleOutput;
+    private ConsoleSink console;
     
     // Debugger Views
     private JTable registerTable;
     private DefaultTableModel registerModel;
     private JTable memoryTable;
-    private DefaultTableModel memoryModel;
+    private AbstractTableModel memoryModel;
     private JLabel pcLabel, cycleLabel;
     private JLabel statusLabel;
+    private javax.swing.Timer refreshTimer;
+    private int guiFps = Integer.getInteger("openavr.fps", 30);
     
     // I/O Bit Visualizer
     private JPanel ioPanel;
@@ -42,8 +78,26 @@ public class OpenAVRStudio extends JFrame {
     // Toolbar
     private JComboBox<String> deviceCombo;
     private JComboBox<String> freqCombo;
+    private JComboBox<String> modeCombo;
+    private JComboBox<String> asmCombo;
     private JButton btnRun; 
 
+    // Assembler choice (index into asmCombo)
+    private static final int ASM_BUILTIN = 0, ASM_GCC = 1, ASM_CROSS_CHECK = 2;
+    private int[] listing;   // EDT only; source line per flash word of the running image, or null
+
+    // Debugger: the EDT posts commands, the sim thread applies them to its core between batches
+    private final LinkedBlockingQueue<Consumer<AvrCore>> debugCommands = new LinkedBlockingQueue<>();
+    private boolean debugPaused;   // sim thread only
+    private File traceFile;        // EDT only; where runs are traced to, or null
+    private long reverseBudget;    // EDT only; bytes of reverse-execution history per run, 0 = off
+    private boolean profiling;     // EDT only; new runs get a profiler
+    private volatile Profiler lastProfile;   // kept after the run ends for the report
+    private long heatShown;        // EDT only; when the heat gutter was last refreshed
+    private JDialog analyzer;      // EDT only; the open logic analyzer, new runs get a capture
+    private volatile WaveCapture lastWave;   // what the logic analyzer shows
+    private static final long REVERSE_INTERVAL = Long.getLong("openavr.reverse.interval", 100_000);
+
     // Undo/Redo
     private UndoManager undoManager;
 
@@ -70,42 +124,22 @@ public class OpenAVRStudio extends JFrame {
         codeEditor.setForeground(new Color(220, 220, 220));
         
         undoManager = new UndoManager();
-        doc.addUndoableEditListener(e -> undoManager.addEdit(e.getEdit()));
+        doc.addUndoableEditListener(e -> {
+            // Attribute changes from the highlighter are not user edits
+            UndoableEdit edit = e.getEdit();
+            if(edit instanceof DocumentEvent && ((DocumentEvent) edit).getType() == DocumentEvent.EventType.CHANGE) return;
+            undoManager.addEdit(edit);
+        });
         setupEditorKeyBindings();
 
         // Syntax Highlight Trigger
-        doc.addDocumentListener(new DocumentListener() {
-            public void insertUpdate(DocumentEvent e) { highlightSyntax(); }
-            public void removeUpdate(DocumentEvent e) { highlightSyntax(); }
-            public void changedUpdate(DocumentEvent e) {}
-        });
+        doc.addDocumentListener(new SyntaxHighlighter(doc));
 
         // Line Numbers
-        JTextArea lines = new JTextArea("1");
-        lines.setBackground(new Color(50, 50, 50));
-        lines.setForeground(Color.GRAY);
-        lines.setEditable(false);
-        lines.setFont(new Font("Monospaced", Font.PLAIN, 14));
-        lines.setMargin(new Insets(0, 5, 0, 5));
-        
         JScrollPane editorScroll = new JScrollPane(codeEditor);
-        editorScroll.setRowHeaderView(lines);
-        
-        // Sync Line Numbers
-        codeEditor.getDocument().addDocumentListener(new DocumentListener(){
-            public String getText(){
-                int caretPosition = codeEditor.getDocument().getLength();
-                Element root = codeEditor.getDocument().getDefaultRootElement();
-                String text = "1" + System.getProperty("line.separator");
-                for(int i = 2; i < root.getElementIndex( caretPosition ) + 2; i++){
-                    text += i + System.getProperty("line.separator");
-                }
-                return text;
-            }
-            @Override public void changedUpdate(DocumentEvent de) { lines.setText(getText()); }
-            @Override public void insertUpdate(DocumentEvent de) { lines.setText(getText()); }
-            @Override public void removeUpdate(DocumentEvent de) { lines.setText(getText()); }
-        });
+        gutter = new LineGutter(codeEditor);
+        gutter.setBreakpointListener(this::syncBreakpoints);
+        editorScroll.setRowHeaderView(gutter);
         
         editorPanel.add(editorScroll, BorderLayout.CENTER);
         
@@ -143,14 +177,18 @@ public class OpenAVRStudio extends JFrame {
         
         rightPanel.add(topSim, BorderLayout.NORTH);
         
-        // Center: Memory Map
-        String[] memCols = {"Addr", "00", "01", "02", "03", "04", "05", "06", "07"};
-        memoryModel = new DefaultTableModel(memCols, 0);
-        for(int i=0; i<32; i++) {
-            memoryModel.addRow(new Object[]{String.format("0x%04X", i*8), "00", "00", "00", "00", "00", "00", "00", "00"});
-        }
+        // Center: Memory Map (virtual, see MEMORY VIEW)
+        memoryModel = createMemoryModel();
         memoryTable = new JTable(memoryModel);
-        rightPanel.add(new JScrollPane(memoryTable), BorderLayout.CENTER);
+        memoryTable.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        memoryTable.setDefaultRenderer(Object.class, createMemoryRenderer());
+        memoryTable.getColumnModel().getColumn(0).setPreferredWidth(60);
+        memoryTable.getColumnModel().getColumn(9).setPreferredWidth(80);
+        updateMemoryRegion();
+        JPanel memPanel = new JPanel(new BorderLayout());
+        memPanel.add(createMemoryControls(), BorderLayout.NORTH);
+        memPanel.add(new JScrollPane(memoryTable), BorderLayout.CENTER);
+        rightPanel.add(memPanel, BorderLayout.CENTER);
 
         // Bottom: Console
         consoleOutput = new JTextArea();
@@ -158,7 +196,24 @@ public class OpenAVRStudio extends JFrame {
         consoleOutput.setBackground(Color.BLACK);
         consoleOutput.setForeground(Color.GREEN);
         consoleOutput.setFont(new Font("Monospaced", Font.PLAIN, 12));
-        rightPanel.add(new JScrollPane(consoleOutput), BorderLayout.SOUTH);
+        JPanel consolePanel = new JPanel(new BorderLayout());
+        consolePanel.add(new JScrollPane(consoleOutput), BorderLayout.CENTER);
+
+        // UART input: Enter sends the line (plus CR) to the simulated USART receiver
+        JTextField uartInput = new JTextField();
+        uartInput.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        uartInput.addActionListener(e -> {
+            AvrCore c = core;
+            if(c == null || c.usart == null || !isRunning) { log(">>> UART: simulator not running."); return; }
+            c.usart.feed((uartInput.getText() + "\r").getBytes(StandardCharsets.ISO_8859_1));
+            uartInput.setText("");
+        });
+        JPanel uartRow = new JPanel(new BorderLayout());
+        uartRow.add(new JLabel(" UART > "), BorderLayout.WEST);
+        uartRow.add(uartInput, BorderLayout.CENTER);
+        consolePanel.add(uartRow, BorderLayout.SOUTH);
+        rightPanel.add(consolePanel, BorderLayout.SOUTH);
+        console = new ConsoleSink(consoleOutput, Integer.getInteger("openavr.console.lines", 5000));
 
         mainSplit.setLeftComponent(editorPanel);
         mainSplit.setRightComponent(rightPanel);
@@ -178,6 +233,10 @@ public class OpenAVRStudio extends JFrame {
         bottomBar.add(counters, BorderLayout.EAST);
         add(bottomBar, BorderLayout.SOUTH);
 
+        // GUI refresh runs on its own clock, independent of simulation speed
+        refreshTimer = new javax.swing.Timer(1000 / guiFps, e -> renderSnapshot());
+        refreshTimer.start();
+
         setVisible(true);
     }
 
@@ -210,13 +269,104 @@ public class OpenAVRStudio extends JFrame {
         f.addSeparator();
         f.add(exitItem);
         
-        // 2. HELP MENU (NEW)
+        // 2. VIEW MENU
+        JMenu v = new JMenu("View");
+        JMenu rateMenu = new JMenu("Refresh Rate");
+        ButtonGroup rateGroup = new ButtonGroup();
+        for(int hz : new int[]{10, 30, 60}) {
+            JRadioButtonMenuItem item = new JRadioButtonMenuItem(hz + " Hz", hz == guiFps);
+            item.addActionListener(e -> { guiFps = hz; refreshTimer.setDelay(1000 / hz); });
+            rateGroup.add(item);
+            rateMenu.add(item);
+        }
+        v.add(rateMenu);
+
+        JCheckBoxMenuItem spillItem = new JCheckBoxMenuItem("Mirror Console to File...");
+        spillItem.addActionListener(e -> {
+            try {
+                if(!spillItem.isSelected()) { console.setSpillFile(null); return; }
+                JFileChooser chooser = new JFileChooser(new File("."));
+                chooser.setSelectedFile(new File("console.log"));
+                if(chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) { spillItem.setSelected(false); return; }
+                console.setSpillFile(chooser.getSelectedFile());
+            } catch(IOException ex) { spillItem.setSelected(false); JOptionPane.showMessageDialog(this, "Error: " + ex.getMessage()); }
+        });
+        v.add(spillItem);
+
+        // 3. DEBUG MENU
+        JMenu d = new JMenu("Debug");
+        d.add(debugItem("Continue", KeyStroke.getKeyStroke(KeyEvent.VK_F5, 0), this::debugContinue));
+        d.add(debugItem("Pause", KeyStroke.getKeyStroke(KeyEvent.VK_F6, 0), this::debugPause));
+        d.add(debugItem("Step Into", KeyStroke.getKeyStroke(KeyEvent.VK_F11, 0), this::debugStep));
+        d.add(debugItem("Step Over", KeyStroke.getKeyStroke(KeyEvent.VK_F10, 0), this::debugStepOver));
+        d.add(debugItem("Run to Cursor", KeyStroke.getKeyStroke(KeyEvent.VK_F10, InputEvent.CTRL_DOWN_MASK), this::debugRunToCursor));
+        d.add(debugItem("Step Back", KeyStroke.getKeyStroke(KeyEvent.VK_F11, InputEvent.SHIFT_DOWN_MASK), this::debugStepBack));
+        d.add(debugItem("Run Back", KeyStroke.getKeyStroke(KeyEvent.VK_F5, InputEvent.SHIFT_DOWN_MASK), this::debugRunBack));
+        d.addSeparator();
+        d.add(debugItem("Toggle Breakpoint", KeyStroke.getKeyStroke(KeyEvent.VK_F9, 0), () -> gutter.toggleBreakpoint(caretLine())));
+        d.add(debugItem("Add Watchpoint...", null, this::addWatchpointAction));
+        d.add(debugItem("Clear Watchpoints", null, () -> postDebug(c -> { c.clearWatches(); log(">>> WATCHPOINTS CLEARED."); })));
+        d.addSeparator();
+        JCheckBoxMenuItem traceItem = new JCheckBoxMenuItem("Record Trace...");
+        traceItem.addActionListener(e -> {
+            if(!traceItem.isSelected()) {
+                traceFile = null;
+                if(isRunning) postDebug(this::endTrace);
+                return;
+            }
+            JFileChooser chooser = new JFileChooser(new File("."));
+            chooser.setSelectedFile(new File("run.avrtrace"));
+            if(chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) { traceItem.setSelected(false); return; }
+            File out = chooser.getSelectedFile();
+            traceFile = out;
+            if(isRunning) postDebug(c -> beginTrace(c, out));
+        });
+        d.add(traceItem);
+        JCheckBoxMenuItem reverseItem = new JCheckBoxMenuItem("Reverse Debugging...");
+        reverseItem.addActionListener(e -> {
+            if(!reverseItem.isSelected()) {
+                reverseBudget = 0;
+                if(isRunning) postDebug(c -> { c.history = null; log(">>> REVERSE: off."); });
+                return;
+            }
+            String in = JOptionPane.showInputDialog(this, "History memory budget (MB):", "64");
+            long size;
+            try { size = in == null ? 0 : Long.parseLong(in.trim()); } catch(NumberFormatException ex) { size = 0; }
+            if(size <= 0) { reverseItem.setSelected(false); return; }
+            long budget = size << 20;
+            reverseBudget = budget;
+            if(isRunning) postDebug(c -> enableReverse(c, budget));
+        });
+        d.add(reverseItem);
+        JCheckBoxMenuItem profileItem = new JCheckBoxMenuItem("Profile");
+        profileItem.addActionListener(e -> {
+            profiling = profileItem.isSelected();
+            if(!profiling) gutter.setHeat(null);
+            boolean on = profiling;
+            if(isRunning) postDebug(c -> { if(on) beginProfile(c); else c.profile = null; });
+        });
+        d.add(profileItem);
+        d.add(debugItem("Profile Report...", null, this::showProfileReport));
+        JCheckBoxMenuItem analyzerItem = new JCheckBoxMenuItem("Logic Analyzer");
+        analyzerItem.addActionListener(e -> {
+            if(analyzerItem.isSelected()) showLogicAnalyzer(analyzerItem);
+            else if(analyzer != null) analyzer.dispose();
+        });
+        d.add(analyzerItem);
+        d.add(debugItem("Open Trace...", null, () -> {
+            JFileChooser chooser = new JFileChooser(new File("."));
+            if(chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) showTraceViewer(chooser.getSelectedFile());
+        }));
+
+        // 4. HELP MENU
         JMenu h = new JMenu("Help");
         JMenuItem aboutItem = new JMenuItem("About Developer");
         aboutItem.addActionListener(e -> showAboutDialog());
         h.add(aboutItem);
         
         mb.add(f);
+        mb.add(v);
+        mb.add(d);
         mb.add(h);
         setJMenuBar(mb);
     }
@@ -226,7 +376,17 @@ public class OpenAVRStudio extends JFrame {
         tb.setFloatable(false);
         
         deviceCombo = new JComboBox<>(new String[]{"ATmega32", "ATmega328P"});
+        deviceCombo.addActionListener(e -> {
+            if(isRunning) return;
+            memDevice = Device.byName(deviceCombo.getSelectedItem().toString());
+            updateMemoryRegion();
+        });
         freqCombo = new JComboBox<>(new String[]{"16 MHz", "8 MHz"});
+        freqCombo.addActionListener(e -> clockHz = freqCombo.getSelectedIndex() == 0 ? 16_000_000L : 8_000_000L);
+        modeCombo = new JComboBox<>(new String[]{"Slow Step", "Real-Time", "Max Speed"});
+        modeCombo.addActionListener(e -> execMode = modeCombo.getSelectedIndex());
+        asmCombo = new JComboBox<>(new String[]{"Built-in", "avr-gcc", "Cross-check"});
+        asmCombo.setToolTipText("Cross-check assembles with both and reports any word that differs");
         
         btnRun = new JButton("▶ RUN & EXECUTE");
         btnRun.setBackground(new Color(0, 120, 60));
@@ -238,6 +398,10 @@ public class OpenAVRStudio extends JFrame {
         tb.add(deviceCombo);
         tb.add(new JLabel(" Clock: "));
         tb.add(freqCombo);
+        tb.add(new JLabel(" Mode: "));
+        tb.add(modeCombo);
+        tb.add(new JLabel(" Assembler: "));
+        tb.add(asmCombo);
         tb.addSeparator();
         tb.add(btnRun);
         
@@ -281,27 +445,247 @@ public class OpenAVRStudio extends JFrame {
         ioPanel.add(p);
     }
 
-    private void highlightSyntax() {
-        SwingUtilities.invokeLater(() -> {
+    // --- SYNTAX HIGHLIGHTING ---
+    // Edits only mark the touched range dirty (tracked with Positions, so later edits shift it
+    // correctly). After a short quiet period the paragraphs covering that range are re-tokenized;
+    // the rest of the document is never looked at, so cost per keystroke is independent of file size.
+
+    static final class SyntaxHighlighter implements DocumentListener {
+        static final int DEBOUNCE_MS = 40;
+
+        private static final Pattern OPCODE = Pattern.compile("\\b(LDI|MOV|ADD|SUB|ANDI|ORI|RJMP|JMP|CALL|RET|SBI|CBI|SWAP|INC|DEC|BREQ|BRNE|OUT|IN)\\b", Pattern.CASE_INSENSITIVE);
+        private static final Pattern COMMENT = Pattern.compile(";.*");
+        private static final AttributeSet NORMAL, OPCODE_ATTR, COMMENT_ATTR;
+        static {
+            StyleContext sc = StyleContext.getDefaultStyleContext();
+            NORMAL = sc.addAttribute(SimpleAttributeSet.EMPTY, StyleConstants.Foreground, new Color(220, 220, 220));
+            OPCODE_ATTR = sc.addAttribute(SimpleAttributeSet.EMPTY, StyleConstants.Foreground, new Color(86, 156, 214));
+            COMMENT_ATTR = sc.addAttribute(SimpleAttributeSet.EMPTY, StyleConstants.Foreground, new Color(87, 166, 74));
+        }
+
+        private final StyledDocument doc;
+        private final javax.swing.Timer debounce;
+        private Position dirtyStart, dirtyEnd;   // null while nothing is pending
+
+        SyntaxHighlighter(StyledDocument doc) {
+            this.doc = doc;
+            debounce = new javax.swing.Timer(DEBOUNCE_MS, e -> flush());
+            debounce.setRepeats(false);
+        }
+
+        @Override public void insertUpdate(DocumentEvent e) { markDirty(e.getOffset(), e.getOffset() + e.getLength()); }
+        @Override public void removeUpdate(DocumentEvent e) { markDirty(e.getOffset(), e.getOffset()); }
+        @Override public void changedUpdate(DocumentEvent e) {}
+
+        private void markDirty(int start, int end) {
             try {
-                String text = doc.getText(0, doc.getLength());
-                StyleContext sc = StyleContext.getDefaultStyleContext();
-                AttributeSet normal = sc.addAttribute(SimpleAttributeSet.EMPTY, StyleConstants.Foreground, new Color(220, 220, 220));
-                AttributeSet opcode = sc.addAttribute(SimpleAttributeSet.EMPTY, StyleConstants.Foreground, new Color(86, 156, 214));
-                AttributeSet comment = sc.addAttribute(SimpleAttributeSet.EMPTY, StyleConstants.Foreground, new Color(87, 166, 74));
-                
-                doc.setCharacterAttributes(0, text.length(), normal, true);
-                
-                Pattern pOpcode = Pattern.compile("\\b(LDI|MOV|ADD|SUB|ANDI|ORI|RJMP|JMP|CALL|RET|SBI|CBI|SWAP|INC|DEC|BREQ|BRNE|OUT|IN)\\b", Pattern.CASE_INSENSITIVE);
-                Pattern pComment = Pattern.compile(";.*");
-
-                Matcher m = pOpcode.matcher(text);
-                while(m.find()) doc.setCharacterAttributes(m.start(), m.end()-m.start(), opcode, false);
-                
-                m = pComment.matcher(text);
-                while(m.find()) doc.setCharacterAttributes(m.start(), m.end()-m.start(), comment, false);
-            } catch (Exception e) {}
-        });
+                if(dirtyStart == null || start < dirtyStart.getOffset()) dirtyStart = doc.createPosition(start);
+                if(dirtyEnd == null || end > dirtyEnd.getOffset()) dirtyEnd = doc.createPosition(end);
+            } catch(BadLocationException e) { return; }
+            debounce.restart();
+        }
+
+        void flush() {
+            if(dirtyStart == null) return;
+            int start = dirtyStart.getOffset(), end = dirtyEnd.getOffset();
+            dirtyStart = dirtyEnd = null;
+            highlightRange(doc, start, end);
+        }
+
+        static void highlightAll(StyledDocument doc) {
+            highlightRange(doc, 0, doc.getLength());
+        }
+
+        // Re-tokenizes every paragraph that overlaps [start, end].
+        static void highlightRange(StyledDocument doc, int start, int end) {
+            Element root = doc.getDefaultRootElement();
+            int first = root.getElementIndex(start), last = root.getElementIndex(Math.max(start, end));
+            Segment seg = new Segment();
+            Matcher opcode = OPCODE.matcher(""), comment = COMMENT.matcher("");
+            for(int i=first; i<=last; i++) {
+                Element para = root.getElement(i);
+                int p0 = para.getStartOffset();
+                int len = Math.min(para.getEndOffset(), doc.getLength()) - p0;
+                if(len < 0) continue;
+                try { doc.getText(p0, len, seg); } catch(BadLocationException e) { continue; }
+
+                doc.setCharacterAttributes(p0, len, NORMAL, true);
+                opcode.reset(seg);
+                while(opcode.find()) doc.setCharacterAttributes(p0 + opcode.start(), opcode.end() - opcode.start(), OPCODE_ATTR, false);
+                comment.reset(seg);
+                while(comment.find()) doc.setCharacterAttributes(p0 + comment.start(), comment.end() - comment.start(), COMMENT_ATTR, false);
+            }
+        }
+    }
+
+    // --- LINE NUMBER GUTTER ---
+    // Paints only the line numbers inside the current clip, straight from the root element
+    // and the editor's view geometry. Edits that don't change the line count cost nothing;
+    // scrolling is handled by the row-header viewport, which repaints just the exposed strip.
+    // Clicking a number toggles a breakpoint marker; the simulator PC line gets an arrow.
+
+    static final class LineGutter extends JComponent implements DocumentListener {
+        private static final long serialVersionUID = 1L;
+        private static final Color BG = new Color(50, 50, 50);
+        private static final Color PC_BG = new Color(90, 80, 20);
+        private static final Color BREAK_DOT = new Color(200, 50, 50);
+        private static final Color HEAT = new Color(200, 70, 20);
+
+        private final JTextPane editor;
+        private int lineCount = 1;
+        private int digits = 1;
+        private int pcLine = -1;
+        private long[] heat;   // profiled cycles per line, or null
+        private long heatMax;
+        private final java.util.List<Position> breakpoints = new ArrayList<>();  // line starts; they shift with edits
+        private Runnable breakpointListener;
+
+        LineGutter(JTextPane editor) {
+            this.editor = editor;
+            setFont(editor.getFont());
+            setForeground(Color.GRAY);
+            setOpaque(true);
+            editor.getDocument().addDocumentListener(this);
+            editor.addComponentListener(new ComponentAdapter() {
+                @Override public void componentResized(ComponentEvent e) { revalidate(); repaint(); }
+            });
+            addMouseListener(new MouseAdapter() {
+                @Override public void mousePressed(MouseEvent e) {
+                    int line = lineAtY(e.getY());
+                    if(line >= 0) toggleBreakpoint(line);
+                }
+            });
+            lineCount = editor.getDocument().getDefaultRootElement().getElementCount();
+        }
+
+        @Override public void insertUpdate(DocumentEvent e) { linesMayHaveChanged(); }
+        @Override public void removeUpdate(DocumentEvent e) { mergeBreakpoints(); linesMayHaveChanged(); }
+        @Override public void changedUpdate(DocumentEvent e) {}
+
+        private void linesMayHaveChanged() {
+            int count = editor.getDocument().getDefaultRootElement().getElementCount();
+            if(count == lineCount) return;
+            lineCount = count;
+            int d = String.valueOf(count).length();
+            if(d != digits) { digits = d; revalidate(); }
+            repaint();
+        }
+
+        void setPcLine(int line) {
+            if(line == pcLine) return;
+            repaintLine(pcLine);
+            pcLine = line;
+            repaintLine(pcLine);
+        }
+
+        void setHeat(long[] cyclesPerLine) {
+            heat = cyclesPerLine;
+            heatMax = 0;
+            if(heat != null) for(long v : heat) heatMax = Math.max(heatMax, v);
+            repaint();
+        }
+
+        void setBreakpointListener(Runnable r) { breakpointListener = r; }
+
+        void toggleBreakpoint(int line) {
+            if(!breakpoints.removeIf(p -> lineOf(p.getOffset()) == line)) {
+                Element para = editor.getDocument().getDefaultRootElement().getElement(line);
+                try { breakpoints.add(editor.getDocument().createPosition(para.getStartOffset())); }
+                catch(BadLocationException e) { return; }
+            }
+            repaintLine(line);
+            if(breakpointListener != null) breakpointListener.run();
+        }
+
+        // Deleting a line moves its breakpoint onto the next one, which may have its own; keep
+        // one per line so a single toggle clears it.
+        private void mergeBreakpoints() {
+            Set<Integer> lines = new HashSet<>();
+            breakpoints.removeIf(p -> !lines.add(lineOf(p.getOffset())));
+        }
+
+        // Zero-based lines that currently carry a breakpoint marker.
+        int[] getBreakpointLines() {
+            int[] out = new int[breakpoints.size()];
+            for(int i=0; i<out.length; i++) out[i] = lineOf(breakpoints.get(i).getOffset());
+            return out;
+        }
+
+        private int lineOf(int offset) {
+            return editor.getDocument().getDefaultRootElement().getElementIndex(offset);
+        }
+
+        private int lineAtY(int y) {
+            int offset = editor.viewToModel2D(new Point(0, y));
+            return offset < 0 ? -1 : lineOf(offset);
+        }
+
+        private Rectangle lineBounds(int line) {
+            Element root = editor.getDocument().getDefaultRootElement();
+            if(line < 0 || line >= root.getElementCount()) return null;
+            try {
+                Element para = root.getElement(line);
+                Rectangle r0 = editor.modelToView2D(para.getStartOffset()).getBounds();
+                Rectangle r1 = editor.modelToView2D(Math.max(para.getStartOffset(), para.getEndOffset() - 1)).getBounds();
+                return new Rectangle(0, r0.y, getWidth(), r1.y + r1.height - r0.y);
+            } catch(BadLocationException e) { return null; }
+        }
+
+        private void repaintLine(int line) {
+            Rectangle r = lineBounds(line);
+            if(r != null) repaint(r);
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            FontMetrics fm = getFontMetrics(getFont());
+            return new Dimension(fm.charWidth('0') * Math.max(digits, 2) + 22, editor.getHeight());
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            Rectangle clip = g.getClipBounds();
+            g.setColor(BG);
+            g.fillRect(clip.x, clip.y, clip.width, clip.height);
+
+            FontMetrics fm = g.getFontMetrics();
+            Element root = editor.getDocument().getDefaultRootElement();
+            int first = lineAtY(clip.y);
+            if(first < 0) return;
+            int bottom = clip.y + clip.height;
+            int[] bps = getBreakpointLines();
+
+            for(int line = first; line < root.getElementCount(); line++) {
+                Rectangle r = lineBounds(line);
+                if(r == null || r.y > bottom) break;
+                int baseline = r.y + fm.getAscent();
+                if(heat != null && line < heat.length && heat[line] > 0) {
+                    // sqrt keeps lukewarm lines visible next to a dominant loop
+                    float f = (float) Math.sqrt((double) heat[line] / heatMax);
+                    g.setColor(new Color((int) (BG.getRed() + f * (HEAT.getRed() - BG.getRed())),
+                                         (int) (BG.getGreen() + f * (HEAT.getGreen() - BG.getGreen())),
+                                         (int) (BG.getBlue() + f * (HEAT.getBlue() - BG.getBlue()))));
+                    g.fillRect(0, r.y, getWidth(), fm.getHeight());
+                }
+                if(line == pcLine) {
+                    g.setColor(PC_BG);
+                    g.fillRect(0, r.y, getWidth(), fm.getHeight());
+                    g.setColor(Color.YELLOW);
+                    g.drawString("\u25B6", 2, baseline);
+                }
+                for(int bp : bps) {
+                    if(bp == line) {
+                        g.setColor(BREAK_DOT);
+                        int size = fm.getAscent() - 4;
+                        g.fillOval(3, r.y + (fm.getHeight() - size) / 2, size, size);
+                        break;
+                    }
+                }
+                String num = String.valueOf(line + 1);
+                g.setColor(getForeground());
+                g.drawString(num, getWidth() - 5 - fm.stringWidth(num), baseline);
+            }
+        }
     }
 
     // --- FILE I/O ---
@@ -313,14 +697,15 @@ public class OpenAVRStudio extends JFrame {
         if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
             currentFile = chooser.getSelectedFile();
             try {
-                codeEditor.setText("");
-                FileReader fr = new FileReader(currentFile);
-                codeEditor.read(fr, null);
-                fr.close();
+                // Read into the existing document so its listeners (highlighter, gutter) stay attached
+                try(FileReader fr = new FileReader(currentFile)) {
+                    doc.remove(0, doc.getLength());
+                    codeEditor.getEditorKit().read(fr, doc, 0);
+                }
                 statusLabel.setText(" Opened: " + currentFile.getName());
                 log("Loaded: " + currentFile.getAbsolutePath());
                 undoManager.discardAllEdits();
-            } catch (IOException ex) {
+            } catch (IOException | BadLocationException ex) {
                 JOptionPane.showMessageDialog(this, "Error: " + ex.getMessage());
             }
         }
@@ -359,40 +744,182 @@ public class OpenAVRStudio extends JFrame {
     // --- RUN LOGIC ---
 
     private void toggleRun() {
-        if (!isRunning) {
+        if (!isRunning && !isBuilding) {
             startBuildAndRun();
             btnRun.setText("⏹ STOP EXECUTION");
             btnRun.setBackground(new Color(180, 50, 50));
         } else {
             stopSimulation();
-            btnRun.setText("▶ RUN & EXECUTE");
-            btnRun.setBackground(new Color(0, 120, 60));
+            resetRunButton();
         }
     }
 
+    private void resetRunButton() {
+        btnRun.setText("▶ RUN & EXECUTE");
+        btnRun.setBackground(new Color(0, 120, 60));
+    }
+
+    // Builds off the EDT. The built-in assembler works on the editor text directly. The avr-gcc
+    // path gives each build its own temp directory, and the output is cached under .openavr-cache
+    // next to the source, keyed on the patched source, MCU and tool versions.
     private void startBuildAndRun() {
-        consoleOutput.setText("");
+        console.clear();
         log(">>> BUILDING...");
         
-        String processed = convertToGcc(codeEditor.getText());
+        final String source = codeEditor.getText();
+        final Device device = Device.byName(deviceCombo.getSelectedItem().toString());
+        final int asmMode = asmCombo.getSelectedIndex();
+        final File projectDir = currentFile != null ? currentFile.getAbsoluteFile().getParentFile() : new File(".").getAbsoluteFile();
+        final int request = ++runRequest;
+        isBuilding = true;
+
+        Thread buildThread = new Thread(() -> {
+            int[] flash = null, lines = null;
+            try {
+                Assembler.Result asm = null;
+                if(asmMode != ASM_GCC) {
+                    long t0 = System.nanoTime();
+                    asm = Assembler.assemble(source, device);
+                    for(String w : asm.warnings) log("⚠ " + w);
+                    if(!asm.errors.isEmpty()) {
+                        for(String err : asm.errors) log("❌ " + err);
+                        asm = null;
+                    } else {
+                        log(String.format(">>> ASSEMBLED %d WORDS IN %.2f ms (built-in)", asm.sizeWords, (System.nanoTime() - t0) / 1e6));
+                        flash = asm.flash;
+                        lines = asm.lineOfWord;
+                    }
+                }
+                if(asmMode != ASM_BUILTIN && (asmMode == ASM_GCC || asm != null)) {
+                    File hex = buildHex(convertToGcc(source), device.name.toLowerCase(), new BuildCache(new File(projectDir, ".openavr-cache")));
+                    int[] gcc = hex != null ? loadHex(hex.getPath(), device) : null;
+                    if(asmMode == ASM_GCC) flash = gcc;
+                    else if(gcc != null) crossCheck(asm, gcc);
+                }
+            } catch(IOException e) { log("❌ ERROR: " + e.getMessage()); flash = null; }
+
+            final int[] image = flash, listingLines = lines;
+            SwingUtilities.invokeLater(() -> {
+                if(request != runRequest) return;   // stopped or restarted while building
+                isBuilding = false;
+                if(image == null) { resetRunButton(); return; }
+                listing = listingLines;
+                gutter.setPcLine(listing != null ? listing[0] : -1);
+                gutter.setHeat(null);
+                log(">>> STARTING SIMULATION...");
+                startSimulator(image, device);
+            });
+        }, "build");
+        buildThread.setDaemon(true);
+        buildThread.start();
+    }
+
+    // Compares the built-in image against avr-gcc's and logs the first few differing words.
+    private void crossCheck(Assembler.Result asm, int[] gcc) {
+        int diffs = 0;
+        for(int i=0; i<asm.flash.length; i++) {
+            if(asm.flash[i] == gcc[i]) continue;
+            if(++diffs <= 10) {
+                String where = asm.lineOfWord[i] >= 0 ? " (line " + (asm.lineOfWord[i] + 1) + ")" : "";
+                log(String.format("⚠ CROSS-CHECK 0x%04X%s: built-in %04X, avr-gcc %04X", i * 2, where, asm.flash[i], gcc[i]));
+            }
+        }
+        if(diffs == 0) log(">>> CROSS-CHECK OK: built-in output matches avr-gcc.");
+        else log(">>> CROSS-CHECK: " + diffs + " word(s) differ; running the built-in image.");
+    }
+
+    // Returns the .hex to simulate, or null if the toolchain failed (its output is already logged).
+    private File buildHex(String processed, String mcu, BuildCache cache) throws IOException {
+        String key = BuildCache.key(processed, mcu);
+        File hit = cache.lookup(key);
+        if(hit != null) {
+            log(">>> BUILD CACHE HIT (" + key.substring(0, 12) + ")");
+            log(">>> HEX: " + hit.getPath());
+            return hit;
+        }
+
+        File tmp = Files.createTempDirectory("openavr-build").toFile();
         try {
-            File f = new File("main.S");
-            FileWriter fw = new FileWriter(f);
-            fw.write(processed);
-            fw.close();
-        } catch(Exception e) { log("Disk Error: " + e); return; }
-
-        String mcu = deviceCombo.getSelectedItem().toString().toLowerCase();
-        if(!runCmd("avr-gcc", "-mmcu="+mcu, "-nostdlib", "-o", "main.elf", "main.S")) return;
-        if(!runCmd("avr-objcopy", "-O", "ihex", "-R", ".eeprom", "main.elf", "main.hex")) return;
-        
-        log(">>> BUILD SUCCESSFUL.");
-        log(">>> STARTING SIMULATION...");
-        
-        startSimulator("main.hex");
+            File src = new File(tmp, "main.S"), elf = new File(tmp, "main.elf"), hex = new File(tmp, "main.hex");
+            Files.write(src.toPath(), processed.getBytes(StandardCharsets.UTF_8));
+            if(!runCmd("avr-gcc", "-mmcu="+mcu, "-nostdlib", "-o", elf.getPath(), src.getPath())) return null;
+            if(!runCmd("avr-objcopy", "-O", "ihex", "-R", ".eeprom", elf.getPath(), hex.getPath())) return null;
+            File cached = cache.store(key, elf, hex);
+            log(">>> BUILD SUCCESSFUL.");
+            log(">>> HEX: " + cached.getPath());
+            return cached;
+        } finally {
+            File[] left = tmp.listFiles();
+            if(left != null) for(File f : left) f.delete();
+            tmp.delete();
+        }
+    }
+
+    // --- BUILD CACHE ---
+    // One directory per key holding main.elf and main.hex. Entries are staged in a private
+    // directory and renamed into place, so concurrent builds never see half-written artifacts.
+
+    static final class BuildCache {
+        private static String toolVersions;
+        private final File dir;
+
+        BuildCache(File dir) { this.dir = dir; }
+
+        static String key(String processedSource, String mcu) throws IOException {
+            try {
+                MessageDigest md = MessageDigest.getInstance("SHA-256");
+                md.update(processedSource.getBytes(StandardCharsets.UTF_8));
+                md.update((byte) 0);
+                md.update(mcu.getBytes(StandardCharsets.UTF_8));
+                md.update((byte) 0);
+                md.update(toolVersions().getBytes(StandardCharsets.UTF_8));
+                return HexFormat.of().formatHex(md.digest());
+            } catch(NoSuchAlgorithmException e) { throw new IOException(e); }
+        }
+
+        // First line of each tool's --version, probed once per session.
+        static synchronized String toolVersions() {
+            if(toolVersions == null) toolVersions = firstLine("avr-gcc", "--version") + "\n" + firstLine("avr-objcopy", "--version");
+            return toolVersions;
+        }
+
+        private static String firstLine(String... cmd) {
+            try {
+                Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+                try(BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+                    String l = r.readLine();
+                    while(r.readLine() != null) { }
+                    p.waitFor();
+                    return l == null ? "" : l;
+                }
+            } catch(Exception e) { return "missing " + cmd[0]; }
+        }
+
+        File lookup(String key) {
+            File hex = new File(new File(dir, key), "main.hex");
+            return hex.isFile() ? hex : null;
+        }
+
+        File store(String key, File elf, File hex) throws IOException {
+            File entry = new File(dir, key);
+            Files.createDirectories(dir.toPath());
+            Path staging = Files.createTempDirectory(dir.toPath(), key + ".tmp");
+            Files.copy(elf.toPath(), staging.resolve("main.elf"));
+            Files.copy(hex.toPath(), staging.resolve("main.hex"));
+            try {
+                Files.move(staging, entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch(IOException e) {
+                // Another build produced the same key first; its artifacts are identical.
+                Files.deleteIfExists(staging.resolve("main.elf"));
+                Files.deleteIfExists(staging.resolve("main.hex"));
+                Files.deleteIfExists(staging);
+                if(lookup(key) == null) throw e;
+            }
+            return new File(entry, "main.hex");
+        }
     }
 
-    private String convertToGcc(String code) {
+    static String convertToGcc(String code) {
         StringBuilder sb = new StringBuilder();
         sb.append("#define __SFR_OFFSET 0\n#include <avr/io.h>\n.global main\nmain:\n");
         for(String line : code.split("\n")) {
@@ -413,151 +940,5772 @@ public class OpenAVRStudio extends JFrame {
         } catch(Exception e) { log("Error: " + e); return false; }
     }
 
-    private void log(String s) { consoleOutput.append(s + "\n"); consoleOutput.setCaretPosition(consoleOutput.getDocument().getLength()); }
+    // Safe from any thread: lines are queued and drained onto the EDT in batches.
+    private void log(String s) { console.append(s); }
+
+    // --- CONSOLE ---
+    // Producers (EDT, sim thread, tool output readers) only offer lines to a lock-free queue.
+    // A Swing timer drains the queue in batches into the text area, which keeps at most
+    // maxLines lines by dropping the oldest ones. Optionally every line is mirrored to a file;
+    // that is done by the drain too, so only the EDT touches the writer and lines keep their order.
+
+    static final class ConsoleSink {
+        static final int DRAIN_MS = 50;
+
+        private final JTextArea area;
+        private final int maxLines;
+        private final ConcurrentLinkedQueue<String> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger pending = new AtomicInteger();
+        private Writer spill;   // EDT only
+
+        ConsoleSink(JTextArea area, int maxLines) {
+            this.area = area;
+            this.maxLines = Math.max(1, maxLines);
+            new javax.swing.Timer(DRAIN_MS, e -> drain()).start();
+        }
+
+        void append(String line) {
+            queue.offer(line);
+            pending.incrementAndGet();
+        }
+
+        // EDT only. Also discards anything still queued.
+        void clear() {
+            while(queue.poll() != null) pending.decrementAndGet();
+            area.setText("");
+        }
+
+        // EDT only. Pass null to stop mirroring.
+        void setSpillFile(File f) throws IOException {
+            Writer old = spill;
+            spill = f == null ? null : new BufferedWriter(new FileWriter(f));
+            if(old != null) old.close();
+        }
+
+        private void drain() {
+            int n = pending.get();
+            if(n == 0) {
+                if(spill != null) try { spill.flush(); } catch(IOException e) { spillFailed(e); }
+                return;
+            }
+
+            // Lines that would be trimmed straight away are never inserted.
+            StringBuilder sb = new StringBuilder();
+            int skip = n - maxLines, taken = 0;
+            if(skip > 0) {
+                for(String line; taken < skip && (line = queue.poll()) != null; taken++) mirror(line);
+                sb.append("... ").append(skip).append(" lines skipped ...\n");
+            }
+            for(String line; taken < n && (line = queue.poll()) != null; taken++) {
+                sb.append(line).append('\n');
+                mirror(line);
+            }
+            pending.addAndGet(-taken);
+            area.append(sb.toString());
+
+            Document d = area.getDocument();
+            Element root = d.getDefaultRootElement();
+            int excess = root.getElementCount() - 1 - maxLines;
+            if(excess > 0) {
+                try { d.remove(0, root.getElement(excess - 1).getEndOffset()); } catch(BadLocationException e) {}
+            }
+            area.setCaretPosition(d.getLength());
+        }
+
+        private void mirror(String line) {
+            if(spill == null) return;
+            try { spill.write(line); spill.write('\n'); } catch(IOException e) { spillFailed(e); }
+        }
+
+        private void spillFailed(IOException e) {
+            try { spill.close(); } catch(IOException ignored) { }
+            spill = null;
+            append("❌ CONSOLE MIRROR: " + e.getMessage());
+        }
+    }
 
     // --- SIMULATOR ENGINE ---
 
-    private int pc = 0;
-    private int cycles = 0;
-    private int[] flash;
-    private int[] registers = new int[32];
-    private int[] io = new int[64];
+    private volatile AvrCore core;
 
-    private void startSimulator(String hexFile) {
-        flash = loadHex(hexFile);
-        if(flash == null) { log("❌ ERROR: Could not load HEX."); return; }
-        
-        pc = 0;
-        cycles = 0;
-        Arrays.fill(registers, 0);
-        Arrays.fill(io, 0);
+    private void startSimulator(int[] flash, Device device) {
+        final AvrCore c = new AvrCore(flash, device);
+        debugCommands.clear();
+        // USART output is collected into lines so a chatty program does not flood the console
+        final StringBuilder uartLine = new StringBuilder();
+        c.usart.sink = b -> {
+            if(b == '\n' || uartLine.length() >= 120) { log("UART> " + uartLine); uartLine.setLength(0); }
+            else if(b != '\r') uartLine.append((char) b);
+        };
+        core = c;
         isRunning = true;
+        memDevice = device;
+        updateMemoryRegion();
+        syncBreakpoints();
+        final File trace = traceFile;
+        if(trace != null) debugCommands.add(c2 -> beginTrace(c2, trace));
+        final long budget = reverseBudget;
+        if(budget > 0) debugCommands.add(c2 -> enableReverse(c2, budget));
+        if(profiling) debugCommands.add(this::beginProfile);
+        if(analyzer != null) debugCommands.add(this::beginCapture);
 
         simThread = new Thread(() -> {
             log(">>> EXECUTION STARTED");
             try {
-                while(isRunning) {
-                    if(pc >= flash.length) { log(">>> END OF MEMORY."); break; }
-                    
-                    int opcode = flash[pc];
-                    int nextPc = pc + 1;
-                    boolean changed = false;
-
-                    // LDI
-                    if ((opcode & 0xF000) == 0xE000) { 
-                        int K = ((opcode & 0xF00) >> 4) | (opcode & 0x0F);
-                        int d = ((opcode & 0x00F0) >> 4) + 16;
-                        registers[d] = K;
-                        changed = true;
-                    }
-                    // SBI
-                    else if ((opcode & 0xFF00) == 0x9A00) { 
-                        int A = (opcode & 0x00F8) >> 3;
-                        int b = (opcode & 7);
-                        io[A] |= (1 << b);
-                        updateIO(A);
+                long paceHz = 0, paceCycles = 0, paceNanos = 0;
+                debugPaused = false;
+                while(isRunning && (c.halt == AvrCore.RUNNING || c.suspended())) {
+                    Consumer<AvrCore> cmd;
+                    boolean applied = false;
+                    while((cmd = debugCommands.poll()) != null) { cmd.accept(c); applied = true; }
+                    if(applied && debugPaused) publishSnapshot(true);
+                    if(c.suspended() && !debugPaused) reportStop(c);
+                    if(debugPaused) {
+                        // Idle until a debugger command arrives; the timeout lets STOP get through
+                        cmd = debugCommands.poll(50, TimeUnit.MILLISECONDS);
+                        if(cmd != null) { cmd.accept(c); publishSnapshot(true); }
+                        paceHz = 0;
+                        continue;
                     }
-                    // CBI
-                    else if ((opcode & 0xFF00) == 0x9800) { 
-                        int A = (opcode & 0x00F8) >> 3;
-                        int b = (opcode & 7);
-                        io[A] &= ~(1 << b);
-                        updateIO(A);
-                    }
-                    // RJMP
-                    else if ((opcode & 0xF000) == 0xC000) { 
-                        int k = opcode & 0x0FFF;
-                        if ((k & 0x800) != 0) k -= 4096;
-                        nextPc = pc + 1 + k;
+
+                    int mode = execMode;
+                    if(mode == MODE_SLOW_STEP) {
+                        c.step();
+                        publishSnapshot(false);
+                        Thread.sleep(50);
+                        paceHz = 0;
+                        continue;
                     }
 
-                    pc = nextPc;
-                    cycles++;
-                    
-                    if(changed) updateGUI();
-                    Thread.sleep(50); 
+                    // Fast modes: execute ~1 ms of simulated time per batch.
+                    long hz = clockHz;
+                    c.run(c.cycles + hz / 1000);
+
+                    long now = System.nanoTime();
+                    if(mode == MODE_REAL_TIME) {
+                        // Re-anchor when the clock changes or we fall too far behind (e.g. after a slow-step phase).
+                        long due = paceNanos + (long) ((c.cycles - paceCycles) * (1e9 / Math.max(hz, 1)));
+                        if(hz != paceHz || now - due > 100_000_000L) {
+                            paceHz = hz; paceCycles = c.cycles; paceNanos = now;
+                        } else if(due > now) {
+                            LockSupport.parkNanos(due - now);
+                        }
+                    } else {
+                        paceHz = 0;
+                    }
+                    publishSnapshot(false);
                 }
+                if(uartLine.length() > 0) log("UART> " + uartLine);
+                if(c.halt == AvrCore.HALT_END_OF_FLASH) log(">>> END OF MEMORY.");
+                else if(c.halt == AvrCore.HALT_BREAK) log(String.format(">>> BREAK at 0x%04X", c.pc*2));
             } catch (Exception e) { log("❌ CRASH: " + e.getMessage()); }
+            endTrace(c);
+            publishSnapshot(true);
             
             SwingUtilities.invokeLater(() -> {
                if (isRunning) {
-                   btnRun.setText("▶ RUN & EXECUTE");
-                   btnRun.setBackground(new Color(0, 120, 60));
+                   resetRunButton();
                    isRunning = false;
                }
+               Profiler p = lastProfile;
+               if(profiling && p != null && p.core == c && listing != null) gutter.setHeat(lineHeat(p));
             });
         });
         simThread.start();
     }
 
+    // Sim thread: a breakpoint or watchpoint stopped the core.
+    private void reportStop(AvrCore c) {
+        debugPaused = true;
+        if(c.halt == AvrCore.HALT_WATCHPOINT) {
+            log(String.format(">>> WATCHPOINT 0x%04X: 0x%02X -> 0x%02X, stopped at 0x%04X", c.watchHitAddr, c.watchOld, c.data[c.watchHitAddr], c.pc*2));
+        } else {
+            log(String.format(">>> BREAKPOINT at 0x%04X", c.pc*2));
+        }
+        publishSnapshot(true);
+    }
+
     private void stopSimulation() {
         isRunning = false;
-        try { simThread.join(200); } catch(Exception e){}
+        isBuilding = false;
+        runRequest++;
+        if(simThread != null) try { simThread.join(200); } catch(Exception e){}
         log(">>> EXECUTION STOPPED.");
     }
 
-    private void updateIO(int addr) {
-        String port = null;
-        if(addr == 0x1B) port = "PORTA";
-        else if(addr == 0x18) port = "PORTB";
-        else if(addr == 0x15) port = "PORTC";
-        else if(addr == 0x12) port = "PORTD";
-        
-        if(port != null) {
-            final String pName = port;
-            final int val = io[addr];
-            SwingUtilities.invokeLater(() -> {
-                JCheckBox[] bits = ioBits.get(pName);
-                if(bits != null) {
-                    for(int i=0; i<8; i++) bits[i].setSelected((val & (1<<i)) != 0);
-                }
-            });
+    // --- DEBUGGER ---
+    // Everything here runs on the EDT and only posts commands; the sim thread executes them on
+    // its own core. Breakpoints live in the gutter as source lines and are mapped to flash words
+    // through the built-in assembler's listing, so they need an image from the built-in assembler.
+
+    private JMenuItem debugItem(String name, KeyStroke key, Runnable action) {
+        JMenuItem item = new JMenuItem(name);
+        if(key != null) item.setAccelerator(key);
+        item.addActionListener(e -> action.run());
+        return item;
+    }
+
+    private boolean postDebug(Consumer<AvrCore> cmd) {
+        if(!isRunning || core == null) { log(">>> DEBUG: simulator not running."); return false; }
+        debugCommands.add(cmd);
+        return true;
+    }
+
+    private int caretLine() {
+        return doc.getDefaultRootElement().getElementIndex(codeEditor.getCaretPosition());
+    }
+
+    // First flash word assembled from the given source line, or -1.
+    private int wordOfLine(int line) {
+        if(listing == null) return -1;
+        for(int i=0; i<listing.length; i++) if(listing[i] == line) return i;
+        return -1;
+    }
+
+    private void syncBreakpoints() {
+        if(!isRunning || core == null) return;
+        int[] lines = gutter.getBreakpointLines();
+        if(listing == null) {
+            if(lines.length > 0) log(">>> BREAKPOINTS need the built-in assembler (no line mapping for this image).");
+            return;
+        }
+        java.util.List<Integer> words = new ArrayList<>();
+        for(int line : lines) {
+            int w = wordOfLine(line);
+            if(w >= 0) words.add(w);
         }
+        postDebug(c -> {
+            c.clearBreakpoints();
+            for(int w : words) c.setBreakpoint(w, true);
+        });
     }
 
-    private void updateGUI() {
-        SwingUtilities.invokeLater(() -> {
-            for(int i=0; i<32; i++) {
-                int val = registers[i];
-                String bin = String.format("%8s", Integer.toBinaryString(val)).replace(' ', '0');
-                String hex = String.format("0x%02X", val);
-                String dec = String.valueOf(val);
+    private void debugContinue() {
+        postDebug(c -> { c.resume(); debugPaused = false; });
+    }
 
-                if(!registerModel.getValueAt(i, 2).equals(hex)) {
-                    registerModel.setValueAt(bin, i, 1);
-                    registerModel.setValueAt(hex, i, 2);
-                    registerModel.setValueAt(dec, i, 3);
-                }
-            }
-            pcLabel.setText(String.format("PC: 0x%04X ", pc*2));
-            cycleLabel.setText("Cycles: " + cycles + " ");
+    private void debugPause() {
+        postDebug(c -> {
+            if(debugPaused) return;
+            debugPaused = true;
+            log(String.format(">>> PAUSED at 0x%04X", c.pc*2));
         });
     }
 
-    private int[] loadHex(String f) {
-        int[] m = new int[32768];
-        try(BufferedReader b=new BufferedReader(new FileReader(f))){
-            String l;
-            while((l=b.readLine())!=null){
-                if(!l.startsWith(":")) continue;
-                int len=Integer.parseInt(l.substring(1,3),16);
-                int addr=Integer.parseInt(l.substring(3,7),16)/2;
-                int type=Integer.parseInt(l.substring(7,9),16);
-                if(type==0) for(int i=0;i<len;i+=2) {
-                   int lo=Integer.parseInt(l.substring(9+i*2,11+i*2),16);
-                   int hi=Integer.parseInt(l.substring(11+i*2,13+i*2),16);
-                   m[addr+(i/2)]=(hi<<8)|lo;
+    private void debugStep() {
+        postDebug(c -> {
+            debugPaused = true;
+            if(!c.resume()) c.step();
+        });
+    }
+
+    private void debugStepOver() {
+        postDebug(c -> {
+            int ret = c.callReturnAddress();
+            debugPaused = true;
+            if(ret < 0) { if(!c.resume()) c.step(); return; }
+            c.setTempBreak(ret);
+            c.resume();
+            debugPaused = false;
+        });
+    }
+
+    private void debugRunToCursor() {
+        int line = caretLine();
+        int w = wordOfLine(line);
+        if(w < 0) { log(">>> RUN TO CURSOR: no code on line " + (line + 1) + "."); return; }
+        postDebug(c -> {
+            c.setTempBreak(w);
+            c.resume();
+            debugPaused = false;
+        });
+    }
+
+    private void debugStepBack() {
+        postDebug(c -> {
+            debugPaused = true;
+            if(c.history == null) { log(">>> REVERSE: enable Debug > Reverse Debugging first."); return; }
+            if(c.history.stepBack()) log(String.format("<<< STEPPED BACK to 0x%04X (cycle %d)", c.pc*2, c.cycles));
+            else log(">>> REVERSE: start of recorded history.");
+        });
+    }
+
+    private void debugRunBack() {
+        postDebug(c -> {
+            debugPaused = true;
+            if(c.history == null) { log(">>> REVERSE: enable Debug > Reverse Debugging first."); return; }
+            if(c.history.runBack()) log(String.format("<<< BREAKPOINT at 0x%04X (cycle %d)", c.pc*2, c.cycles));
+            else log(String.format("<<< no earlier breakpoint; rewound to 0x%04X (cycle %d)", c.pc*2, c.cycles));
+        });
+    }
+
+    // Sim thread: attaches reverse-execution history to the running core. Only what runs from
+    // here on can be stepped back over.
+    private void enableReverse(AvrCore c, long budget) {
+        c.enableHistory(budget, REVERSE_INTERVAL);
+        log(String.format(">>> REVERSE: %d MB history, snapshot every %,d cycles", budget >> 20, REVERSE_INTERVAL));
+    }
+
+    // Sim thread: starts a fresh profile on the running core.
+    private void beginProfile(AvrCore c) {
+        c.profile = new Profiler(c);
+        lastProfile = c.profile;
+        log(">>> PROFILE: counting from cycle " + c.cycles);
+    }
+
+    // Sim thread: starts or ends recording on the running core.
+    private void beginTrace(AvrCore c, File f) {
+        if(c.trace != null) endTrace(c);
+        try {
+            c.startTrace(new TraceWriter(f));
+            log(">>> TRACE: recording to " + f.getPath());
+        } catch(IOException e) { log("❌ TRACE: " + e.getMessage()); }
+    }
+
+    private void endTrace(AvrCore c) {
+        TraceWriter w = c.trace;
+        if(w == null) return;
+        try { log(">>> TRACE: " + c.stopTrace() + " records written to " + w.file.getPath()); }
+        catch(IOException e) { log("❌ TRACE: " + e.getMessage()); }
+    }
+
+    // Accepts a register (R16), an I/O name (PORTB) or a data-space address (0x0060).
+    private void addWatchpointAction() {
+        String in = JOptionPane.showInputDialog(this, "Watch register, I/O name or data address:", "Add Watchpoint", JOptionPane.PLAIN_MESSAGE);
+        if(in == null || in.trim().isEmpty()) return;
+        String name = in.trim().toUpperCase();
+        Device device = core != null ? core.device : Device.byName(deviceCombo.getSelectedItem().toString());
+        int addr;
+        try {
+            if(name.matches("R\\d{1,2}")) { addr = Integer.parseInt(name.substring(1)); if(addr > 31) addr = -1; }
+            else if(device.reg(name) >= 0) addr = device.reg(name);
+            else addr = Integer.decode(name);
+        } catch(NumberFormatException e) { addr = -1; }
+        if(addr < 0 || addr > device.ramEnd) {
+            log(">>> WATCHPOINT: cannot resolve '" + in.trim() + "'.");
+            return;
+        }
+        final int a = addr;
+        postDebug(c -> {
+            c.addWatch(a);
+            log(String.format(">>> WATCHPOINT set on 0x%04X (%s)", a, name));
+        });
+    }
+
+    // --- TRACE VIEWER ---
+    // The table reads records straight from the mapped file, so it opens any size of trace
+    // instantly. A filter (PC or written-address range) is scanned on a background thread with
+    // its own reader, and shows its matches a page at a time to keep the heap bounded.
+
+    private static final int TRACE_PAGE = 100_000;
+
+    private void showTraceViewer(File f) {
+        final TraceReader t;
+        try { t = new TraceReader(f); }
+        catch(IOException e) { JOptionPane.showMessageDialog(this, "Error: " + e.getMessage()); return; }
+
+        final long[][] page = {null};          // record index per row; null = unfiltered
+        final long[] nextScan = {-1};          // where the next filtered page starts, -1 = done
+        final String[] cols = {"#", "Cycle", "PC", "Opcode", "Write", "SREG"};
+        final AbstractTableModel model = new AbstractTableModel() {
+            @Override public int getRowCount() { return page[0] != null ? page[0].length : (int) Math.min(t.count, Integer.MAX_VALUE); }
+            @Override public int getColumnCount() { return cols.length; }
+            @Override public String getColumnName(int c) { return cols[c]; }
+            @Override public Object getValueAt(int row, int col) {
+                long i = page[0] != null ? page[0][row] : row;
+                switch(col) {
+                    case 0: return i;
+                    case 1: return t.cycle(i);
+                    case 2: return String.format("0x%04X", t.pc(i) * 2);
+                    case 3: return String.format("%04X", t.opcode(i));
+                    case 4: return t.describeWrite(i);
+                    default: return String.format("%02X", t.sreg(i));
                 }
             }
-            return m;
-        } catch(Exception e){ return null; }
+        };
+
+        JDialog dlg = new JDialog(this, "Trace: " + f.getName() + " (" + t.count + " records)", false);
+        dlg.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+        JTable table = new JTable(model);
+        table.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+
+        JTextField cycleField = new JTextField(10), fromField = new JTextField("0x0000", 6), toField = new JTextField("0x7FFF", 6);
+        JComboBox<String> filterBy = new JComboBox<>(new String[]{"PC", "Write address"});
+        JLabel status = new JLabel(" ");
+        JButton go = new JButton("Go"), apply = new JButton("Filter"), clear = new JButton("Clear"), more = new JButton("Next Page");
+        more.setEnabled(false);
+
+        Runnable selectFirst = () -> {
+            if(model.getRowCount() == 0) return;
+            table.setRowSelectionInterval(0, 0);
+            table.scrollRectToVisible(table.getCellRect(0, 0, true));
+        };
+
+        // Scans from record 'start' on a background thread and shows up to TRACE_PAGE matches.
+        LongConsumer scan = start -> {
+            final int lo, hi;
+            try { lo = Integer.decode(fromField.getText().trim()); hi = Integer.decode(toField.getText().trim()); }
+            catch(NumberFormatException ex) { status.setText("Bad range"); return; }
+            final boolean byWrite = filterBy.getSelectedIndex() == 1;
+            status.setText("Scanning...");
+            apply.setEnabled(false); more.setEnabled(false);
+            Thread th = new Thread(() -> {
+                long[] hits = new long[TRACE_PAGE];
+                int n = 0;
+                long i = start;
+                try(TraceReader r = new TraceReader(f)) {
+                    for(; i < r.count && n < TRACE_PAGE; i++) {
+                        int a = byWrite ? r.addr(i) : r.pc(i) * 2;
+                        if(byWrite && a >= TraceWriter.IRQ) continue;
+                        if(a >= lo && a <= hi) hits[n++] = i;
+                    }
+                } catch(IOException | UncheckedIOException ex) { SwingUtilities.invokeLater(() -> status.setText("Error: " + ex.getMessage())); return; }
+                final long[] rows = Arrays.copyOf(hits, n);
+                final long resume = i < t.count ? i : -1;
+                SwingUtilities.invokeLater(() -> {
+                    page[0] = rows;
+                    nextScan[0] = resume;
+                    model.fireTableDataChanged();
+                    status.setText(rows.length + " matches" + (resume >= 0 ? " (more after record " + resume + ")" : ""));
+                    apply.setEnabled(true);
+                    more.setEnabled(resume >= 0);
+                    selectFirst.run();
+                });
+            }, "trace-scan");
+            th.setDaemon(true);
+            th.start();
+        };
+
+        go.addActionListener(e -> {
+            long cyc;
+            try { cyc = Long.parseLong(cycleField.getText().trim()); }
+            catch(NumberFormatException ex) { status.setText("Bad cycle"); return; }
+            long idx = t.seekCycle(cyc);
+            if(page[0] != null) { scan.accept(idx); return; }
+            if(idx >= model.getRowCount()) { status.setText("Past the end of the trace"); return; }
+            int row = (int) idx;
+            table.setRowSelectionInterval(row, row);
+            table.scrollRectToVisible(table.getCellRect(row, 0, true));
+        });
+        apply.addActionListener(e -> scan.accept(0));
+        more.addActionListener(e -> { if(nextScan[0] >= 0) scan.accept(nextScan[0]); });
+        clear.addActionListener(e -> {
+            page[0] = null;
+            nextScan[0] = -1;
+            more.setEnabled(false);
+            status.setText(" ");
+            model.fireTableDataChanged();
+        });
+
+        JPanel controls = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        controls.add(new JLabel("Cycle:")); controls.add(cycleField); controls.add(go);
+        controls.add(new JLabel("  Filter:")); controls.add(filterBy);
+        controls.add(new JLabel("from")); controls.add(fromField);
+        controls.add(new JLabel("to")); controls.add(toField);
+        controls.add(apply); controls.add(clear); controls.add(more);
+
+        dlg.add(controls, BorderLayout.NORTH);
+        dlg.add(new JScrollPane(table), BorderLayout.CENTER);
+        dlg.add(status, BorderLayout.SOUTH);
+        dlg.addWindowListener(new WindowAdapter() {
+            @Override public void windowClosed(WindowEvent e) { try { t.close(); } catch(IOException ignored) { } }
+        });
+        dlg.setSize(820, 600);
+        dlg.setLocationRelativeTo(this);
+        dlg.setVisible(true);
     }
 
-    private String getStarterCode() {
-        return "; ATmega32 Blink Demo\n.INCLUDE \"M32DEF.INC\"\n\nLDI R16, 0xFF\nOUT DDRB, R16   ; Set Port B Output\n\nLOOP:\n  SBI PORTB, 0  ; LED ON\n  RCALL DELAY\n  CBI PORTB, 0  ; LED OFF\n  RCALL DELAY\n  RJMP LOOP\n\nDELAY:\n  LDI R20, 10\nL1: DEC R20\n  BRNE L1\n  RET";
+    // --- PROFILE REPORT ---
+
+    private void showProfileReport() {
+        Profiler p = lastProfile;
+        if(p == null) { log(">>> PROFILE: turn on Debug > Profile and run first."); return; }
+        final int[] lines = listing;
+        final String[] source = codeEditor.getText().split("\n", -1);
+        final long hz = clockHz;
+        // While it runs, the counters belong to the sim thread
+        if(isRunning && core != null && core.profile == p) {
+            postDebug(c -> { String text = p.report(c.device, hz, lines, source); SwingUtilities.invokeLater(() -> showReport(text)); });
+        } else {
+            showReport(p.report(p.core.device, hz, lines, source));
+        }
     }
 
-    public static void main(String[] args) {
+    private void showReport(String text) {
+        JDialog dlg = new JDialog(this, "Profile Report", false);
+        dlg.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+        JTextArea area = new JTextArea(text);
+        area.setEditable(false);
+        area.setFont(new Font("Monospaced", Font.PLAIN, 12));
+        JButton save = new JButton("Save...");
+        save.addActionListener(e -> {
+            JFileChooser chooser = new JFileChooser(new File("."));
+            chooser.setSelectedFile(new File("profile.txt"));
+            if(chooser.showSaveDialog(dlg) != JFileChooser.APPROVE_OPTION) return;
+            try { Files.write(chooser.getSelectedFile().toPath(), text.getBytes(StandardCharsets.UTF_8)); }
+            catch(IOException ex) { JOptionPane.showMessageDialog(dlg, "Error: " + ex.getMessage()); }
+        });
+        JPanel controls = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        controls.add(save);
+        dlg.add(controls, BorderLayout.NORTH);
+        dlg.add(new JScrollPane(area), BorderLayout.CENTER);
+        dlg.setSize(900, 600);
+        dlg.setLocationRelativeTo(this);
+        dlg.setVisible(true);
+    }
+
+    // Profiled cycles summed per source line through the listing. Reads the live counters
+    // without synchronization; a slightly stale value only shades a line a little off.
+    private long[] lineHeat(Profiler p) {
+        long[] out = new long[doc.getDefaultRootElement().getElementCount()];
+        for(int w=0; w<listing.length && w<p.cycles.length; w++) {
+            int line = listing[w];
+            if(line >= 0 && line < out.length) out[line] += p.cycles[w];
+        }
+        return out;
+    }
+
+    // --- LOGIC ANALYZER ---
+    // Plots the port pins of a WaveCapture, one row per pin. Only the visible window is drawn, a
+    // pixel column at a time: a column spanning few records is scanned, a longer one is summed up
+    // from the capture's block index, so a repaint costs about the same however long the capture
+    // is. While a run is going the view follows the newest data until it is scrolled or zoomed.
+
+    // Sim thread: starts capturing the running core's ports.
+    private void beginCapture(AvrCore c) {
+        if(c.wave != null) return;
+        c.wave = new WaveCapture(c);
+        lastWave = c.wave;
+        log(">>> LOGIC ANALYZER: capturing from cycle " + c.cycles);
+    }
+
+    // Sim thread: stops capturing and drops the capture.
+    private void endCapture(AvrCore c) {
+        WaveCapture w = c.wave;
+        if(w == null) return;
+        w.detach();
+        c.wave = null;
+        if(lastWave == w) lastWave = null;
+        closeCapture(w);
+    }
+
+    private void closeCapture(WaveCapture w) {
+        try { w.close(); } catch(IOException e) { log("❌ LOGIC ANALYZER: " + e.getMessage()); }
+    }
+
+    private void showLogicAnalyzer(JCheckBoxMenuItem item) {
+        if(analyzer != null) { analyzer.toFront(); return; }
+        final WaveView view = new WaveView();
+        final JDialog dlg = new JDialog(this, "Logic Analyzer", false);
+        dlg.setDefaultCloseOperation(JDialog.DISPOSE_ON_CLOSE);
+        analyzer = dlg;
+        if(isRunning) postDebug(this::beginCapture);
+
+        final JComponent plot = new JComponent() {
+            @Override protected void paintComponent(Graphics g) { view.paint((Graphics2D) g, getWidth(), getHeight(), clockHz); }
+        };
+        plot.setOpaque(true);
+        plot.setPreferredSize(new Dimension(900, WaveView.RULER + 32 * WaveView.ROW));
+        JScrollBar bar = new JScrollBar(JScrollBar.HORIZONTAL);
+        JCheckBox follow = new JCheckBox("Follow", true);
+        JLabel status = new JLabel(" ");
+        JButton zoomIn = new JButton("Zoom In"), zoomOut = new JButton("Zoom Out"), fit = new JButton("Fit"), export = new JButton("Export VCD...");
+        final long[] unit = {1};           // cycles per scrollbar step
+        final boolean[] syncing = {false}; // set while sync moves the scrollbar itself
+        final long[] shown = {-1, -1};     // count and end of the capture at the last sync
+        IntSupplier width = () -> Math.max(1, plot.getWidth() - WaveView.LABEL);
+
+        // Brings the window, the scrollbar, Follow and the status line in line with the capture.
+        Runnable sync = () -> {
+            WaveCapture w = view.capture;
+            if(w == null) return;
+            view.clamp(width.getAsInt());
+            long total = w.end - w.start, span = (long) (width.getAsInt() * view.cpp);
+            unit[0] = 1 + total / 1_000_000;
+            int extent = (int) Math.max(1, Math.min(span, total) / unit[0]);
+            int max = (int) Math.max(extent, total / unit[0]);
+            syncing[0] = true;
+            bar.setValues((int) Math.min((view.t0 - w.start) / unit[0], max - extent), extent, 0, max);
+            syncing[0] = false;
+            follow.setSelected(view.follow);
+            String spill = w.spilledBytes() > 0 ? String.format(", %.1f MB spilled to disk", w.spilledBytes() / 1048576.0) : "";
+            status.setText(String.format("%,d transitions%s   window %s", w.count(), spill, WaveView.time(span, span, clockHz)));
+            plot.repaint();
+        };
+        bar.addAdjustmentListener(e -> {
+            if(syncing[0] || view.capture == null) return;
+            view.t0 = view.capture.start + bar.getValue() * unit[0];
+            view.follow = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum();
+            sync.run();
+        });
+        plot.addMouseWheelListener(e -> {
+            view.zoom(Math.pow(2, e.getPreciseWheelRotation() / 2), e.getX() - WaveView.LABEL, width.getAsInt());
+            sync.run();
+        });
+        MouseAdapter pan = new MouseAdapter() {
+            private int fromX;
+            private long fromT0;
+            @Override public void mousePressed(MouseEvent e) { fromX = e.getX(); fromT0 = view.t0; }
+            @Override public void mouseDragged(MouseEvent e) {
+                view.t0 = fromT0 - (long) ((e.getX() - fromX) * view.cpp);
+                view.follow = false;
+                sync.run();
+            }
+        };
+        plot.addMouseListener(pan);
+        plot.addMouseMotionListener(pan);
+        zoomIn.addActionListener(e -> { view.zoom(0.5, width.getAsInt() / 2, width.getAsInt()); sync.run(); });
+        zoomOut.addActionListener(e -> { view.zoom(2, width.getAsInt() / 2, width.getAsInt()); sync.run(); });
+        fit.addActionListener(e -> { view.fit(width.getAsInt()); sync.run(); });
+        follow.addActionListener(e -> { view.follow = follow.isSelected(); sync.run(); });
+        export.addActionListener(e -> {
+            WaveCapture w = view.capture;
+            if(w == null) return;
+            JFileChooser chooser = new JFileChooser(new File("."));
+            chooser.setSelectedFile(new File("capture.vcd"));
+            if(chooser.showSaveDialog(dlg) != JFileChooser.APPROVE_OPTION) return;
+            File f = chooser.getSelectedFile();
+            long hz = clockHz;
+            Thread th = new Thread(() -> {
+                try(Writer out = Files.newBufferedWriter(f.toPath(), StandardCharsets.US_ASCII)) {
+                    w.writeVcd(out, hz);
+                    log(">>> LOGIC ANALYZER: wrote " + f.getPath());
+                } catch(IOException | UncheckedIOException ex) { log("❌ VCD: " + ex.getMessage()); }
+            }, "vcd-export");
+            th.setDaemon(true);
+            th.start();
+        });
+
+        // Picks up the capture of a new run and redraws when the current one has grown.
+        javax.swing.Timer timer = new javax.swing.Timer(100, e -> {
+            WaveCapture w = lastWave;
+            if(w != view.capture) {
+                if(view.capture != null) closeCapture(view.capture);   // an earlier run's
+                view.show(w);
+                shown[0] = -1;
+            }
+            if(w == null || (w.count() == shown[0] && w.end == shown[1])) return;
+            shown[0] = w.count();
+            shown[1] = w.end;
+            sync.run();
+        });
+
+        JPanel controls = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        controls.add(zoomIn); controls.add(zoomOut); controls.add(fit); controls.add(follow);
+        controls.add(export); controls.add(status);
+        JPanel center = new JPanel(new BorderLayout());
+        center.add(plot, BorderLayout.CENTER);
+        center.add(bar, BorderLayout.SOUTH);
+        dlg.add(controls, BorderLayout.NORTH);
+        dlg.add(center, BorderLayout.CENTER);
+        dlg.addWindowListener(new WindowAdapter() {
+            @Override public void windowClosed(WindowEvent e) {
+                timer.stop();
+                analyzer = null;
+                item.setSelected(false);
+                WaveCapture w = view.capture;
+                if(isRunning) debugCommands.add(OpenAVRStudio.this::endCapture);
+                if(w != null && (!isRunning || w.core != core)) closeCapture(w);
+                lastWave = null;
+            }
+        });
+        dlg.pack();
+        dlg.setLocationRelativeTo(this);
+        dlg.setVisible(true);
+        timer.start();
+    }
+
+    // What the logic analyzer draws; EDT only.
+    static final class WaveView {
+        static final int LABEL = 44, RULER = 20, ROW = 16;
+        static final Color BG = new Color(20, 20, 20), GRID = new Color(50, 50, 50), TEXT = new Color(170, 170, 170), TRACE = new Color(80, 220, 120);
+        static final Font FONT = new Font("Monospaced", Font.PLAIN, 11);
+
+        WaveCapture capture;
+        long t0;                         // cycle at the left edge of the plot
+        double cpp = 16;                 // cycles per pixel
+        boolean follow = true;
+        private WaveCapture.Reader reader;
+        private int[] rows = new int[0]; // bit of the capture's port state per row: 8 * port + pin
+        private int state;               // port values while drawTraces walks the records
+
+        void show(WaveCapture w) {
+            capture = w;
+            reader = w == null ? null : w.new Reader();
+            int[] r = new int[32];
+            int n = 0;
+            if(w != null) for(int p=0; p<4; p++) if(w.portAddr[p] >= 0) for(int b=0; b<8; b++) r[n++] = 8 * p + b;
+            rows = Arrays.copyOf(r, n);
+            t0 = w == null ? 0 : w.start;
+            follow = true;
+        }
+
+        // Keeps the window inside the capture, or on its newest data while following.
+        void clamp(int width) {
+            long span = (long) (width * cpp);
+            if(follow) t0 = capture.end - span;
+            t0 = Math.max(capture.start, Math.min(t0, capture.end - span));
+        }
+
+        // Scales the window by factor, keeping the cycle under plot column x in place.
+        void zoom(double factor, int x, int width) {
+            if(capture == null) return;
+            double at = t0 + x * cpp;
+            double most = Math.max(16, 2.0 * (capture.end - capture.start) / width);
+            cpp = Math.max(1 / 16.0, Math.min(most, cpp * factor));
+            t0 = (long) (at - x * cpp);
+        }
+
+        void fit(int width) {
+            if(capture == null) return;
+            cpp = Math.max(1 / 16.0, (capture.end - capture.start) / (double) width);
+            t0 = capture.start;
+            follow = false;
+        }
+
+        // First cycle of pixel column x.
+        private long at(int x) { return t0 + (long) ((x - LABEL) * cpp); }
+
+        void paint(Graphics2D g, int width, int height, long clockHz) {
+            Rectangle clip = g.getClipBounds();
+            if(clip == null) clip = new Rectangle(width, height);
+            g.setColor(BG);
+            g.fillRect(clip.x, clip.y, clip.width, clip.height);
+            g.setFont(FONT);
+            if(capture == null) {
+                g.setColor(TEXT);
+                g.drawString("Waiting for a run to capture...", LABEL + 8, RULER + 14);
+                return;
+            }
+            g.setColor(GRID);
+            for(int row=0; row<rows.length; row++) g.drawLine(0, RULER + (row + 1) * ROW - 1, width, RULER + (row + 1) * ROW - 1);
+            drawRuler(g, width, height, clockHz);
+            g.setColor(BG);
+            g.fillRect(0, RULER, LABEL, height);
+            g.setColor(TEXT);
+            for(int row=0; row<rows.length; row++) g.drawString("P" + (char) ('A' + rows[row] / 8) + rows[row] % 8, 6, RULER + (row + 1) * ROW - 4);
+            int x0 = Math.max(LABEL, clip.x), x1 = Math.min(width, clip.x + clip.width);
+            if(x0 < x1) drawTraces(g, x0, x1);
+        }
+
+        // Ticks 1, 2 or 5 times a power of ten cycles apart, labelled with the time since the
+        // capture started.
+        private void drawRuler(Graphics2D g, int width, int height, long clockHz) {
+            double want = Math.max(1, 80 * cpp), step = Math.pow(10, Math.floor(Math.log10(want)));
+            step *= want <= step ? 1 : want <= 2 * step ? 2 : want <= 5 * step ? 5 : 10;
+            for(long k = (long) Math.ceil((t0 - capture.start) / step); ; k++) {
+                int x = LABEL + (int) Math.round((capture.start + k * step - t0) / cpp);
+                if(x >= width) break;
+                g.setColor(GRID);
+                g.drawLine(x, RULER - 4, x, height);
+                g.setColor(TEXT);
+                g.drawString(time(Math.round(k * step), step, clockHz), x + 3, RULER - 6);
+            }
+        }
+
+        // Walks the records under columns [x0, x1). Each row's level is drawn as one line per
+        // run of quiet columns; a column where the pin changed gets a vertical edge. A column
+        // holding more than two index blocks ends on a block edge and is summed up from the
+        // index, so its last few records may show one column late.
+        private void drawTraces(Graphics2D g, int x0, int x1) {
+            long n = capture.count(), end = capture.end;
+            long i = Math.min(n, reader.seek(at(x0)));
+            state = reader.stateAt(i);
+            int[] runFrom = new int[rows.length];
+            Arrays.fill(runFrom, x0);
+            g.setColor(TRACE);
+            int x = x0;
+            for(; x < x1 && at(x) <= end; x++) {
+                long to = at(x + 1);
+                long b = reader.blockBefore(to), j;
+                int before = state, mask;
+                if(b - i > 2 * WaveCapture.BLOCK) {
+                    // Dense: stop at the last block edge, the rest goes to the next column
+                    long b1 = (i + WaveCapture.BLOCK - 1) / WaveCapture.BLOCK * WaveCapture.BLOCK;
+                    mask = scan(i, b1) | reader.blockMask(b1, b);
+                    state = reader.stateAt(b);
+                    j = b;
+                } else {
+                    if(i == n || reader.record(i) >>> 16 >= to) continue;
+                    j = Math.min(n, reader.seek(to));
+                    mask = scan(i, j);
+                }
+                i = j;
+                for(int row=0; row<rows.length; row++) {
+                    int bit = rows[row];
+                    if((mask >>> bit & 1) == 0) continue;
+                    int y = RULER + row * ROW, level = level(y, before >>> bit & 1);
+                    g.drawLine(runFrom[row], level, x, level);
+                    g.drawLine(x, y + 3, x, y + ROW - 4);
+                    runFrom[row] = x;
+                }
+            }
+            if(x == x0) return;
+            for(int row=0; row<rows.length; row++) {
+                int level = level(RULER + row * ROW, state >>> rows[row] & 1);
+                g.drawLine(runFrom[row], level, x - 1, level);
+            }
+        }
+
+        // Applies records [from, to) to state and returns the bits they changed.
+        private int scan(long from, long to) {
+            int mask = 0;
+            for(long k = from; k < to; k++) {
+                long rec = reader.record(k);
+                mask |= WaveCapture.changed(state, rec);
+                state = WaveCapture.apply(state, rec);
+            }
+            return mask;
+        }
+
+        private static int level(int y, int bit) { return bit != 0 ? y + 3 : y + ROW - 4; }
+
+        // A number of cycles as a time, with enough decimals to tell it from one step away.
+        static String time(long cycles, double step, long clockHz) {
+            String[] units = {"s", "ms", "µs", "ns"};
+            double t = cycles / (double) clockHz, d = step / clockHz;
+            int u = 0;
+            while(u < 3 && Math.abs(t != 0 ? t : d) < 1) { t *= 1000; d *= 1000; u++; }
+            int decimals = (int) Math.max(0, Math.min(9, Math.ceil(-Math.log10(d)) + 2));
+            String s = String.format(Locale.ROOT, "%." + decimals + "f", t);
+            return (decimals > 0 ? s.replaceAll("\\.?0+$", "") : s) + " " + units[u];
+        }
+    }
+
+    // --- MEMORY VIEW ---
+    // The memory table is virtual. Its row count comes from the region size and its cells are
+    // formatted on demand, so JTable only ever formats the rows on screen. SRAM, I/O and EEPROM
+    // are read from the snapshot on screen. Flash is read straight from the core's image, which
+    // does not change while it runs. Changed bytes are found when a snapshot is rendered, by
+    // diffing it against the previous one, so the sim thread does no bookkeeping per store.
+
+    private static final int MEM_SRAM = 0, MEM_IO = 1, MEM_FLASH = 2, MEM_EEPROM = 3;
+    private static final String[] MEM_REGIONS = {"SRAM", "I/O", "Flash", "EEPROM"};
+    private static final int MEM_FADE = 10;   // snapshots a changed byte stays highlighted
+    private static final Color MEM_CHANGED = new Color(255, 200, 80);
+
+    private int memRegion = MEM_SRAM;              // everything here is EDT only
+    private int memLo, memHi;                      // byte address range of the region, inclusive
+    private Device memDevice = Device.ATMEGA32;
+    private long memFrame;                         // snapshots rendered so far
+    private long[] dataChangedAt = new long[0], eeChangedAt = new long[0];   // memFrame of each byte's last change
+
+    private AbstractTableModel createMemoryModel() {
+        return new AbstractTableModel() {
+            @Override public int getRowCount() { return (memHi - (memLo & ~7)) / 8 + 1; }
+            @Override public int getColumnCount() { return 10; }
+            @Override public String getColumnName(int col) { return col == 0 ? "Addr" : col == 9 ? "ASCII" : HEX2[col - 1]; }
+            @Override public Object getValueAt(int row, int col) {
+                int base = (memLo & ~7) + row * 8;
+                if(col == 0) return String.format("0x%04X", base);
+                if(col < 9) {
+                    int v = memByte(base + col - 1);
+                    return v < 0 ? "" : HEX2[v];
+                }
+                StringBuilder sb = new StringBuilder(8);
+                for(int i=0; i<8; i++) {
+                    int v = memByte(base + i);
+                    sb.append(v < 0 ? ' ' : v >= 0x20 && v < 0x7F ? (char) v : '.');
+                }
+                return sb.toString();
+            }
+        };
+    }
+
+    private TableCellRenderer createMemoryRenderer() {
+        return new DefaultTableCellRenderer() {
+            @Override public Component getTableCellRendererComponent(JTable t, Object v, boolean sel, boolean focus, int row, int col) {
+                super.getTableCellRendererComponent(t, v, sel, focus, row, col);
+                boolean cell = col >= 1 && col <= 8;
+                int addr = (memLo & ~7) + row * 8 + col - 1;
+                setHorizontalAlignment(cell ? CENTER : LEFT);
+                setToolTipText(cell && memRegion == MEM_IO ? memDevice.regName(addr) : null);
+                if(!sel) setBackground(cell ? changeColor(addr, t.getBackground()) : t.getBackground());
+                return this;
+            }
+        };
+    }
+
+    private JPanel createMemoryControls() {
+        JComboBox<String> region = new JComboBox<>(MEM_REGIONS);
+        JTextField addrField = new JTextField(6);
+        JButton go = new JButton("Go");
+        region.addActionListener(e -> { memRegion = region.getSelectedIndex(); updateMemoryRegion(); });
+        // Hex, with or without 0x/$
+        ActionListener goTo = e -> {
+            String in = addrField.getText().trim().replaceFirst("^(0[xX]|\\$)", "");
+            int a;
+            try { a = Integer.parseInt(in, 16); } catch(NumberFormatException ex) { a = -1; }
+            if(a < memLo || a > memHi) {
+                log(String.format(">>> MEMORY: '%s' is outside %s (0x%04X-0x%04X).", addrField.getText().trim(), MEM_REGIONS[memRegion], memLo, memHi));
+                return;
+            }
+            memoryTable.changeSelection((a - (memLo & ~7)) / 8, 1 + (a & 7), false, false);
+        };
+        go.addActionListener(goTo);
+        addrField.addActionListener(goTo);
+        JPanel p = new JPanel(new FlowLayout(FlowLayout.LEFT, 4, 2));
+        p.add(region);
+        p.add(new JLabel("Go to:"));
+        p.add(addrField);
+        p.add(go);
+        return p;
+    }
+
+    private void updateMemoryRegion() {
+        Device d = memDevice;
+        switch(memRegion) {
+            case MEM_IO:     memLo = AvrCore.IO_BASE; memHi = d.sramStart - 1; break;
+            case MEM_FLASH:  memLo = 0; memHi = d.flashWords * 2 - 1; break;
+            case MEM_EEPROM: memLo = 0; memHi = d.eepromBytes - 1; break;
+            default:         memLo = d.sramStart; memHi = d.ramEnd; break;
+        }
+        memoryModel.fireTableDataChanged();
+    }
+
+    // Byte at addr in the current region, or -1 if there is nothing to show yet.
+    private int memByte(int addr) {
+        if(addr < memLo || addr > memHi) return -1;
+        switch(memRegion) {
+            case MEM_FLASH: {
+                AvrCore c = core;
+                if(c == null || (addr >> 1) >= c.flash.length) return -1;
+                return (c.flash[addr >> 1] >> ((addr & 1) * 8)) & 0xFF;
+            }
+            case MEM_EEPROM: return addr < frontSnap.eeprom.length ? frontSnap.eeprom[addr] : -1;
+            default:         return addr < frontSnap.mem.length ? frontSnap.mem[addr] : -1;
+        }
+    }
+
+    // Stamps the bytes that differ between the new snapshot and the one on screen.
+    private long[] stampChanges(int[] now, int[] shown, long[] changedAt) {
+        if(changedAt.length != now.length) {
+            changedAt = new long[now.length];
+            Arrays.fill(changedAt, Long.MIN_VALUE / 2);
+        }
+        if(shown.length != now.length) return changedAt;   // new part: nothing to compare with
+        for(int i=0; i<now.length; i++) if(now[i] != shown[i]) changedAt[i] = memFrame;
+        return changedAt;
+    }
+
+    private Color changeColor(int addr, Color base) {
+        long[] at = memRegion == MEM_EEPROM ? eeChangedAt : memRegion == MEM_FLASH ? null : dataChangedAt;
+        if(at == null || addr < 0 || addr >= at.length) return base;
+        long age = memFrame - at[addr];
+        if(age >= MEM_FADE) return base;
+        float f = 1f - (float) age / MEM_FADE;
+        return new Color((int) (base.getRed() + f * (MEM_CHANGED.getRed() - base.getRed())),
+                         (int) (base.getGreen() + f * (MEM_CHANGED.getGreen() - base.getGreen())),
+                         (int) (base.getBlue() + f * (MEM_CHANGED.getBlue() - base.getBlue())));
+    }
+
+    // --- GUI SNAPSHOTS ---
+    // The sim thread never touches Swing. When the refresh timer asks for a frame, the sim
+    // thread copies its state into the back buffer. The timer copies that into the render
+    // buffer, which is all it does under the lock, then diffs it against the front buffer (what
+    // is on screen) and only touches register rows and port bits that changed. The render and
+    // front buffers then swap roles.
+
+    private static final class SimSnapshot {
+        final int[] registers = new int[32];
+        final int[] io = new int[64];
+        int pc;
+        long cycles;
+
+        // Registers and I/O are the first 96 bytes of the data space.
+        void copyFrom(int[] data, int pcVal, long cyc) {
+            System.arraycopy(data, 0, registers, 0, 32);
+            System.arraycopy(data, AvrCore.IO_BASE, io, 0, 64);
+            pc = pcVal;
+            cycles = cyc;
+        }
+
+        void copyFrom(SimSnapshot o) {
+            System.arraycopy(o.registers, 0, registers, 0, 32);
+            System.arraycopy(o.io, 0, io, 0, 64);
+            pc = o.pc;
+            cycles = o.cycles;
+            copyMemory(o.mem, o.eeprom);
+        }
+
+        // The whole data space (a couple of KB) and the EEPROM, for the memory view.
+        int[] mem = new int[0], eeprom = new int[0];
+
+        void copyMemory(int[] data, int[] ee) {
+            if(mem.length != data.length) mem = new int[data.length];
+            if(eeprom.length != ee.length) eeprom = new int[ee.length];
+            System.arraycopy(data, 0, mem, 0, data.length);
+            System.arraycopy(ee, 0, eeprom, 0, ee.length);
+        }
+    }
+
+    private static final String[] PORT_NAMES = {"PORTA", "PORTB", "PORTC", "PORTD"};
+    private static final String[] BIN8 = new String[256], HEX8 = new String[256], DEC8 = new String[256], HEX2 = new String[256];
+    static {
+        for(int i=0; i<256; i++) {
+            BIN8[i] = String.format("%8s", Integer.toBinaryString(i)).replace(' ', '0');
+            HEX8[i] = String.format("0x%02X", i);
+            HEX2[i] = String.format("%02X", i);
+            DEC8[i] = String.valueOf(i);
+        }
+    }
+
+    private final SimSnapshot backSnap = new SimSnapshot();   // written by the sim thread (under lock)
+    private SimSnapshot frontSnap = new SimSnapshot();        // what the EDT last rendered
+    private SimSnapshot renderSnap = new SimSnapshot();       // EDT only; the frame being rendered
+    private volatile boolean snapRequested = true;
+    private boolean snapReady = false;                        // guarded by backSnap
+
+    // Called from the sim thread; costs one volatile read unless the timer asked for a frame.
+    private void publishSnapshot(boolean force) {
+        if(!force && !snapRequested) return;
+        WaveCapture w = core.wave;
+        if(w != null) w.update();
+        synchronized(backSnap) {
+            core.syncIo();
+            backSnap.copyFrom(core.data, core.pc, core.cycles);
+            backSnap.copyMemory(core.data, core.eeprom != null ? core.eeprom.bytes : new int[0]);
+            snapReady = true;
+        }
+        snapRequested = false;
+    }
+
+    private void renderSnapshot() {
+        boolean fresh;
+        synchronized(backSnap) {
+            fresh = snapReady;
+            if(fresh) {
+                renderSnap.copyFrom(backSnap);
+                snapReady = false;
+            }
+        }
+        if(fresh) {
+            SimSnapshot snap = renderSnap;
+            for(int i=0; i<32; i++) {
+                int val = snap.registers[i] & 0xFF;
+                if(val != frontSnap.registers[i]) {
+                    registerModel.setValueAt(BIN8[val], i, 1);
+                    registerModel.setValueAt(HEX8[val], i, 2);
+                    registerModel.setValueAt(DEC8[val], i, 3);
+                }
+            }
+            int[] ports = core.device.ports;
+            for(int p=0; p<ports.length; p++) {
+                int addr = ports[p];
+                if(addr < 0) continue;
+                int diff = snap.io[addr] ^ frontSnap.io[addr];
+                if(diff == 0) continue;
+                JCheckBox[] bits = ioBits.get(PORT_NAMES[p]);
+                for(int i=0; i<8; i++) {
+                    if((diff & (1 << i)) != 0) bits[i].setSelected((snap.io[addr] & (1 << i)) != 0);
+                }
+            }
+            int sp = snap.io[0x3D] | snap.io[0x3E] << 8;
+            if(snap.pc != frontSnap.pc || sp != (frontSnap.io[0x3D] | frontSnap.io[0x3E] << 8)) {
+                pcLabel.setText(String.format("PC: 0x%04X  SP: 0x%04X ", snap.pc*2, sp));
+                if(listing != null && snap.pc >= 0 && snap.pc < listing.length) gutter.setPcLine(listing[snap.pc]);
+            }
+            if(snap.cycles != frontSnap.cycles) cycleLabel.setText("Cycles: " + snap.cycles + " ");
+            memFrame++;
+            dataChangedAt = stampChanges(snap.mem, frontSnap.mem, dataChangedAt);
+            eeChangedAt = stampChanges(snap.eeprom, frontSnap.eeprom, eeChangedAt);
+            Profiler p = lastProfile;
+            long now = System.currentTimeMillis();
+            if(profiling && p != null && listing != null && now - heatShown >= 500) {
+                heatShown = now;
+                gutter.setHeat(lineHeat(p));
+            }
+            renderSnap = frontSnap;
+            frontSnap = snap;
+            if(memRegion != MEM_FLASH) memoryTable.repaint();
+        }
+        snapRequested = true;
+    }
+
+    // --- DEVICES ---
+    // Per-part constants shared by the assembler and the simulator. I/O register names map to
+    // their I/O address (0x00-0x3F, as with __SFR_OFFSET 0) or, above that, their data address.
+
+    static final class Device {
+        static final Device ATMEGA32 = new Device("ATmega32", 16384, 0x085F, 1024, names(
+            "TWBR", 0x00, "TWSR", 0x01, "TWAR", 0x02, "TWDR", 0x03, "ADCL", 0x04, "ADCH", 0x05, "ADCSRA", 0x06, "ADCSR", 0x06,
+            "ADMUX", 0x07, "ACSR", 0x08, "UBRRL", 0x09, "UCSRB", 0x0A, "UCSRA", 0x0B, "UDR", 0x0C, "SPCR", 0x0D, "SPSR", 0x0E,
+            "SPDR", 0x0F, "PIND", 0x10, "DDRD", 0x11, "PORTD", 0x12, "PINC", 0x13, "DDRC", 0x14, "PORTC", 0x15, "PINB", 0x16,
+            "DDRB", 0x17, "PORTB", 0x18, "PINA", 0x19, "DDRA", 0x1A, "PORTA", 0x1B, "EECR", 0x1C, "EEDR", 0x1D, "EEARL", 0x1E,
+            "EEARH", 0x1F, "UBRRH", 0x20, "UCSRC", 0x20, "WDTCR", 0x21, "ASSR", 0x22, "OCR2", 0x23, "TCNT2", 0x24, "TCCR2", 0x25,
+            "ICR1L", 0x26, "ICR1H", 0x27, "OCR1BL", 0x28, "OCR1BH", 0x29, "OCR1AL", 0x2A, "OCR1AH", 0x2B, "TCNT1L", 0x2C,
+            "TCNT1H", 0x2D, "TCCR1B", 0x2E, "TCCR1A", 0x2F, "SFIOR", 0x30, "OSCCAL", 0x31, "OCDR", 0x31, "TCNT0", 0x32,
+            "TCCR0", 0x33, "MCUCSR", 0x34, "MCUCR", 0x35, "TWCR", 0x36, "SPMCR", 0x37, "TIFR", 0x38, "TIMSK", 0x39,
+            "GIFR", 0x3A, "GICR", 0x3B, "OCR0", 0x3C, "SPL", 0x3D, "SPH", 0x3E, "SREG", 0x3F), names(
+            "FOC0", 7, "WGM00", 6, "COM01", 5, "COM00", 4, "WGM01", 3, "CS02", 2, "CS01", 1, "CS00", 0,
+            "OCIE2", 7, "TOIE2", 6, "TICIE1", 5, "OCIE1A", 4, "OCIE1B", 3, "TOIE1", 2, "OCIE0", 1, "TOIE0", 0,
+            "OCF2", 7, "TOV2", 6, "ICF1", 5, "OCF1A", 4, "OCF1B", 3, "TOV1", 2, "OCF0", 1, "TOV0", 0,
+            "COM1A1", 7, "COM1A0", 6, "COM1B1", 5, "COM1B0", 4, "FOC1A", 3, "FOC1B", 2, "WGM11", 1, "WGM10", 0,
+            "ICNC1", 7, "ICES1", 6, "WGM13", 4, "WGM12", 3, "CS12", 2, "CS11", 1, "CS10", 0,
+            "FOC2", 7, "WGM20", 6, "COM21", 5, "COM20", 4, "WGM21", 3, "CS22", 2, "CS21", 1, "CS20", 0,
+            "RXC", 7, "TXC", 6, "UDRE", 5, "FE", 4, "DOR", 3, "PE", 2, "U2X", 1, "MPCM", 0,
+            "RXCIE", 7, "TXCIE", 6, "UDRIE", 5, "RXEN", 4, "TXEN", 3, "UCSZ2", 2, "RXB8", 1, "TXB8", 0,
+            "URSEL", 7, "UMSEL", 6, "UPM1", 5, "UPM0", 4, "USBS", 3, "UCSZ1", 2, "UCSZ0", 1, "UCPOL", 0,
+            "SE", 7, "SM2", 6, "SM1", 5, "SM0", 4, "ISC11", 3, "ISC10", 2, "ISC01", 1, "ISC00", 0,
+            "INT1", 7, "INT0", 6, "INT2", 5, "IVSEL", 1, "IVCE", 0, "INTF1", 7, "INTF0", 6, "INTF2", 5, "ISC2", 6,
+            "EERIE", 3, "EEMWE", 2, "EEWE", 1, "EERE", 0), names(
+            "INT0", 1, "INT1", 2, "INT2", 3, "TIMER2_COMP", 4, "TIMER2_OVF", 5, "TIMER1_CAPT", 6, "TIMER1_COMPA", 7,
+            "TIMER1_COMPB", 8, "TIMER1_OVF", 9, "TIMER0_COMP", 10, "TIMER0_OVF", 11, "SPI_STC", 12, "USART_RXC", 13,
+            "USART_UDRE", 14, "USART_TXC", 15, "ADC", 16, "EE_RDY", 17, "ANA_COMP", 18, "TWI", 19, "SPM_RDY", 20));
+
+        static final Device ATMEGA328P = new Device("ATmega328P", 16384, 0x08FF, 1024, names(
+            "PINB", 0x03, "DDRB", 0x04, "PORTB", 0x05, "PINC", 0x06, "DDRC", 0x07, "PORTC", 0x08, "PIND", 0x09, "DDRD", 0x0A,
+            "PORTD", 0x0B, "TIFR0", 0x15, "TIFR1", 0x16, "TIFR2", 0x17, "PCIFR", 0x1B, "EIFR", 0x1C, "EIMSK", 0x1D,
+            "GPIOR0", 0x1E, "EECR", 0x1F, "EEDR", 0x20, "EEARL", 0x21, "EEARH", 0x22, "GTCCR", 0x23, "TCCR0A", 0x24,
+            "TCCR0B", 0x25, "TCNT0", 0x26, "OCR0A", 0x27, "OCR0B", 0x28, "GPIOR1", 0x2A, "GPIOR2", 0x2B, "SPCR", 0x2C,
+            "SPSR", 0x2D, "SPDR", 0x2E, "ACSR", 0x30, "SMCR", 0x33, "MCUSR", 0x34, "MCUCR", 0x35, "SPMCSR", 0x37,
+            "SPL", 0x3D, "SPH", 0x3E, "SREG", 0x3F,
+            "WDTCSR", 0x60, "CLKPR", 0x61, "PRR", 0x64, "OSCCAL", 0x66, "PCICR", 0x68, "EICRA", 0x69, "PCMSK0", 0x6B,
+            "PCMSK1", 0x6C, "PCMSK2", 0x6D, "TIMSK0", 0x6E, "TIMSK1", 0x6F, "TIMSK2", 0x70, "ADCL", 0x78, "ADCH", 0x79,
+            "ADCSRA", 0x7A, "ADCSRB", 0x7B, "ADMUX", 0x7C, "DIDR0", 0x7E, "DIDR1", 0x7F, "TCCR1A", 0x80, "TCCR1B", 0x81,
+            "TCCR1C", 0x82, "TCNT1L", 0x84, "TCNT1H", 0x85, "ICR1L", 0x86, "ICR1H", 0x87, "OCR1AL", 0x88, "OCR1AH", 0x89,
+            "OCR1BL", 0x8A, "OCR1BH", 0x8B, "TCCR2A", 0xB0, "TCCR2B", 0xB1, "TCNT2", 0xB2, "OCR2A", 0xB3, "OCR2B", 0xB4,
+            "ASSR", 0xB6, "TWBR", 0xB8, "TWSR", 0xB9, "TWAR", 0xBA, "TWDR", 0xBB, "TWCR", 0xBC, "TWAMR", 0xBD,
+            "UCSR0A", 0xC0, "UCSR0B", 0xC1, "UCSR0C", 0xC2, "UBRR0L", 0xC4, "UBRR0H", 0xC5, "UDR0", 0xC6), names(
+            "COM0A1", 7, "COM0A0", 6, "COM0B1", 5, "COM0B0", 4, "WGM01", 1, "WGM00", 0,
+            "FOC0A", 7, "FOC0B", 6, "WGM02", 3, "CS02", 2, "CS01", 1, "CS00", 0,
+            "OCIE0B", 2, "OCIE0A", 1, "TOIE0", 0, "OCF0B", 2, "OCF0A", 1, "TOV0", 0,
+            "COM1A1", 7, "COM1A0", 6, "COM1B1", 5, "COM1B0", 4, "WGM11", 1, "WGM10", 0,
+            "ICNC1", 7, "ICES1", 6, "WGM13", 4, "WGM12", 3, "CS12", 2, "CS11", 1, "CS10", 0,
+            "ICIE1", 5, "OCIE1B", 2, "OCIE1A", 1, "TOIE1", 0, "ICF1", 5, "OCF1B", 2, "OCF1A", 1, "TOV1", 0,
+            "COM2A1", 7, "COM2A0", 6, "COM2B1", 5, "COM2B0", 4, "WGM21", 1, "WGM20", 0,
+            "FOC2A", 7, "FOC2B", 6, "WGM22", 3, "CS22", 2, "CS21", 1, "CS20", 0,
+            "OCIE2B", 2, "OCIE2A", 1, "TOIE2", 0, "OCF2B", 2, "OCF2A", 1, "TOV2", 0,
+            "RXC0", 7, "TXC0", 6, "UDRE0", 5, "FE0", 4, "DOR0", 3, "UPE0", 2, "U2X0", 1, "MPCM0", 0,
+            "RXCIE0", 7, "TXCIE0", 6, "UDRIE0", 5, "RXEN0", 4, "TXEN0", 3, "UCSZ02", 2, "RXB80", 1, "TXB80", 0,
+            "UMSEL01", 7, "UMSEL00", 6, "UPM01", 5, "UPM00", 4, "USBS0", 3, "UCSZ01", 2, "UCSZ00", 1, "UCPOL0", 0,
+            "ISC11", 3, "ISC10", 2, "ISC01", 1, "ISC00", 0, "INT1", 1, "INT0", 0, "INTF1", 1, "INTF0", 0,
+            "PCIE2", 2, "PCIE1", 1, "PCIE0", 0, "PCIF2", 2, "PCIF1", 1, "PCIF0", 0,
+            "SM2", 3, "SM1", 2, "SM0", 1, "SE", 0,
+            "EEPM1", 5, "EEPM0", 4, "EERIE", 3, "EEMPE", 2, "EEPE", 1, "EERE", 0), names(
+            "INT0", 1, "INT1", 2, "PCINT0", 3, "PCINT1", 4, "PCINT2", 5, "WDT", 6, "TIMER2_COMPA", 7, "TIMER2_COMPB", 8,
+            "TIMER2_OVF", 9, "TIMER1_CAPT", 10, "TIMER1_COMPA", 11, "TIMER1_COMPB", 12, "TIMER1_OVF", 13,
+            "TIMER0_COMPA", 14, "TIMER0_COMPB", 15, "TIMER0_OVF", 16, "SPI_STC", 17, "USART_RX", 18, "USART_UDRE", 19,
+            "USART_TX", 20, "ADC", 21, "EE_READY", 22, "ANALOG_COMP", 23, "TWI", 24, "SPM_READY", 25));
+
+        final String name;
+        final int flashWords;
+        final int ramEnd;
+        final int sramStart;                  // first SRAM address, after the (extended) I/O space
+        final int eepromBytes;
+        final Map<String, Integer> symbols;   // I/O names, bit names, NAME_vect_num, port pins, RAMEND / FLASHEND
+        final Map<String, Integer> vectors;   // interrupt vector numbers by avr-libc name (without _vect)
+        final int[] ports;                    // I/O address of PORTA..PORTD, -1 if the part lacks it
+        private final Map<String, Integer> io;
+
+        private Device(String name, int flashWords, int ramEnd, int eepromBytes, Map<String, Integer> io, Map<String, Integer> bits, Map<String, Integer> vectors) {
+            this.name = name;
+            this.flashWords = flashWords;
+            this.ramEnd = ramEnd;
+            this.eepromBytes = eepromBytes;
+            this.sramStart = io.values().stream().anyMatch(a -> a >= 0x40) ? 0x100 : 0x60;
+            this.vectors = Collections.unmodifiableMap(vectors);
+            this.io = io;
+            Map<String, Integer> m = new HashMap<>(bits);
+            m.putAll(io);
+            for(Map.Entry<String, Integer> v : vectors.entrySet()) m.put(v.getKey() + "_VECT_NUM", v.getValue());
+            for(char p = 'A'; p <= 'D'; p++) {
+                if(!io.containsKey("PORT" + p)) continue;
+                for(int b=0; b<8; b++) {
+                    m.put("P" + p + b, b); m.put("PORT" + p + b, b); m.put("DD" + p + b, b); m.put("PIN" + p + b, b);
+                }
+            }
+            String[] sregBits = {"SREG_C", "SREG_Z", "SREG_N", "SREG_V", "SREG_S", "SREG_H", "SREG_T", "SREG_I"};
+            for(int b=0; b<8; b++) m.put(sregBits[b], b);
+            m.put("RAMEND", ramEnd);
+            m.put("FLASHEND", flashWords * 2 - 1);
+            m.put("E2END", eepromBytes - 1);
+            this.symbols = Collections.unmodifiableMap(m);
+            ports = new int[]{io.getOrDefault("PORTA", -1), io.getOrDefault("PORTB", -1), io.getOrDefault("PORTC", -1), io.getOrDefault("PORTD", -1)};
+        }
+
+        static Device byName(String name) {
+            return ATMEGA328P.name.equalsIgnoreCase(name) ? ATMEGA328P : ATMEGA32;
+        }
+
+        // Data-space address of an I/O register, or -1 if the part does not have it.
+        int reg(String name) {
+            Integer a = io.get(name);
+            if(a == null) return -1;
+            return a < 0x40 ? a + AvrCore.IO_BASE : a;
+        }
+
+        int vector(String name) { return vectors.getOrDefault(name, -1); }
+
+        // I/O register name(s) at a data-space address ("UBRRH/UCSRC"), or null.
+        String regName(int addr) {
+            StringBuilder sb = new StringBuilder();
+            for(String n : new TreeSet<>(io.keySet())) {
+                if(reg(n) != addr) continue;
+                if(sb.length() > 0) sb.append('/');
+                sb.append(n);
+            }
+            return sb.length() > 0 ? sb.toString() : null;
+        }
+
+        private static Map<String, Integer> names(Object... kv) {
+            Map<String, Integer> m = new HashMap<>();
+            for(int i=0; i<kv.length; i+=2) m.put((String) kv[i], (Integer) kv[i + 1]);
+            return m;
+        }
+    }
+
+    // --- BUILT-IN ASSEMBLER ---
+    // Two-pass AVR assembler that turns the editor text straight into a flash image, with no
+    // files or processes involved. Pass 1 sizes every statement and assigns labels; pass 2
+    // evaluates operands and encodes. Atmel-style (.equ X = 1, .def, $FF, LOW()) and GNU-style
+    // (.equ X, 1, lo8(), #include) sources are both accepted. Labels and .org are byte addresses,
+    // as with avr-gcc, so the output can be cross-checked word for word against the GCC build.
+    // Atmel's assembler treats both as word addresses; the idioms that only make sense there (an
+    // odd .org, LABEL*2) are reported as warnings.
+
+    static final class Assembler {
+        static final class Result {
+            final int[] flash;                                // sized to the device's flash
+            final int[] lineOfWord;                           // zero-based source line per word, -1 if none
+            final java.util.List<String> errors = new ArrayList<>();
+            final java.util.List<String> warnings = new ArrayList<>();   // likely Atmel word-address idioms
+            final Map<String, Integer> labels = new HashMap<>();   // upper-case name -> byte address
+            int sizeWords;                                    // highest emitted word address + 1
+
+            Result(int words) {
+                flash = new int[words];
+                lineOfWord = new int[words];
+                Arrays.fill(lineOfWord, -1);
+            }
+        }
+
+        private static final class Stmt {
+            final int line; final String op; final String[] args; int addr;
+            Stmt(int line, String op, String[] args) { this.line = line; this.op = op; this.args = args; }
+        }
+
+        // Operand formats
+        private static final int F_NONE = 0, F_RD_RR = 1, F_RD = 2, F_RD_K = 3, F_RD_SELF = 4, F_SER = 5, F_CBR = 6,
+                F_ADIW = 7, F_MOVW = 8, F_MULS = 9, F_FMUL = 10, F_BRANCH = 11, F_BRBX = 12, F_RJMP = 13, F_JMP = 14,
+                F_IN = 15, F_OUT = 16, F_IO_BIT = 17, F_REG_BIT = 18, F_SREG_BIT = 19, F_LDS = 20, F_STS = 21,
+                F_LD = 22, F_ST = 23, F_LDD = 24, F_STD = 25, F_LPM = 26;
+
+        private static final Map<String, int[]> OPS = new HashMap<>();
+        private static void op(int format, int base, String... names) { for(String n : names) OPS.put(n, new int[]{format, base}); }
+        static {
+            op(F_NONE, 0x0000, "NOP");
+            op(F_NONE, 0x9408, "SEC"); op(F_NONE, 0x9488, "CLC"); op(F_NONE, 0x9428, "SEN"); op(F_NONE, 0x94A8, "CLN");
+            op(F_NONE, 0x9418, "SEZ"); op(F_NONE, 0x9498, "CLZ"); op(F_NONE, 0x9478, "SEI"); op(F_NONE, 0x94F8, "CLI");
+            op(F_NONE, 0x9448, "SES"); op(F_NONE, 0x94C8, "CLS"); op(F_NONE, 0x9438, "SEV"); op(F_NONE, 0x94B8, "CLV");
+            op(F_NONE, 0x9468, "SET"); op(F_NONE, 0x94E8, "CLT"); op(F_NONE, 0x9458, "SEH"); op(F_NONE, 0x94D8, "CLH");
+            op(F_NONE, 0x9508, "RET"); op(F_NONE, 0x9518, "RETI"); op(F_NONE, 0x9588, "SLEEP"); op(F_NONE, 0x9598, "BREAK");
+            op(F_NONE, 0x95A8, "WDR"); op(F_NONE, 0x9409, "IJMP"); op(F_NONE, 0x9509, "ICALL"); op(F_NONE, 0x9419, "EIJMP");
+            op(F_NONE, 0x9519, "EICALL"); op(F_NONE, 0x95E8, "SPM");
+            op(F_LPM, 0x95C8, "LPM"); op(F_LPM, 0x95D8, "ELPM");
+
+            op(F_RD_RR, 0x0400, "CPC"); op(F_RD_RR, 0x0800, "SBC"); op(F_RD_RR, 0x0C00, "ADD"); op(F_RD_RR, 0x1000, "CPSE");
+            op(F_RD_RR, 0x1400, "CP"); op(F_RD_RR, 0x1800, "SUB"); op(F_RD_RR, 0x1C00, "ADC"); op(F_RD_RR, 0x2000, "AND");
+            op(F_RD_RR, 0x2400, "EOR"); op(F_RD_RR, 0x2800, "OR"); op(F_RD_RR, 0x2C00, "MOV"); op(F_RD_RR, 0x9C00, "MUL");
+            op(F_RD_SELF, 0x0C00, "LSL"); op(F_RD_SELF, 0x1C00, "ROL"); op(F_RD_SELF, 0x2000, "TST"); op(F_RD_SELF, 0x2400, "CLR");
+
+            op(F_RD, 0x9400, "COM"); op(F_RD, 0x9401, "NEG"); op(F_RD, 0x9402, "SWAP"); op(F_RD, 0x9403, "INC");
+            op(F_RD, 0x9405, "ASR"); op(F_RD, 0x9406, "LSR"); op(F_RD, 0x9407, "ROR"); op(F_RD, 0x940A, "DEC");
+            op(F_RD, 0x920F, "PUSH"); op(F_RD, 0x900F, "POP");
+
+            op(F_RD_K, 0x3000, "CPI"); op(F_RD_K, 0x4000, "SBCI"); op(F_RD_K, 0x5000, "SUBI"); op(F_RD_K, 0x6000, "ORI", "SBR");
+            op(F_RD_K, 0x7000, "ANDI"); op(F_RD_K, 0xE000, "LDI"); op(F_CBR, 0x7000, "CBR"); op(F_SER, 0xEF0F, "SER");
+            op(F_ADIW, 0x9600, "ADIW"); op(F_ADIW, 0x9700, "SBIW"); op(F_MOVW, 0x0100, "MOVW"); op(F_MULS, 0x0200, "MULS");
+            op(F_FMUL, 0x0300, "MULSU"); op(F_FMUL, 0x0308, "FMUL"); op(F_FMUL, 0x0380, "FMULS"); op(F_FMUL, 0x0388, "FMULSU");
+
+            op(F_BRANCH, 0xF000, "BRCS", "BRLO"); op(F_BRANCH, 0xF001, "BREQ"); op(F_BRANCH, 0xF002, "BRMI");
+            op(F_BRANCH, 0xF003, "BRVS"); op(F_BRANCH, 0xF004, "BRLT"); op(F_BRANCH, 0xF005, "BRHS");
+            op(F_BRANCH, 0xF006, "BRTS"); op(F_BRANCH, 0xF007, "BRIE"); op(F_BRANCH, 0xF400, "BRCC", "BRSH");
+            op(F_BRANCH, 0xF401, "BRNE"); op(F_BRANCH, 0xF402, "BRPL"); op(F_BRANCH, 0xF403, "BRVC");
+            op(F_BRANCH, 0xF404, "BRGE"); op(F_BRANCH, 0xF405, "BRHC"); op(F_BRANCH, 0xF406, "BRTC");
+            op(F_BRANCH, 0xF407, "BRID"); op(F_BRBX, 0xF000, "BRBS"); op(F_BRBX, 0xF400, "BRBC");
+            op(F_RJMP, 0xC000, "RJMP"); op(F_RJMP, 0xD000, "RCALL"); op(F_JMP, 0x940C, "JMP"); op(F_JMP, 0x940E, "CALL");
+
+            op(F_IN, 0xB000, "IN"); op(F_OUT, 0xB800, "OUT");
+            op(F_IO_BIT, 0x9800, "CBI"); op(F_IO_BIT, 0x9900, "SBIC"); op(F_IO_BIT, 0x9A00, "SBI"); op(F_IO_BIT, 0x9B00, "SBIS");
+            op(F_REG_BIT, 0xF800, "BLD"); op(F_REG_BIT, 0xFA00, "BST"); op(F_REG_BIT, 0xFC00, "SBRC"); op(F_REG_BIT, 0xFE00, "SBRS");
+            op(F_SREG_BIT, 0x9408, "BSET"); op(F_SREG_BIT, 0x9488, "BCLR");
+            op(F_LDS, 0x9000, "LDS"); op(F_STS, 0x9200, "STS");
+            op(F_LD, 0, "LD"); op(F_ST, 0, "ST"); op(F_LDD, 0, "LDD"); op(F_STD, 0, "STD");
+        }
+
+        private static final Map<String, Integer> REG_NAMES = new HashMap<>();
+        static {
+            for(int i=0; i<32; i++) REG_NAMES.put("R" + i, i);
+            REG_NAMES.put("XL", 26); REG_NAMES.put("XH", 27); REG_NAMES.put("YL", 28);
+            REG_NAMES.put("YH", 29); REG_NAMES.put("ZL", 30); REG_NAMES.put("ZH", 31);
+        }
+
+        // Directives that only matter to the GNU toolchain or the Atmel IDE.
+        private static final Set<String> IGNORED = new HashSet<>(Arrays.asList(
+            ".INCLUDE", ".GLOBAL", ".GLOBL", ".SECTION", ".TEXT", ".CSEG", ".LIST", ".NOLIST", ".DEVICE",
+            ".FUNC", ".ENDFUNC", ".TYPE", ".SIZE", ".FILE", ".EXTERN", ".END", ".EXIT", ".LISTMAC"));
+
+        private final Device dev;
+        private final Map<String, Integer> symbols = new HashMap<>();
+        private final Map<String, Integer> regAliases = new HashMap<>();
+        private final Result out;
+        private int curLine;
+        private int curAddr;   // word address of the statement being processed ('.' in expressions)
+
+        private Assembler(Device dev) {
+            this.dev = dev;
+            out = new Result(dev.flashWords);
+            symbols.putAll(dev.symbols);
+        }
+
+        static Result assemble(String source, Device dev) {
+            Assembler a = new Assembler(dev);
+            java.util.List<Stmt> stmts = a.pass1(source.split("\n", -1));
+            if(a.out.errors.isEmpty()) a.pass2(stmts);
+            return a.out;
+        }
+
+        // --- Pass 1: split lines, assign addresses and labels, evaluate .equ / .def ---
+
+        private java.util.List<Stmt> pass1(String[] lines) {
+            java.util.List<Stmt> stmts = new ArrayList<>();
+            int pc = 0;
+            for(int i=0; i<lines.length; i++) {
+                curLine = i;
+                curAddr = pc;
+                String t = stripComment(lines[i]).trim();
+                if(t.isEmpty() || t.startsWith("#")) continue;
+
+                // Leading labels ("LOOP:", "L1: DEC R20")
+                int colon;
+                while((colon = labelEnd(t)) > 0) {
+                    String label = t.substring(0, colon).trim().toUpperCase();
+                    if(symbols.containsKey(label)) error("duplicate symbol '" + label + "'");
+                    else { symbols.put(label, pc * 2); out.labels.put(label, pc * 2); }
+                    t = t.substring(colon + 1).trim();
+                }
+                if(t.isEmpty()) continue;
+
+                // GNU assignment: NAME = expr
+                int eq = t.indexOf('=');
+                if(eq > 0 && isIdentifier(t.substring(0, eq).trim()) && !t.startsWith(".")) {
+                    define(t.substring(0, eq).trim(), t.substring(eq + 1).trim());
+                    continue;
+                }
+
+                int sp = firstSpace(t);
+                String op = (sp < 0 ? t : t.substring(0, sp)).toUpperCase();
+                String rest = sp < 0 ? "" : t.substring(sp).trim();
+
+                if(op.startsWith(".")) {
+                    switch(op) {
+                        case ".EQU": case ".SET": {
+                            int sep = indexOfAny(rest, '=', ',');
+                            if(sep < 0) { error(op + " expects NAME = value"); break; }
+                            define(rest.substring(0, sep).trim(), rest.substring(sep + 1).trim());
+                            break;
+                        }
+                        case ".DEF": {
+                            int sep = indexOfAny(rest, '=', ',');
+                            if(sep < 0) { error(".DEF expects NAME = register"); break; }
+                            int reg = parseReg(rest.substring(sep + 1).trim());
+                            if(reg >= 0) regAliases.put(rest.substring(0, sep).trim().toUpperCase(), reg);
+                            break;
+                        }
+                        case ".UNDEF":
+                            regAliases.remove(rest.trim().toUpperCase());
+                            break;
+                        case ".ORG": {
+                            long v = eval(rest);
+                            if(v < 0 || v >= dev.flashWords * 2L) { error(String.format(".ORG address out of range (%s flash ends at 0x%X)", dev.name, dev.flashWords * 2 - 1)); break; }
+                            if((v & 1) != 0) warn(String.format(".ORG 0x%X is an odd byte address; .org takes byte addresses here, as in avr-gcc", v));
+                            pc = (int) ((v + 1) / 2);
+                            break;
+                        }
+                        case ".DW": case ".WORD": case ".DB": case ".BYTE": case ".ASCII": case ".ASCIZ": case ".STRING": {
+                            Stmt s = new Stmt(i, op, splitArgs(rest));
+                            s.addr = pc;
+                            stmts.add(s);
+                            pc += dataWords(s);
+                            break;
+                        }
+                        case ".ALIGN": case ".BALIGN": case ".P2ALIGN":
+                            break;   // code is always word aligned here
+                        case ".DSEG": case ".ESEG":
+                            error(op + " is not supported by the built-in assembler");
+                            break;
+                        default:
+                            if(!IGNORED.contains(op)) error("unknown directive " + op);
+                    }
+                    continue;
+                }
+
+                int[] desc = OPS.get(op);
+                if(desc == null) { error("unknown instruction '" + op + "'"); continue; }
+                Stmt s = new Stmt(i, op, splitArgs(rest));
+                s.addr = pc;
+                stmts.add(s);
+                pc += (desc[0] == F_JMP || desc[0] == F_LDS || desc[0] == F_STS) ? 2 : 1;
+                if(pc > dev.flashWords) { error(tooBig()); break; }
+            }
+            return stmts;
+        }
+
+        private void define(String name, String expr) {
+            if(!isIdentifier(name)) { error("bad symbol name '" + name + "'"); return; }
+            symbols.put(name.toUpperCase(), (int) eval(expr));
+        }
+
+        private int dataWords(Stmt s) {
+            if(s.op.equals(".DW") || s.op.equals(".WORD")) return s.args.length;
+            int bytes = 0;
+            boolean zero = s.op.equals(".ASCIZ") || s.op.equals(".STRING");
+            for(String a : s.args) bytes += isString(a) ? unquote(a).length() + (zero ? 1 : 0) : 1;   // as emitData writes them
+            return (bytes + 1) / 2;
+        }
+
+        // --- Pass 2: encode ---
+
+        private static final Pattern TIMES_TWO = Pattern.compile("(?<![\\w.$])(?:([A-Za-z_][\\w.]*)\\s*\\*\\s*2|2\\s*\\*\\s*([A-Za-z_][\\w.]*))(?![\\w.])");
+
+        private void pass2(java.util.List<Stmt> stmts) {
+            for(Stmt s : stmts) {
+                curLine = s.line;
+                curAddr = s.addr;
+                for(String a : s.args) {
+                    Matcher m = TIMES_TWO.matcher(a);
+                    while(m.find()) {
+                        String label = m.group(1) != null ? m.group(1) : m.group(2);
+                        if(out.labels.containsKey(label.toUpperCase())) warn("'" + m.group() + "' doubles a byte address; labels are byte addresses here, as in avr-gcc");
+                    }
+                }
+                if(s.op.startsWith(".")) emitData(s);
+                else emitInstruction(s, OPS.get(s.op));
+            }
+        }
+
+        private void emit(int addr, int word) {
+            if(addr >= dev.flashWords) { error(tooBig()); return; }
+            out.flash[addr] = word & 0xFFFF;
+            out.lineOfWord[addr] = curLine;
+            out.sizeWords = Math.max(out.sizeWords, addr + 1);
+        }
+
+        private String tooBig() { return String.format("program does not fit in flash (%s has %d words)", dev.name, dev.flashWords); }
+
+        private void emitData(Stmt s) {
+            int addr = s.addr;
+            if(s.op.equals(".DW") || s.op.equals(".WORD")) {
+                for(String a : s.args) emit(addr++, (int) eval(a));
+                return;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for(String a : s.args) {
+                if(isString(a)) {
+                    for(char c : unquote(a).toCharArray()) bytes.write(c);
+                    if(s.op.equals(".ASCIZ") || s.op.equals(".STRING")) bytes.write(0);
+                } else {
+                    bytes.write((int) eval(a));
+                }
+            }
+            byte[] b = bytes.toByteArray();
+            for(int i=0; i<b.length; i+=2) emit(addr++, (b[i] & 0xFF) | (i + 1 < b.length ? (b[i + 1] & 0xFF) << 8 : 0));
+        }
+
+        private void emitInstruction(Stmt s, int[] desc) {
+            int f = desc[0], base = desc[1];
+            String[] a = s.args;
+            int pc = s.addr;
+            switch(f) {
+                case F_NONE:
+                    if(argc(a, 0)) emit(pc, base);
+                    break;
+                case F_LPM:
+                    if(a.length == 0) { emit(pc, base); break; }
+                    if(!argc(a, 2)) break;
+                    String z = a[1].replace(" ", "").toUpperCase();
+                    int lpm = base == 0x95C8 ? 0x9004 : 0x9006;
+                    if(z.equals("Z")) emit(pc, lpm | reg(a[0]) << 4);
+                    else if(z.equals("Z+")) emit(pc, (lpm + 1) | reg(a[0]) << 4);
+                    else error(s.op + " only takes Z or Z+");
+                    break;
+                case F_RD_RR:
+                    if(argc(a, 2)) emit(pc, rdRr(base, reg(a[0]), reg(a[1])));
+                    break;
+                case F_RD_SELF:
+                    if(argc(a, 1)) { int d = reg(a[0]); emit(pc, rdRr(base, d, d)); }
+                    break;
+                case F_RD:
+                    if(argc(a, 1)) emit(pc, base | reg(a[0]) << 4);
+                    break;
+                case F_RD_K:
+                    if(argc(a, 2)) emit(pc, rdK(base, upperReg(a[0]), imm8(a[1])));
+                    break;
+                case F_CBR:
+                    if(argc(a, 2)) emit(pc, rdK(base, upperReg(a[0]), ~imm8(a[1]) & 0xFF));
+                    break;
+                case F_SER:
+                    if(argc(a, 1)) emit(pc, base | (upperReg(a[0]) - 16) << 4);
+                    break;
+                case F_ADIW: {
+                    if(!argc(a, 2)) break;
+                    int d = reg(a[0]);
+                    long k = eval(a[1]);
+                    if(d < 24 || (d & 1) != 0) error(s.op + " needs R24, R26, R28 or R30");
+                    else if(k < 0 || k > 63) error("constant out of range 0..63");
+                    else emit(pc, base | ((int) k & 0x30) << 2 | ((d - 24) / 2) << 4 | ((int) k & 0x0F));
+                    break;
+                }
+                case F_MOVW: {
+                    if(!argc(a, 2)) break;
+                    int d = reg(a[0]), r = reg(a[1]);
+                    if(((d | r) & 1) != 0) error("MOVW needs even registers");
+                    else emit(pc, base | (d / 2) << 4 | (r / 2));
+                    break;
+                }
+                case F_MULS: {
+                    if(!argc(a, 2)) break;
+                    emit(pc, base | (upperReg(a[0]) - 16) << 4 | (upperReg(a[1]) - 16));
+                    break;
+                }
+                case F_FMUL: {
+                    if(!argc(a, 2)) break;
+                    int d = reg(a[0]), r = reg(a[1]);
+                    if(d < 16 || d > 23 || r < 16 || r > 23) error(s.op + " needs registers R16..R23");
+                    else emit(pc, base | (d - 16) << 4 | (r - 16));
+                    break;
+                }
+                case F_BRANCH:
+                    if(argc(a, 1)) emit(pc, base | (relative(a[0], pc, 64) & 0x7F) << 3);
+                    break;
+                case F_BRBX:
+                    if(argc(a, 2)) emit(pc, base | (relative(a[1], pc, 64) & 0x7F) << 3 | bit(a[0]));
+                    break;
+                case F_RJMP:
+                    if(argc(a, 1)) emit(pc, base | (relative(a[0], pc, 2048) & 0x0FFF));
+                    break;
+                case F_JMP: {
+                    if(!argc(a, 1)) break;
+                    long k = eval(a[0]) / 2;
+                    if(k < 0 || k >= (1 << 22)) { error("jump target out of range"); break; }
+                    emit(pc, base | (int) ((k >> 17) & 0x1F) << 4 | (int) ((k >> 16) & 1));
+                    emit(pc + 1, (int) k);
+                    break;
+                }
+                case F_IN:
+                    if(argc(a, 2)) emit(pc, inOut(base, reg(a[0]), ioAddr(a[1], 63)));
+                    break;
+                case F_OUT:
+                    if(argc(a, 2)) emit(pc, inOut(base, reg(a[1]), ioAddr(a[0], 63)));
+                    break;
+                case F_IO_BIT:
+                    if(argc(a, 2)) emit(pc, base | ioAddr(a[0], 31) << 3 | bit(a[1]));
+                    break;
+                case F_REG_BIT:
+                    if(argc(a, 2)) emit(pc, base | reg(a[0]) << 4 | bit(a[1]));
+                    break;
+                case F_SREG_BIT:
+                    if(argc(a, 1)) emit(pc, base | bit(a[0]) << 4);
+                    break;
+                case F_LDS:
+                    if(argc(a, 2)) { emit(pc, base | reg(a[0]) << 4); emit(pc + 1, data16(a[1])); }
+                    break;
+                case F_STS:
+                    if(argc(a, 2)) { emit(pc, base | reg(a[1]) << 4); emit(pc + 1, data16(a[0])); }
+                    break;
+                case F_LD:
+                    if(argc(a, 2)) emit(pc, pointerOp(a[1], false) | reg(a[0]) << 4);
+                    break;
+                case F_ST:
+                    if(argc(a, 2)) emit(pc, pointerOp(a[0], true) | reg(a[1]) << 4);
+                    break;
+                case F_LDD:
+                    if(argc(a, 2)) emit(pc, displacement(a[1], false) | reg(a[0]) << 4);
+                    break;
+                case F_STD:
+                    if(argc(a, 2)) emit(pc, displacement(a[0], true) | reg(a[1]) << 4);
+                    break;
+                default:
+                    error("unhandled instruction " + s.op);
+            }
+        }
+
+        private static int rdRr(int base, int d, int r) { return base | (r & 0x10) << 5 | d << 4 | (r & 0x0F); }
+        private static int rdK(int base, int d, int k) { return base | (k & 0xF0) << 4 | (d - 16) << 4 | (k & 0x0F); }
+        private static int inOut(int base, int r, int a) { return base | (a & 0x30) << 5 | r << 4 | (a & 0x0F); }
+
+        // LD/ST through X, Y or Z with optional post-increment / pre-decrement.
+        private int pointerOp(String p, boolean store) {
+            String t = p.replace(" ", "").toUpperCase();
+            int code;
+            switch(t) {
+                case "X":  code = 0x900C; break;
+                case "X+": code = 0x900D; break;
+                case "-X": code = 0x900E; break;
+                case "Y":  code = 0x8008; break;
+                case "Y+": code = 0x9009; break;
+                case "-Y": code = 0x900A; break;
+                case "Z":  code = 0x8000; break;
+                case "Z+": code = 0x9001; break;
+                case "-Z": code = 0x9002; break;
+                default:
+                    if(t.startsWith("Y+") || t.startsWith("Z+")) return displacement(p, store);
+                    error("expected X, Y or Z pointer operand");
+                    return 0;
+            }
+            return store ? code | 0x0200 : code;
+        }
+
+        private int displacement(String p, boolean store) {
+            String t = p.replace(" ", "").toUpperCase();
+            if(!(t.startsWith("Y+") || t.startsWith("Z+")) || t.length() < 3) { error("expected Y+q or Z+q"); return 0; }
+            long q = eval(p.substring(p.indexOf('+') + 1));
+            if(q < 0 || q > 63) { error("displacement out of range 0..63"); return 0; }
+            int qi = (int) q;
+            int code = (t.charAt(0) == 'Y' ? 0x8008 : 0x8000) | (qi & 0x20) << 8 | (qi & 0x18) << 7 | (qi & 0x07);
+            return store ? code | 0x0200 : code;
+        }
+
+        // Word offset from the next instruction to a byte-address target.
+        private int relative(String target, int pc, int range) {
+            long t = eval(target);
+            if((t & 1) != 0) { error("branch target is not word aligned"); return 0; }
+            long k = t / 2 - (pc + 1);
+            if(k < -range || k >= range) { error("branch target out of range (" + k + " words)"); return 0; }
+            return (int) k;
+        }
+
+        private int imm8(String expr) {
+            long v = eval(expr);
+            if(v < -128 || v > 255) { error("constant out of range: " + v); return 0; }
+            return (int) v & 0xFF;
+        }
+
+        private int data16(String expr) {
+            long v = eval(expr);
+            if(v < 0 || v > 0xFFFF) { error("data address out of range"); return 0; }
+            return (int) v;
+        }
+
+        private int ioAddr(String expr, int max) {
+            long v = eval(expr);
+            if(v < 0 || v > max) { error("I/O address out of range 0.." + max + ": " + expr.trim()); return 0; }
+            return (int) v;
+        }
+
+        private int bit(String expr) {
+            long v = eval(expr);
+            if(v < 0 || v > 7) { error("bit number out of range 0..7"); return 0; }
+            return (int) v;
+        }
+
+        private int upperReg(String s) {
+            int r = reg(s);
+            if(r < 16) { error("register R16..R31 required, got " + s.trim()); return 16; }
+            return r;
+        }
+
+        private int reg(String s) {
+            int r = parseReg(s);
+            return r < 0 ? 0 : r;
+        }
+
+        private int parseReg(String s) {
+            String t = s.trim().toUpperCase();
+            Integer r = regAliases.get(t);
+            if(r == null) r = REG_NAMES.get(t);
+            if(r == null) { error("expected a register, got '" + s.trim() + "'"); return -1; }
+            return r;
+        }
+
+        private boolean argc(String[] a, int n) {
+            if(a.length == n) return true;
+            error("expected " + n + " operand(s), got " + a.length);
+            return false;
+        }
+
+        private void error(String msg) {
+            out.errors.add("line " + (curLine + 1) + ": " + msg);
+        }
+
+        private void warn(String msg) {
+            out.warnings.add("line " + (curLine + 1) + ": " + msg);
+        }
+
+        // --- Expressions ---
+        // Integer expressions with C operator precedence, numbers in 0x/$/0b/decimal/'c' form,
+        // symbols, '.' (current byte address) and lo8/hi8/LOW/HIGH/pm/_BV style functions.
+
+        private String ex;
+        private int exPos;
+
+        private long eval(String expr) {
+            ex = expr.trim();
+            exPos = 0;
+            if(ex.isEmpty()) { error("missing operand"); return 0; }
+            try {
+                long v = parseBinary(0);
+                skipWs();
+                if(exPos < ex.length()) throw new IllegalArgumentException("unexpected '" + ex.substring(exPos) + "'");
+                return v;
+            } catch(IllegalArgumentException e) {
+                error(e.getMessage() + " in '" + expr.trim() + "'");
+                return 0;
+            }
+        }
+
+        // Expressions outside a source file, over the device symbols plus whatever is bound
+        // (the fuzz harness binds register names to a case's values). Not thread-safe.
+        static final class Evaluator {
+            private final Assembler a;
+
+            Evaluator(Device dev) { a = new Assembler(dev); }
+
+            void bind(String name, int value) { a.symbols.put(name.toUpperCase(), value); }
+
+            long eval(String expr) {
+                a.out.errors.clear();
+                long v = a.eval(expr);
+                if(!a.out.errors.isEmpty()) {
+                    String msg = a.out.errors.get(0);
+                    throw new IllegalArgumentException(msg.substring(msg.indexOf(": ") + 2));
+                }
+                return v;
+            }
+        }
+
+        private static final String[][] BINARY_OPS = {
+            {"||"}, {"&&"}, {"|"}, {"^"}, {"&"}, {"==", "!="}, {"<=", ">=", "<", ">"}, {"<<", ">>"}, {"+", "-"}, {"*", "/", "%"}
+        };
+
+        private long parseBinary(int level) {
+            if(level == BINARY_OPS.length) return parseUnary();
+            long left = parseBinary(level + 1);
+            outer:
+            while(true) {
+                skipWs();
+                for(String o : BINARY_OPS[level]) {
+                    if(ex.startsWith(o, exPos) && !(o.length() == 1 && exPos + 1 < ex.length() && isDoubled(o.charAt(0), ex.charAt(exPos + 1)))) {
+                        exPos += o.length();
+                        long right = parseBinary(level + 1);
+                        left = apply(o, left, right);
+                        continue outer;
+                    }
+                }
+                return left;
+            }
+        }
+
+        // Keeps '<' from matching the first half of '<<' (and '|' of '||', '&' of '&&').
+        private static boolean isDoubled(char c, char next) {
+            return (c == '<' || c == '>' || c == '|' || c == '&') && (next == c || next == '=');
+        }
+
+        private static long apply(String o, long l, long r) {
+            switch(o) {
+                case "||": return (l != 0 || r != 0) ? 1 : 0;
+                case "&&": return (l != 0 && r != 0) ? 1 : 0;
+                case "|": return l | r;
+                case "^": return l ^ r;
+                case "&": return l & r;
+                case "==": return l == r ? 1 : 0;
+                case "!=": return l != r ? 1 : 0;
+                case "<=": return l <= r ? 1 : 0;
+                case ">=": return l >= r ? 1 : 0;
+                case "<": return l < r ? 1 : 0;
+                case ">": return l > r ? 1 : 0;
+                case "<<": return l << r;
+                case ">>": return l >> r;
+                case "+": return l + r;
+                case "-": return l - r;
+                case "*": return l * r;
+                case "/": if(r == 0) throw new IllegalArgumentException("division by zero"); return l / r;
+                default: if(r == 0) throw new IllegalArgumentException("division by zero"); return l % r;
+            }
+        }
+
+        private long parseUnary() {
+            skipWs();
+            if(exPos >= ex.length()) throw new IllegalArgumentException("missing operand");
+            char c = ex.charAt(exPos);
+            if(c == '-') { exPos++; return -parseUnary(); }
+            if(c == '+') { exPos++; return parseUnary(); }
+            if(c == '~') { exPos++; return ~parseUnary(); }
+            if(c == '!') { exPos++; return parseUnary() == 0 ? 1 : 0; }
+            if(c == '(') {
+                exPos++;
+                long v = parseBinary(0);
+                expect(')');
+                return v;
+            }
+            if(c == '\'') {
+                if(exPos + 2 >= ex.length() || ex.charAt(exPos + 2) != '\'') throw new IllegalArgumentException("bad character literal");
+                long v = ex.charAt(exPos + 1);
+                exPos += 3;
+                return v;
+            }
+            if(c == '$' && exPos + 1 < ex.length() && Character.digit(ex.charAt(exPos + 1), 16) >= 0) {
+                exPos++;
+                return number(16);
+            }
+            if(Character.isDigit(c)) {
+                if(c == '0' && exPos + 1 < ex.length()) {
+                    char p = Character.toLowerCase(ex.charAt(exPos + 1));
+                    if(p == 'x') { exPos += 2; return number(16); }
+                    if(p == 'b' && exPos + 2 < ex.length() && (ex.charAt(exPos + 2) == '0' || ex.charAt(exPos + 2) == '1')) { exPos += 2; return number(2); }
+                }
+                return number(10);
+            }
+            if(c == '.' && (exPos + 1 >= ex.length() || !isIdentChar(ex.charAt(exPos + 1)))) {
+                exPos++;
+                return curAddr * 2L;
+            }
+            if(isIdentStart(c)) {
+                int start = exPos;
+                while(exPos < ex.length() && isIdentChar(ex.charAt(exPos))) exPos++;
+                String name = ex.substring(start, exPos).toUpperCase();
+                skipWs();
+                if(exPos < ex.length() && ex.charAt(exPos) == '(') {
+                    exPos++;
+                    long arg = parseBinary(0);
+                    expect(')');
+                    return function(name, arg);
+                }
+                Integer v = symbols.get(name);
+                if(v == null) throw new IllegalArgumentException("undefined symbol '" + name + "'");
+                return v;
+            }
+            throw new IllegalArgumentException("unexpected '" + c + "'");
+        }
+
+        private static long function(String name, long v) {
+            switch(name) {
+                case "LO8": case "LOW": case "BYTE1": return v & 0xFF;
+                case "HI8": case "HIGH": case "BYTE2": return (v >> 8) & 0xFF;
+                case "HLO8": case "HH8": case "BYTE3": return (v >> 16) & 0xFF;
+                case "BYTE4": return (v >> 24) & 0xFF;
+                case "PM": case "GS": return v >> 1;
+                case "PM_LO8": return (v >> 1) & 0xFF;
+                case "PM_HI8": return (v >> 9) & 0xFF;
+                case "_BV": return 1L << v;
+                case "_SFR_IO_ADDR": case "_SFR_MEM_ADDR": return v;
+                default: throw new IllegalArgumentException("unknown function " + name + "()");
+            }
+        }
+
+        private long number(int radix) {
+            int start = exPos;
+            while(exPos < ex.length() && (Character.digit(ex.charAt(exPos), radix) >= 0 || ex.charAt(exPos) == '_')) exPos++;
+            if(start == exPos) throw new IllegalArgumentException("bad number");
+            if(exPos < ex.length() && isIdentChar(ex.charAt(exPos))) throw new IllegalArgumentException("bad number");
+            return Long.parseLong(ex.substring(start, exPos).replace("_", ""), radix);
+        }
+
+        private void expect(char c) {
+            skipWs();
+            if(exPos >= ex.length() || ex.charAt(exPos) != c) throw new IllegalArgumentException("expected '" + c + "'");
+            exPos++;
+        }
+
+        private void skipWs() { while(exPos < ex.length() && Character.isWhitespace(ex.charAt(exPos))) exPos++; }
+
+        // --- Line helpers ---
+
+        private static boolean isIdentStart(char c) { return Character.isLetter(c) || c == '_' || c == '.'; }
+        private static boolean isIdentChar(char c) { return Character.isLetterOrDigit(c) || c == '_' || c == '.' || c == '$'; }
+
+        private static boolean isIdentifier(String s) {
+            if(s.isEmpty() || !isIdentStart(s.charAt(0))) return false;
+            for(int i=1; i<s.length(); i++) if(!isIdentChar(s.charAt(i))) return false;
+            return true;
+        }
+
+        // Index of the ':' ending a leading label, or -1.
+        private static int labelEnd(String t) {
+            int i = 0;
+            if(i >= t.length() || !isIdentStart(t.charAt(i))) return -1;
+            while(i < t.length() && isIdentChar(t.charAt(i))) i++;
+            int j = i;
+            while(j < t.length() && (t.charAt(j) == ' ' || t.charAt(j) == '\t')) j++;
+            return j < t.length() && t.charAt(j) == ':' ? j : -1;
+        }
+
+        private static int firstSpace(String t) {
+            for(int i=0; i<t.length(); i++) if(Character.isWhitespace(t.charAt(i))) return i;
+            return -1;
+        }
+
+        private static int indexOfAny(String s, char a, char b) {
+            for(int i=0; i<s.length(); i++) if(s.charAt(i) == a || s.charAt(i) == b) return i;
+            return -1;
+        }
+
+        private static String stripComment(String line) {
+            boolean quoted = false;
+            char quote = 0;
+            for(int i=0; i<line.length(); i++) {
+                char c = line.charAt(i);
+                if(quoted) {
+                    if(c == '\\') i++;
+                    else if(c == quote) quoted = false;
+                } else if(c == '"' || (c == '\'' && i + 2 < line.length() && line.charAt(i + 2) == '\'')) {
+                    quoted = true;
+                    quote = c;
+                } else if(c == ';' || (c == '/' && i + 1 < line.length() && line.charAt(i + 1) == '/')) {
+                    return line.substring(0, i);
+                }
+            }
+            return line;
+        }
+
+        // Splits operands on commas that are outside quotes and parentheses.
+        private static String[] splitArgs(String rest) {
+            if(rest.trim().isEmpty()) return new String[0];
+            java.util.List<String> args = new ArrayList<>();
+            int depth = 0, start = 0;
+            boolean quoted = false;
+            for(int i=0; i<rest.length(); i++) {
+                char c = rest.charAt(i);
+                if(c == '"') quoted = !quoted;
+                else if(quoted) continue;
+                else if(c == '(') depth++;
+                else if(c == ')') depth--;
+                else if(c == ',' && depth == 0) { args.add(rest.substring(start, i).trim()); start = i + 1; }
+            }
+            args.add(rest.substring(start).trim());
+            return args.toArray(new String[0]);
+        }
+
+        private static boolean isString(String a) { return a.length() >= 2 && a.startsWith("\"") && a.endsWith("\""); }
+
+        private static String unquote(String a) {
+            String s = a.substring(1, a.length() - 1);
+            return s.replace("\\n", "\n").replace("\\r", "\r").replace("\\t", "\t").replace("\\0", "\0").replace("\\\"", "\"").replace("\\\\", "\\");
+        }
+    }
+
+    // --- INTEL HEX LOADER ---
+    // Parses straight out of a byte buffer with a digit lookup table, so no Strings or other
+    // objects are allocated per record. Every record checksum is verified, extended segment (02)
+    // and extended linear (04) address records are honoured, and errors name the offending line.
+    // Large images are memory-mapped. The loader keeps no shared state, so parallel loads are safe.
+
+    private static final byte[] HEX_DIGIT = new byte[256];
+    static {
+        Arrays.fill(HEX_DIGIT, (byte) -1);
+        for(int i=0; i<10; i++) HEX_DIGIT['0' + i] = (byte) i;
+        for(int i=0; i<6; i++) { HEX_DIGIT['A' + i] = (byte) (10 + i); HEX_DIGIT['a' + i] = (byte) (10 + i); }
+    }
+
+    // The image is sized to the device's flash; data beyond it is an error.
+    static int[] loadHex(String f, Device device) throws IOException {
+        try(FileChannel ch = FileChannel.open(Paths.get(f), StandardOpenOption.READ)) {
+            long size = ch.size();
+            ByteBuffer buf;
+            if(size > (1 << 20)) {
+                buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                buf = ByteBuffer.allocate((int) size);
+                while(buf.hasRemaining() && ch.read(buf) >= 0) { }
+                buf.flip();
+            }
+            int[] flash = new int[device.flashWords];
+            parseHex(buf, flash, f);
+            return flash;
+        }
+    }
+
+    static void parseHex(ByteBuffer buf, int[] flash, String name) throws IOException {
+        int pos = buf.position(), end = buf.limit(), line = 1;
+        long base = 0;                      // from the last 02/04 record
+        long limit = (long) flash.length * 2;
+
+        while(pos < end) {
+            int ch = buf.get(pos) & 0xFF;
+            if(ch == '\n') { line++; pos++; continue; }
+            if(ch == '\r' || ch == ' ' || ch == '\t') { pos++; continue; }
+            if(ch != ':') throw hexError(name, line, "expected ':' at start of record");
+            pos++;
+
+            if(end - pos < 10) throw hexError(name, line, "truncated record");
+            int len = hexByte(buf, pos);
+            int addrHi = hexByte(buf, pos + 2), addrLo = hexByte(buf, pos + 4);
+            int type = hexByte(buf, pos + 6);
+            if((len | addrHi | addrLo | type) < 0) throw hexError(name, line, "invalid hex digit");
+            if(end - pos < 10 + len * 2) throw hexError(name, line, "truncated record");
+
+            // Data bytes go straight into flash while the checksum accumulates; a bad record
+            // aborts the whole load, so nothing partially written is ever used.
+            int addr = (addrHi << 8) | addrLo;
+            int sum = len + addrHi + addrLo + type;
+            int data = pos + 8;
+            boolean isData = type == 0x00;
+            if(isData && base + addr + len > limit) throw hexError(name, line, String.format("address 0x%X is beyond flash", Math.max(base + addr, limit)));
+            for(int i=0; i<len; i++) {
+                int b = hexByte(buf, data + i * 2);
+                if(b < 0) throw hexError(name, line, "invalid hex digit");
+                sum += b;
+                if(isData) {
+                    int abs = (int) (base + addr) + i;
+                    int word = abs >> 1, shift = (abs & 1) << 3;
+                    flash[word] = (flash[word] & ~(0xFF << shift)) | (b << shift);
+                }
+            }
+            int check = hexByte(buf, data + len * 2);
+            if(check < 0) throw hexError(name, line, "invalid hex digit");
+            if(((sum + check) & 0xFF) != 0) {
+                throw hexError(name, line, String.format("checksum mismatch (record has 0x%02X, expected 0x%02X)", check, (-sum) & 0xFF));
+            }
+            pos = data + len * 2 + 2;
+            if(pos < end && buf.get(pos) != '\r' && buf.get(pos) != '\n') throw hexError(name, line, "unexpected characters after checksum");
+
+            switch(type) {
+                case 0x00:  // data, already stored above
+                    break;
+                case 0x01:  // end of file
+                    return;
+                case 0x02:  // extended segment address
+                case 0x04:  // extended linear address
+                    if(len != 2) throw hexError(name, line, "address record must carry 2 bytes");
+                    int value = (hexByte(buf, data) << 8) | hexByte(buf, data + 2);
+                    base = type == 0x02 ? (long) value << 4 : (long) value << 16;
+                    break;
+                case 0x03:  // start segment address
+                case 0x05:  // start linear address
+                    break;
+                default:
+                    throw hexError(name, line, String.format("unknown record type 0x%02X", type));
+            }
+        }
+    }
+
+    private static int hexByte(ByteBuffer buf, int pos) {
+        int hi = HEX_DIGIT[buf.get(pos) & 0xFF], lo = HEX_DIGIT[buf.get(pos + 1) & 0xFF];
+        return (hi | lo) < 0 ? -1 : (hi << 4) | lo;
+    }
+
+    private static IOException hexError(String name, int line, String msg) {
+        return new IOException(name + ":" + line + ": " + msg);
+    }
+
+    // --- SIMULATOR CORE ---
+    // Self-contained AVR core: flash, decode cache and machine state. It has no Swing
+    // dependencies, so the GUI, the headless runner and parallel batch runs each own one.
+
+    static final class AvrCore {
+        static final int RUNNING = 0, HALT_BREAK = 1, HALT_END_OF_FLASH = 2;
+        // Debugger stops: the core is suspended, not finished, and resume() carries on.
+        static final int HALT_BREAKPOINT = 3, HALT_WATCHPOINT = 4;
+
+        // Unified data space, as on the chip: R0-R31 at 0x00, the 64 I/O registers at 0x20,
+        // extended I/O from 0x60 and SRAM up to the device's RAMEND. One int per byte.
+        static final int IO_BASE = 0x20, SPL = 0x5D, SPH = 0x5E, SREG = 0x5F;
+        static final int FLAG_C = 0x01, FLAG_Z = 0x02, FLAG_N = 0x04, FLAG_V = 0x08,
+                         FLAG_S = 0x10, FLAG_H = 0x20, FLAG_T = 0x40, FLAG_I = 0x80;
+
+        // Pre-decoded flash. Each word becomes a packed entry:
+        // bits 0-7 = kind, bits 8-15 = operand A, bits 16-31 = operand B.
+        // I/O operands are stored as data-space addresses. The base cycle cost of each word is
+        // kept alongside in decCycles; taken branches and skips add theirs at run time.
+        static final int K_UNDECODED = 0, K_NOP = 1, K_LDI = 2, K_SBI = 3, K_CBI = 4, K_RJMP = 5, K_BREAK = 6,
+            K_ADD = 7, K_ADC = 8, K_SUB = 9, K_SBC = 10, K_AND = 11, K_OR = 12, K_EOR = 13, K_CP = 14, K_CPC = 15,
+            K_CPSE = 16, K_MOV = 17, K_MOVW = 18, K_MUL = 19, K_MULS = 20, K_MULSU = 21, K_FMUL = 22, K_FMULS = 23,
+            K_FMULSU = 24, K_SUBI = 25, K_SBCI = 26, K_CPI = 27, K_ANDI = 28, K_ORI = 29, K_COM = 30, K_NEG = 31,
+            K_SWAP = 32, K_INC = 33, K_DEC = 34, K_ASR = 35, K_LSR = 36, K_ROR = 37, K_ADIW = 38, K_SBIW = 39,
+            K_BRBS = 40, K_BRBC = 41, K_RCALL = 42, K_JMP = 43, K_CALL = 44, K_IJMP = 45, K_ICALL = 46, K_RET = 47,
+            K_RETI = 48, K_IN = 49, K_OUT = 50, K_SBIC = 51, K_SBIS = 52, K_SBRC = 53, K_SBRS = 54, K_BLD = 55,
+            K_BST = 56, K_BSET = 57, K_BCLR = 58, K_LDS = 59, K_STS = 60, K_LD = 61, K_LD_INC = 62, K_LD_DEC = 63,
+            K_ST = 64, K_ST_INC = 65, K_ST_DEC = 66, K_LPM = 67, K_LPM_INC = 68, K_PUSH = 69, K_POP = 70,
+            K_IO = 71, K_SLEEP = 72, K_BREAKPOINT = 73;   // K_IO: access to a hooked register, A = original kind, B = its A | B << 8
+
+        final Device device;
+        final int[] flash;
+        final int[] decoded;
+        final byte[] decCycles;
+
+        final int[] data;
+        final int ramEnd;
+        int pc = 0;
+        long cycles = 0;
+        int halt = RUNNING;
+
+        // Peripherals (see PERIPHERALS). hooks[addr] is set for registers with side effects.
+        final IoHook[] hooks = new IoHook[0x100];
+        final EventQueue events = new EventQueue();
+        final java.util.List<Peripheral> peripherals = new ArrayList<>();
+        private IrqSource[] irqs = new IrqSource[0];   // sorted by vector: lower number wins
+        private final int[] pinAddr = new int[4];      // PINA..PIND data address, -1 if absent
+        Usart usart;
+        ExternalInterrupts pins;
+        int sleepAddr = -1, sleepMask;
+        volatile boolean hostInput;                    // set by other threads when the USART has input
+        long stopAt;                                   // run() leaves its inner loop here
+        private long irqBlockedUntil;                  // SEI / RETI: one more instruction runs first
+        boolean sleeping;
+        long interrupts;
+
+        // Debugger. A breakpoint replaces the word's decoded entry with K_BREAKPOINT, so the
+        // run loop never tests for breakpoints. Watchpoints switch run() to a second loop that
+        // compares the watched bytes after every instruction; without any, it is not entered.
+        static final byte BP_USER = 1, BP_TEMP = 2;
+        private final byte[] breakFlags;
+        private int tempBreak = -1;                    // one-shot breakpoint for step-over / run-to-cursor
+        private int[] watchAddrs = new int[0], watchValues = new int[0];
+        int watchHitAddr = -1, watchOld;
+
+        // Execution trace (see EXECUTION TRACE), reverse-execution history (see REVERSE
+        // EXECUTION) and profile (see PROFILER). Like watchpoints, they only run in the
+        // instrumented loop.
+        TraceWriter trace;
+        ReverseHistory history;
+        Profiler profile;
+        Eeprom eeprom;
+        WaveCapture wave;                              // see WAVEFORM CAPTURE; hooks the port registers
+        Translator jit;                                // see BINARY TRANSLATION; null = interpret only
+        final java.util.List<SimEvent> eventRegistry = new ArrayList<>();
+
+        AvrCore(int[] flash) { this(flash, Device.ATMEGA32); }
+
+        AvrCore(int[] flash, Device device) {
+            this.device = device;
+            this.flash = flash;
+            ramEnd = device.ramEnd;
+            data = new int[ramEnd + 1];
+            decoded = new int[flash.length];
+            decCycles = new byte[flash.length];
+            breakFlags = new byte[flash.length];
+            for(int i=0; i<4; i++) pinAddr[i] = device.reg("PIN" + (char) ('A' + i));
+            Peripherals.install(this);   // before decoding: hooked registers decode to K_IO
+            for(int i=0; i<flash.length; i++) decodeAt(i);
+            if(Translator.ENABLED) jit = new Translator(this);
+            reset();
+        }
+
+        // SP starts at RAMEND on every part (the ATmega32 itself resets it to 0, but programs
+        // built without a C runtime, like the starter demo, expect a usable stack).
+        void reset() {
+            pc = 0;
+            cycles = 0;
+            halt = RUNNING;
+            sleeping = false;
+            stopAt = 0;
+            irqBlockedUntil = 0;
+            interrupts = 0;
+            events.clear();
+            Arrays.fill(data, 0);
+            setSp(ramEnd);
+            for(Peripheral p : peripherals) p.reset();
+        }
+
+        int sp() { return data[SPL] | data[SPH] << 8; }
+        void setSp(int sp) { data[SPL] = sp & 0xFF; data[SPH] = (sp >> 8) & 0xFF; }
+
+        private static int pack(int kind, int a, int b) { return kind | (a << 8) | (b << 16); }
+
+        static boolean isTwoWord(int op) { return (op & 0xFC0F) == 0x9000 || (op & 0xFE0C) == 0x940C; }
+
+        private void decodeAt(int addr) {
+            int op = flash[addr];
+            int d5 = (op >> 4) & 0x1F, r5 = (op & 0x0F) | ((op >> 5) & 0x10);
+            int d4 = 16 + ((op >> 4) & 0x0F), k8 = ((op >> 4) & 0xF0) | (op & 0x0F);
+            int next = addr + 1 < flash.length ? flash[addr + 1] : 0;
+            int w = pack(K_NOP, 0, 0), c = 1;
+            switch(op >> 12) {
+                case 0x0:
+                    switch(op & 0xFC00) {
+                        case 0x0000:
+                            if((op & 0xFF00) == 0x0100) w = pack(K_MOVW, (op >> 3) & 0x1E, (op << 1) & 0x1E);
+                            else if((op & 0xFF00) == 0x0200) { w = pack(K_MULS, d4, 16 + (op & 0x0F)); c = 2; }
+                            else if((op & 0xFF00) == 0x0300) {
+                                int d3 = 16 + ((op >> 4) & 7), r3 = 16 + (op & 7);
+                                int kind = (op & 0x88) == 0x00 ? K_MULSU : (op & 0x88) == 0x08 ? K_FMUL : (op & 0x88) == 0x80 ? K_FMULS : K_FMULSU;
+                                w = pack(kind, d3, r3); c = 2;
+                            }
+                            break;
+                        case 0x0400: w = pack(K_CPC, d5, r5); break;
+                        case 0x0800: w = pack(K_SBC, d5, r5); break;
+                        default:     w = pack(K_ADD, d5, r5); break;
+                    }
+                    break;
+                case 0x1:
+                    switch(op & 0xFC00) {
+                        case 0x1000: w = pack(K_CPSE, d5, r5); break;
+                        case 0x1400: w = pack(K_CP, d5, r5); break;
+                        case 0x1800: w = pack(K_SUB, d5, r5); break;
+                        default:     w = pack(K_ADC, d5, r5); break;
+                    }
+                    break;
+                case 0x2:
+                    switch(op & 0xFC00) {
+                        case 0x2000: w = pack(K_AND, d5, r5); break;
+                        case 0x2400: w = pack(K_EOR, d5, r5); break;
+                        case 0x2800: w = pack(K_OR, d5, r5); break;
+                        default:     w = pack(K_MOV, d5, r5); break;
+                    }
+                    break;
+                case 0x3: w = pack(K_CPI, d4, k8); break;
+                case 0x4: w = pack(K_SBCI, d4, k8); break;
+                case 0x5: w = pack(K_SUBI, d4, k8); break;
+                case 0x6: w = pack(K_ORI, d4, k8); break;
+                case 0x7: w = pack(K_ANDI, d4, k8); break;
+                case 0x8: case 0xA: {   // LDD / STD Rd, Y+q / Z+q
+                    int q = (op & 7) | ((op >> 7) & 0x18) | ((op >> 8) & 0x20);
+                    int ptr = (op & 0x08) != 0 ? 28 : 30;
+                    w = pack((op & 0x0200) != 0 ? K_ST : K_LD, d5, ptr | q << 8); c = 2;
+                    break;
+                }
+                case 0x9:
+                    w = decode9(op, d5, r5, next);
+                    c = cycles9(w & 0xFF);
+                    break;
+                case 0xB:
+                    w = pack((op & 0x0800) != 0 ? K_OUT : K_IN, d5, IO_BASE + ((op & 0x0F) | ((op >> 5) & 0x30)));
+                    break;
+                case 0xC: case 0xD: {   // RJMP / RCALL k  (B holds the signed offset)
+                    int k = op & 0x0FFF;
+                    if((k & 0x800) != 0) k -= 4096;
+                    if((op & 0x1000) == 0) { w = pack(K_RJMP, 0, k); c = 2; }
+                    else { w = pack(K_RCALL, 0, k); c = 3; }
+                    break;
+                }
+                case 0xE: w = pack(K_LDI, d4, k8); break;
+                default: {              // 0xF: branches and register bit ops (B holds the bit mask)
+                    if((op & 0x0800) == 0) {
+                        int k = (op >> 3) & 0x7F;
+                        if((k & 0x40) != 0) k -= 128;
+                        w = pack((op & 0x0400) == 0 ? K_BRBS : K_BRBC, 1 << (op & 7), k);
+                    } else if((op & 0x0008) == 0) {
+                        int kind = (op & 0x0600) == 0x0000 ? K_BLD : (op & 0x0600) == 0x0200 ? K_BST : (op & 0x0600) == 0x0400 ? K_SBRC : K_SBRS;
+                        w = pack(kind, d5, 1 << (op & 7));
+                    }
+                    break;
+                }
+            }
+            if(ioHooked(w)) w = pack(K_IO, w & 0xFF, ((w >> 8) & 0xFF) | (w >>> 16) << 8);
+            decoded[addr] = breakFlags[addr] != 0 ? pack(K_BREAKPOINT, 0, 0) : w;
+            decCycles[addr] = (byte) c;
+        }
+
+        // True for I/O instructions on a register that has a hook.
+        private boolean ioHooked(int w) {
+            int a = (w >> 8) & 0xFF, b = w >>> 16;
+            switch(w & 0xFF) {
+                case K_IN: case K_OUT: case K_LDS: case K_STS: return b < hooks.length && hooks[b] != null;
+                case K_SBI: case K_CBI: case K_SBIC: case K_SBIS: return hooks[a] != null;
+                default: return false;
+            }
+        }
+
+        private static int decode9(int op, int d5, int r5, int next) {
+            switch(op & 0x0F00) {
+                case 0x0000: case 0x0100: case 0x0200: case 0x0300: {
+                    boolean st = (op & 0x0200) != 0;
+                    switch(op & 0x0F) {
+                        case 0x0: return pack(st ? K_STS : K_LDS, d5, next);
+                        case 0x1: return pack(st ? K_ST_INC : K_LD_INC, d5, 30);
+                        case 0x2: return pack(st ? K_ST_DEC : K_LD_DEC, d5, 30);
+                        case 0x4: case 0x6: return st ? pack(K_NOP, 0, 0) : pack(K_LPM, d5, 0);
+                        case 0x5: case 0x7: return st ? pack(K_NOP, 0, 0) : pack(K_LPM_INC, d5, 0);
+                        case 0x9: return pack(st ? K_ST_INC : K_LD_INC, d5, 28);
+                        case 0xA: return pack(st ? K_ST_DEC : K_LD_DEC, d5, 28);
+                        case 0xC: return pack(st ? K_ST : K_LD, d5, 26);
+                        case 0xD: return pack(st ? K_ST_INC : K_LD_INC, d5, 26);
+                        case 0xE: return pack(st ? K_ST_DEC : K_LD_DEC, d5, 26);
+                        case 0xF: return pack(st ? K_PUSH : K_POP, d5, 0);
+                        default:  return pack(K_NOP, 0, 0);
+                    }
+                }
+                case 0x0400: case 0x0500:
+                    switch(op & 0x0F) {
+                        case 0x0: return pack(K_COM, d5, 0);
+                        case 0x1: return pack(K_NEG, d5, 0);
+                        case 0x2: return pack(K_SWAP, d5, 0);
+                        case 0x3: return pack(K_INC, d5, 0);
+                        case 0x5: return pack(K_ASR, d5, 0);
+                        case 0x6: return pack(K_LSR, d5, 0);
+                        case 0x7: return pack(K_ROR, d5, 0);
+                        case 0xA: return pack(K_DEC, d5, 0);
+                        case 0x8:
+                            if((op & 0x0100) == 0) return pack((op & 0x80) == 0 ? K_BSET : K_BCLR, 1 << ((op >> 4) & 7), 0);
+                            switch(op) {
+                                case 0x9508: return pack(K_RET, 0, 0);
+                                case 0x9518: return pack(K_RETI, 0, 0);
+                                case 0x9588: return pack(K_SLEEP, 0, 0);
+                                case 0x9598: return pack(K_BREAK, 0, 0);
+                                case 0x95C8: return pack(K_LPM, 0, 0);
+                                case 0x95D8: return pack(K_LPM, 0, 0);   // ELPM: no RAMPZ on supported parts
+                                default:     return pack(K_NOP, 0, 0);   // WDR, SPM
+                            }
+                        case 0x9:
+                            return pack((op & 0x0100) == 0 ? K_IJMP : K_ICALL, 0, 0);
+                        case 0xC: case 0xD: case 0xE: case 0xF: {
+                            int hi = ((op >> 3) & 0x3E) | (op & 1);   // k21..16, always 0 on these parts
+                            return pack((op & 0x02) == 0 ? K_JMP : K_CALL, hi, next);
+                        }
+                        default:
+                            return pack(K_NOP, 0, 0);
+                    }
+                case 0x0600: case 0x0700: {
+                    int d = 24 + ((op >> 3) & 0x06), k = (op & 0x0F) | ((op >> 2) & 0x30);
+                    return pack((op & 0x0100) == 0 ? K_ADIW : K_SBIW, d, k);
+                }
+                case 0x0800: return pack(K_CBI, IO_BASE + ((op >> 3) & 0x1F), 1 << (op & 7));
+                case 0x0900: return pack(K_SBIC, IO_BASE + ((op >> 3) & 0x1F), 1 << (op & 7));
+                case 0x0A00: return pack(K_SBI, IO_BASE + ((op >> 3) & 0x1F), 1 << (op & 7));
+                case 0x0B00: return pack(K_SBIS, IO_BASE + ((op >> 3) & 0x1F), 1 << (op & 7));
+                default:     return pack(K_MUL, d5, r5);
+            }
+        }
+
+        private static int cycles9(int kind) {
+            switch(kind) {
+                case K_CALL: case K_RET: case K_RETI: return 4;
+                case K_JMP: case K_ICALL: case K_LPM: case K_LPM_INC: return 3;
+                case K_NOP: case K_COM: case K_NEG: case K_SWAP: case K_INC: case K_DEC: case K_ASR: case K_LSR:
+                case K_ROR: case K_BSET: case K_BCLR: case K_BREAK: case K_SBIC: case K_SBIS: case K_SLEEP: return 1;
+                default: return 2;
+            }
+        }
+
+        // Any write into flash must go through here so the cached decode stays coherent.
+        // The previous word is dropped too, since a two-word instruction there reads this one.
+        void writeFlash(int addr, int word) {
+            flash[addr] = word & 0xFFFF;
+            undecode(addr);
+            if(addr > 0) undecode(addr - 1);
+        }
+
+        // Drops the cached decode of a word, and any translated block that covers it.
+        private void undecode(int addr) {
+            decoded[addr] = K_UNDECODED;
+            if(jit != null) jit.invalidate(addr);
+        }
+
+        // Runs until the cycle counter reaches untilCycle or the core halts. The inner loop only
+        // executes instructions; it stops early at the next due event, or when an instruction
+        // made an interrupt possible, and service() handles that before carrying on.
+        int run(long untilCycle) {
+            while(halt == RUNNING && cycles < untilCycle) {
+                long next = Math.min(untilCycle, events.nextDue());
+                if(history != null && history.nextSnapshot < next) next = history.nextSnapshot;
+                if(sleeping) {
+                    cycles = Math.max(cycles, next);
+                } else {
+                    if(irqBlockedUntil > cycles && irqBlockedUntil < next) next = irqBlockedUntil;
+                    stopAt = next;
+                    if(trace == null && history == null && profile == null && watchAddrs.length == 0) {
+                        if(jit != null) jit.run();
+                        else while(cycles < stopAt && exec()) { }
+                    } else {
+                        while(cycles < stopAt && instrumentedExec()) { }
+                    }
+                }
+                service();
+                if(history != null && cycles >= history.nextSnapshot) history.snapshot();
+            }
+            return halt;
+        }
+
+        // Executes one instruction (or, while sleeping, skips ahead to the next event) and then
+        // services events and interrupts. Returns false once the core has halted.
+        boolean step() {
+            if(sleeping) {
+                long next = events.nextDue();
+                cycles = next == Long.MAX_VALUE ? cycles + 1 : Math.max(cycles, next);
+            } else {
+                instrumentedExec();
+            }
+            service();
+            if(history != null && cycles >= history.nextSnapshot) history.snapshot();
+            return halt == RUNNING;
+        }
+
+        // One instruction with tracing, history, profiling and watchpoints as configured.
+        private boolean instrumentedExec() {
+            long before = cycles;
+            int at = pc;
+            if(!(trace != null ? tracedExec() : exec())) return false;
+            if(history != null) history.record(before, at);
+            if(profile != null) profile.count(at, before);
+            return watchAddrs.length == 0 || !watchHit();
+        }
+
+        private void service() {
+            if(hostInput) {
+                hostInput = false;
+                if(usart != null) usart.pollHost();
+            }
+            SimEvent e;
+            while((e = events.pollDue(cycles)) != null) e.fire();
+            if((data[SREG] & FLAG_I) != 0 && cycles >= irqBlockedUntil) enterInterrupt();
+            if(watchAddrs.length != 0 && halt == RUNNING) watchHit();
+        }
+
+        // --- Debugger ---
+
+        boolean suspended() { return halt == HALT_BREAKPOINT || halt == HALT_WATCHPOINT; }
+
+        void setBreakpoint(int addr, boolean on) {
+            if(addr < 0 || addr >= flash.length) return;
+            breakFlags[addr] = (byte) (on ? breakFlags[addr] | BP_USER : breakFlags[addr] & ~BP_USER);
+            undecode(addr);
+        }
+
+        void clearBreakpoints() {
+            for(int i=0; i<flash.length; i++) if((breakFlags[i] & BP_USER) != 0) setBreakpoint(i, false);
+        }
+
+        // Stops the next time execution reaches addr, then forgets it. Any other stop forgets it too.
+        void setTempBreak(int addr) {
+            clearTempBreak();
+            if(addr < 0 || addr >= flash.length) return;
+            tempBreak = addr;
+            breakFlags[addr] |= BP_TEMP;
+            undecode(addr);
+        }
+
+        private void clearTempBreak() {
+            if(tempBreak < 0) return;
+            breakFlags[tempBreak] &= ~BP_TEMP;
+            undecode(tempBreak);
+            tempBreak = -1;
+        }
+
+        // Watch a data-space byte (register, I/O or SRAM) for changes.
+        void addWatch(int addr) {
+            if(addr < 0 || addr > ramEnd) return;
+            for(int a : watchAddrs) if(a == addr) return;
+            int n = watchAddrs.length;
+            int[] a = Arrays.copyOf(watchAddrs, n + 1), v = Arrays.copyOf(watchValues, n + 1);
+            a[n] = addr;
+            v[n] = data[addr];
+            watchAddrs = a;
+            watchValues = v;
+        }
+
+        void clearWatches() {
+            watchAddrs = new int[0];
+            watchValues = new int[0];
+        }
+
+        int[] watches() { return watchAddrs.clone(); }
+
+        private boolean watchHit() {
+            final int[] a = watchAddrs, v = watchValues;
+            for(int i=0; i<a.length; i++) {
+                int now = data[a[i]];
+                if(now == v[i]) continue;
+                watchHitAddr = a[i];
+                watchOld = v[i];
+                v[i] = now;
+                clearTempBreak();
+                halt = HALT_WATCHPOINT;
+                return true;
+            }
+            return false;
+        }
+
+        // Leaves a debugger stop. If pc sits on a breakpoint, that instruction is executed here,
+        // with its real decode, so the caller can run on without hitting it again. Returns true
+        // if an instruction was executed.
+        boolean resume() {
+            if(suspended()) halt = RUNNING;
+            if(halt != RUNNING || sleeping || pc < 0 || pc >= flash.length || breakFlags[pc] == 0) return false;
+            int at = pc, flags = breakFlags[at];
+            breakFlags[at] = 0;
+            decodeAt(at);
+            instrumentedExec();
+            breakFlags[at] = (byte) flags;
+            undecode(at);
+            service();
+            return true;
+        }
+
+        // --- Reverse execution ---
+
+        // The whole machine state: registers, data space, pending events and peripherals. Only
+        // loadState() on this same core can read it back, since events are stored by registry id.
+        void saveState(ByteBuffer b) {
+            b.putLong(cycles).putInt(pc).putInt(halt).put((byte) (sleeping ? 1 : 0))
+             .putLong(irqBlockedUntil).putLong(interrupts);
+            putBytes(b, data);
+            b.putInt(events.size());
+            for(int i=0; i<events.size(); i++) b.putInt(events.at(i).id).putLong(events.at(i).due);
+            for(Peripheral p : peripherals) p.save(b);
+        }
+
+        void loadState(ByteBuffer b) {
+            cycles = b.getLong(); pc = b.getInt(); halt = b.getInt(); sleeping = b.get() != 0;
+            irqBlockedUntil = b.getLong(); interrupts = b.getLong();
+            getBytes(b, data);
+            events.clear();
+            for(int n = b.getInt(); n > 0; n--) events.schedule(eventRegistry.get(b.getInt()), b.getLong());
+            for(Peripheral p : peripherals) p.restore(b);
+        }
+
+        // One-int-per-byte arrays (data space, EEPROM) to and from a state buffer. Heap buffers are
+        // copied through their array, which is several times faster than a put() per byte.
+        static void putBytes(ByteBuffer b, int[] v) {
+            if(!b.hasArray()) { for(int x : v) b.put((byte) x); return; }
+            if(b.remaining() < v.length) throw new BufferOverflowException();
+            byte[] a = b.array();
+            int at = b.arrayOffset() + b.position();
+            for(int i=0; i<v.length; i++) a[at + i] = (byte) v[i];
+            b.position(b.position() + v.length);
+        }
+
+        static void getBytes(ByteBuffer b, int[] v) {
+            if(!b.hasArray()) { for(int i=0; i<v.length; i++) v[i] = b.get() & 0xFF; return; }
+            if(b.remaining() < v.length) throw new BufferUnderflowException();
+            byte[] a = b.array();
+            int at = b.arrayOffset() + b.position();
+            for(int i=0; i<v.length; i++) v[i] = a[at + i] & 0xFF;
+            b.position(b.position() + v.length);
+        }
+
+        void enableHistory(long budgetBytes, long interval) { history = new ReverseHistory(this, budgetBytes, interval); }
+
+        // Runs forward from a restored snapshot to the instruction boundary at target. Nothing is
+        // recorded, profiled, transmitted or watched on the way, and breakpoints are stepped over.
+        void replayTo(long target) {
+            ReverseHistory h = history;
+            TraceWriter t = trace;
+            Profiler p = profile;
+            int[] wa = watchAddrs;
+            IntConsumer sink = usart != null ? usart.sink : null;
+            history = null;
+            trace = null;
+            profile = null;
+            watchAddrs = new int[0];
+            if(usart != null) usart.sink = b -> { };
+            try {
+                while(cycles < target && (halt == RUNNING || suspended())) {
+                    if(suspended()) resume(); else run(target);
+                }
+            } finally {
+                history = h;
+                trace = t;
+                profile = p;
+                watchAddrs = wa;
+                if(usart != null) usart.sink = sink;
+            }
+            clearTempBreak();
+            for(int i=0; i<watchAddrs.length; i++) watchValues[i] = data[watchAddrs[i]];
+        }
+
+        // --- Trace ---
+
+        void startTrace(TraceWriter w) { trace = w; }
+
+        // Detaches and closes the trace; returns the number of records written.
+        long stopTrace() throws IOException {
+            TraceWriter w = trace;
+            trace = null;
+            if(w == null) return 0;
+            w.close();
+            return w.count;
+        }
+
+        private boolean tracedExec() {
+            int at = pc;
+            if(at < 0 || at >= flash.length) return exec();
+            long before = cycles;
+            int w = decoded[at];
+            if((w & 0xFF) == K_UNDECODED) { decodeAt(at); w = decoded[at]; }
+            int target = writeTarget(w);
+            if(!exec()) return false;
+            trace.record(before, at, flash[at], target < 0 ? TraceWriter.NO_WRITE : target,
+                         target >= 0 && target <= ramEnd ? data[target] : 0, data[SREG]);
+            return true;
+        }
+
+        // Data address the decoded instruction will store to (for 16-bit results, the low byte),
+        // or -1. Must be called before the instruction runs, since pointers may move.
+        private int writeTarget(int w) {
+            int a = (w >> 8) & 0xFF, b = w >>> 16;
+            switch(w & 0xFF) {
+                case K_NOP: case K_RJMP: case K_BREAK: case K_BREAKPOINT: case K_SLEEP: case K_CP: case K_CPC: case K_CPI:
+                case K_CPSE: case K_SBRC: case K_SBRS: case K_SBIC: case K_SBIS: case K_BRBS: case K_BRBC: case K_JMP:
+                case K_IJMP: case K_RCALL: case K_CALL: case K_ICALL: case K_RET: case K_RETI: case K_BSET: case K_BCLR:
+                case K_BST:
+                    return -1;
+                case K_MUL: case K_MULS: case K_MULSU: case K_FMUL: case K_FMULS: case K_FMULSU:
+                    return 0;
+                case K_OUT: case K_STS:
+                    return b;
+                case K_ST: { int p = b & 0xFF; return (data[p] | data[p + 1] << 8) + (b >> 8); }
+                case K_ST_INC: return data[b] | data[b + 1] << 8;
+                case K_ST_DEC: return ((data[b] | data[b + 1] << 8) - 1) & 0xFFFF;
+                case K_PUSH: return sp();
+                case K_IO:
+                    switch(a) {
+                        case K_OUT: case K_STS: return b >> 8;
+                        case K_SBIC: case K_SBIS: return -1;
+                        default: return b & 0xFF;
+                    }
+                default:
+                    return a;
+            }
+        }
+
+        // Return address of a CALL/RCALL/ICALL at pc, or -1 if pc is not at a call.
+        int callReturnAddress() {
+            if(pc < 0 || pc >= flash.length) return -1;
+            int op = flash[pc];
+            if((op & 0xF000) == 0xD000 || op == 0x9509) return pc + 1;
+            if((op & 0xFE0E) == 0x940E) return pc + 2;
+            return -1;
+        }
+
+        // Takes the highest-priority interrupt that is both flagged and enabled, if any.
+        private void enterInterrupt() {
+            final int[] m = data;
+            for(IrqSource s : irqs) {
+                if((m[s.flagAddr] & s.flagMask) == 0 || (m[s.enableAddr] & s.enableMask) == 0) continue;
+                if(s.autoClear) m[s.flagAddr] &= ~s.flagMask;
+                pushPc(pc);
+                m[SREG] &= ~FLAG_I;
+                if(trace != null) trace.record(cycles, pc, s.vector, TraceWriter.IRQ, 0, m[SREG]);
+                pc = s.vector * 2;   // two-word vectors on both supported parts
+                cycles += 4;
+                sleeping = false;
+                interrupts++;
+                if(profile != null) profile.interrupt(s.vector, cycles - 4);
+                return;
+            }
+        }
+
+        void addInterrupt(int vector, int flagAddr, int flagMask, int enableAddr, int enableMask, boolean autoClear) {
+            if(vector < 0 || flagAddr < 0 || enableAddr < 0) return;
+            IrqSource[] a = Arrays.copyOf(irqs, irqs.length + 1);
+            a[irqs.length] = new IrqSource(vector, flagAddr, flagMask, enableAddr, enableMask, autoClear);
+            Arrays.sort(a, (x, y) -> Integer.compare(x.vector, y.vector));
+            irqs = a;
+        }
+
+        // Posts an event and makes sure run() stops for it.
+        void schedule(SimEvent e, long due) {
+            if(e.id < 0) { e.id = eventRegistry.size(); eventRegistry.add(e); }
+            events.schedule(e, due);
+            if(due < stopAt) stopAt = due;
+        }
+
+        // Something may have made an interrupt pending: leave the inner loop after this instruction.
+        void requestIrqCheck() { stopAt = 0; }
+
+        // SEI and RETI: the next instruction always runs before an interrupt is taken.
+        private void deferIrqCheck(int cyc) {
+            irqBlockedUntil = cycles + cyc + 1;
+            if(irqBlockedUntil < stopAt) stopAt = irqBlockedUntil;
+        }
+
+        // Drives an input pin (port 0-3 = A-D) from outside, e.g. a button or another device.
+        void setPin(int port, int bit, boolean high) {
+            int addr = pinAddr[port];
+            if(addr < 0) return;
+            int old = data[addr], v = high ? old | 1 << bit : old & ~(1 << bit);
+            if(v == old) return;
+            data[addr] = v;
+            if(pins != null) pins.pinChanged(port, bit, high);
+        }
+
+        // Hooks a register after construction, e.g. a co-simulation wire on a port. Returns the
+        // previous hook so the new one can pass accesses on. All words are decoded again, since
+        // accesses to a hooked register decode differently.
+        IoHook hook(int addr, IoHook h) {
+            IoHook old = hooks[addr];
+            hooks[addr] = h;
+            for(int i=0; i<flash.length; i++) undecode(i);
+            return old;
+        }
+
+        void schedulePin(long cycle, int port, int bit, boolean high) {
+            schedule(new SimEvent() { @Override void fire() { setPin(port, bit, high); } }, cycle);
+        }
+
+        // Brings lazily kept peripheral state (timer counts) into the data space for display.
+        void syncIo() {
+            for(Peripheral p : peripherals) p.sync();
+        }
+
+        // Executes one instruction. Returns false once the core has halted.
+        private boolean exec() {
+            if(pc < 0 || pc >= flash.length) { halt = HALT_END_OF_FLASH; return false; }
+
+            int w = decoded[pc];
+            if((w & 0xFF) == K_UNDECODED) { decodeAt(pc); w = decoded[pc]; }
+            final int[] m = data;
+            final int a = (w >> 8) & 0xFF, b = w >>> 16;
+            int nextPc = pc + 1;
+            int cyc = decCycles[pc];
+
+            switch (w & 0xFF) {
+                case K_NOP:
+                    break;
+                case K_LDI:
+                    m[a] = b;
+                    break;
+                case K_SBI:
+                    m[a] |= b;
+                    break;
+                case K_CBI:
+                    m[a] &= ~b;
+                    break;
+                case K_RJMP:
+                    nextPc += w >> 16;
+                    break;
+                case K_BREAK:
+                    halt = HALT_BREAK;
+                    return false;
+                case K_IO:
+                    nextPc = execIo(a, b & 0xFF, b >> 8, nextPc);
+                    break;
+                case K_BREAKPOINT:
+                    clearTempBreak();
+                    halt = HALT_BREAKPOINT;
+                    return false;
+                case K_SLEEP:
+                    if(sleepAddr >= 0 && (m[sleepAddr] & sleepMask) != 0) { sleeping = true; stopAt = 0; }
+                    break;
+
+                // --- Arithmetic and logic ---
+                case K_ADD: { int rd = m[a], rr = m[b], r = (rd + rr) & 0xFF; m[a] = r; addFlags(rd, rr, r); break; }
+                case K_ADC: { int rd = m[a], rr = m[b], r = (rd + rr + (m[SREG] & FLAG_C)) & 0xFF; m[a] = r; addFlags(rd, rr, r); break; }
+                case K_SUB: { int rd = m[a], rr = m[b], r = (rd - rr) & 0xFF; m[a] = r; subFlags(rd, rr, r, false); break; }
+                case K_SBC: { int rd = m[a], rr = m[b], r = (rd - rr - (m[SREG] & FLAG_C)) & 0xFF; m[a] = r; subFlags(rd, rr, r, true); break; }
+                case K_SUBI: { int rd = m[a], r = (rd - b) & 0xFF; m[a] = r; subFlags(rd, b, r, false); break; }
+                case K_SBCI: { int rd = m[a], r = (rd - b - (m[SREG] & FLAG_C)) & 0xFF; m[a] = r; subFlags(rd, b, r, true); break; }
+                case K_CP:   { int rd = m[a], rr = m[b]; subFlags(rd, rr, (rd - rr) & 0xFF, false); break; }
+                case K_CPC:  { int rd = m[a], rr = m[b]; subFlags(rd, rr, (rd - rr - (m[SREG] & FLAG_C)) & 0xFF, true); break; }
+                case K_CPI:  { int rd = m[a]; subFlags(rd, b, (rd - b) & 0xFF, false); break; }
+                case K_AND:  logicFlags(m[a] &= m[b]); break;
+                case K_ANDI: logicFlags(m[a] &= b); break;
+                case K_OR:   logicFlags(m[a] |= m[b]); break;
+                case K_ORI:  logicFlags(m[a] |= b); break;
+                case K_EOR:  logicFlags(m[a] ^= m[b]); break;
+                case K_COM:  logicFlags(m[a] ^= 0xFF); m[SREG] |= FLAG_C; break;
+                case K_NEG:  { int rd = m[a], r = (-rd) & 0xFF; m[a] = r; subFlags(0, rd, r, false); break; }
+                case K_INC: {
+                    int r = (m[a] + 1) & 0xFF; m[a] = r;
+                    incDecFlags(r, r == 0x80);
+                    break;
+                }
+                case K_DEC: {
+                    int r = (m[a] - 1) & 0xFF; m[a] = r;
+                    incDecFlags(r, r == 0x7F);
+                    break;
+                }
+                case K_ASR: { int rd = m[a], r = (rd >> 1) | (rd & 0x80); m[a] = r; shiftFlags(r, rd & 1); break; }
+                case K_LSR: { int rd = m[a], r = rd >> 1; m[a] = r; shiftFlags(r, rd & 1); break; }
+                case K_ROR: { int rd = m[a], r = (rd >> 1) | ((m[SREG] & FLAG_C) << 7); m[a] = r; shiftFlags(r, rd & 1); break; }
+                case K_SWAP: { int rd = m[a]; m[a] = ((rd << 4) | (rd >> 4)) & 0xFF; break; }
+                case K_MOV:  m[a] = m[b]; break;
+                case K_MOVW: m[a] = m[b]; m[a + 1] = m[b + 1]; break;
+                case K_ADIW: case K_SBIW: {
+                    int rd = m[a] | m[a + 1] << 8;
+                    int r = ((w & 0xFF) == K_ADIW ? rd + b : rd - b) & 0xFFFF;
+                    m[a] = r & 0xFF; m[a + 1] = r >> 8;
+                    int ov = (w & 0xFF) == K_ADIW ? ~rd & r : rd & ~r;       // V in bit 15
+                    int cy = (w & 0xFF) == K_ADIW ? ~r & rd : r & ~rd;       // C in bit 15
+                    int f = (cy >> 15 & 1) | (r == 0 ? FLAG_Z : 0) | (r >> 13 & FLAG_N) | (ov >> 12 & FLAG_V);
+                    m[SREG] = (m[SREG] & (FLAG_I | FLAG_T | FLAG_H)) | f | (((f << 2) ^ (f << 1)) & FLAG_S);
+                    break;
+                }
+                case K_MUL:    mulResult(m[a] * m[b], false); break;
+                case K_MULS:   mulResult((byte) m[a] * (byte) m[b], false); break;
+                case K_MULSU:  mulResult((byte) m[a] * m[b], false); break;
+                case K_FMUL:   mulResult(m[a] * m[b], true); break;
+                case K_FMULS:  mulResult((byte) m[a] * (byte) m[b], true); break;
+                case K_FMULSU: mulResult((byte) m[a] * m[b], true); break;
+
+                // --- Flow control ---
+                case K_BRBS: if((m[SREG] & a) != 0) { nextPc += w >> 16; cyc++; } break;
+                case K_BRBC: if((m[SREG] & a) == 0) { nextPc += w >> 16; cyc++; } break;
+                case K_RCALL: pushPc(nextPc); nextPc += w >> 16; break;
+                case K_JMP:   nextPc = b; break;
+                case K_CALL:  pushPc(nextPc + 1); nextPc = b; break;
+                case K_IJMP:  nextPc = m[30] | m[31] << 8; break;
+                case K_ICALL: pushPc(nextPc); nextPc = m[30] | m[31] << 8; break;
+                case K_RET: case K_RETI: {
+                    if((w & 0xFF) == K_RETI) { m[SREG] |= FLAG_I; deferIrqCheck(cyc); }
+                    int hi = pop();
+                    nextPc = hi << 8 | pop();
+                    break;
+                }
+                case K_CPSE: if(m[a] == m[b]) { int s = skip(nextPc); cyc += s - nextPc; nextPc = s; } break;
+                case K_SBRC: case K_SBIC: if((m[a] & b) == 0) { int s = skip(nextPc); cyc += s - nextPc; nextPc = s; } break;
+                case K_SBRS: case K_SBIS: if((m[a] & b) != 0) { int s = skip(nextPc); cyc += s - nextPc; nextPc = s; } break;
+                case K_LDS: m[a] = load(b); nextPc++; break;
+                case K_STS: store(b, m[a]); nextPc++; break;
+
+                // --- Data transfer ---
+                case K_IN:  m[a] = m[b]; break;
+                case K_OUT: m[b] = m[a]; break;
+                case K_LD: {
+                    int ptr = b & 0xFF;
+                    m[a] = load((m[ptr] | m[ptr + 1] << 8) + (b >> 8));
+                    break;
+                }
+                case K_ST: {
+                    int ptr = b & 0xFF;
+                    store((m[ptr] | m[ptr + 1] << 8) + (b >> 8), m[a]);
+                    break;
+                }
+                case K_LD_INC: {
+                    int p = m[b] | m[b + 1] << 8;
+                    int v = load(p);
+                    p = (p + 1) & 0xFFFF; m[b] = p & 0xFF; m[b + 1] = p >> 8;
+                    m[a] = v;
+                    break;
+                }
+                case K_LD_DEC: {
+                    int p = ((m[b] | m[b + 1] << 8) - 1) & 0xFFFF;
+                    m[b] = p & 0xFF; m[b + 1] = p >> 8;
+                    m[a] = load(p);
+                    break;
+                }
+                case K_ST_INC: {
+                    int p = m[b] | m[b + 1] << 8;
+                    store(p, m[a]);
+                    p = (p + 1) & 0xFFFF; m[b] = p & 0xFF; m[b + 1] = p >> 8;
+                    break;
+                }
+                case K_ST_DEC: {
+                    int p = ((m[b] | m[b + 1] << 8) - 1) & 0xFFFF;
+                    m[b] = p & 0xFF; m[b + 1] = p >> 8;
+                    store(p, m[a]);
+                    break;
+                }
+                case K_LPM: case K_LPM_INC: {
+                    int z = m[30] | m[31] << 8;
+                    int word = (z >> 1) < flash.length ? flash[z >> 1] : 0xFFFF;
+                    m[a] = (z & 1) == 0 ? word & 0xFF : word >> 8;
+                    if((w & 0xFF) == K_LPM_INC) { z = (z + 1) & 0xFFFF; m[30] = z & 0xFF; m[31] = z >> 8; }
+                    break;
+                }
+                case K_PUSH: push(m[a]); break;
+                case K_POP:  m[a] = pop(); break;
+
+                // --- Bit operations ---
+                case K_BSET: m[SREG] |= a; if(a == FLAG_I) deferIrqCheck(cyc); break;
+                case K_BCLR: m[SREG] &= ~a; break;
+                case K_BST:  if((m[a] & b) != 0) m[SREG] |= FLAG_T; else m[SREG] &= ~FLAG_T; break;
+                case K_BLD:  if((m[SREG] & FLAG_T) != 0) m[a] |= b; else m[a] &= ~b; break;
+                default:
+                    break;
+            }
+
+            cycles += cyc;
+            pc = nextPc;
+            return true;
+        }
+
+        // Slow path for IN/OUT/SBI/CBI/SBIC/SBIS/LDS/STS on a hooked register. Returns the next pc.
+        private int execIo(int kind, int a, int b, int nextPc) {
+            switch(kind) {
+                case K_IN:  data[a] = ioRead(b); break;
+                case K_OUT: ioWrite(b, data[a]); break;
+                case K_LDS: data[a] = ioRead(b); nextPc++; break;
+                case K_STS: ioWrite(b, data[a]); nextPc++; break;
+                case K_SBI: ioWrite(a, data[a] | b); break;
+                case K_CBI: ioWrite(a, data[a] & ~b); break;
+                default: {   // SBIC / SBIS
+                    boolean set = (ioRead(a) & b) != 0;
+                    if(set == (kind == K_SBIS)) { int s = skip(nextPc); cycles += s - nextPc; nextPc = s; }
+                    break;
+                }
+            }
+            return nextPc;
+        }
+
+        private int ioRead(int addr) {
+            IoHook h = hooks[addr];
+            return h != null ? h.read(addr) : data[addr];
+        }
+
+        private void ioWrite(int addr, int v) {
+            int old = data[addr];
+            data[addr] = v & 0xFF;
+            IoHook h = hooks[addr];
+            if(h != null) h.write(addr, old, v & 0xFF);
+        }
+
+        // Address of the instruction after the one at pc, skipping both words of LDS/STS/JMP/CALL.
+        private int skip(int pc) {
+            return pc < flash.length && isTwoWord(flash[pc]) ? pc + 2 : pc + 1;
+        }
+
+        // Addresses past RAMEND read as 0 and ignore writes. Pointer accesses to hooked registers
+        // take the same slow path as IN/OUT.
+        private int load(int addr) {
+            if(addr < hooks.length && hooks[addr] != null) return hooks[addr].read(addr);
+            return addr <= ramEnd ? data[addr] : 0;
+        }
+
+        private void store(int addr, int v) {
+            if(addr < hooks.length && hooks[addr] != null) ioWrite(addr, v);
+            else if(addr <= ramEnd) data[addr] = v & 0xFF;
+        }
+
+        private void push(int v) {
+            int sp = sp();
+            store(sp, v);
+            setSp(sp - 1);
+        }
+
+        private int pop() {
+            int sp = (sp() + 1) & 0xFFFF;
+            setSp(sp);
+            return load(sp);
+        }
+
+        // Return addresses go on the stack low byte first, so they read big-endian in SRAM.
+        private void pushPc(int ret) {
+            push(ret & 0xFF);
+            push((ret >> 8) & 0xFF);
+        }
+
+        // --- SREG updates ---
+        // C, V and H come straight from the carry/overflow bit vectors; S is N ^ V.
+
+        private void addFlags(int rd, int rr, int r) {
+            int carries = (rd & rr) | (rr & ~r) | (~r & rd);
+            setArith(r, carries, (rd ^ r) & (rr ^ r), FLAG_Z);
+        }
+
+        // SBC/SBCI/CPC only ever clear Z, so multi-byte compares chain correctly.
+        private void subFlags(int rd, int rr, int r, boolean chainZ) {
+            int borrows = (~rd & rr) | (rr & r) | (r & ~rd);
+            setArith(r, borrows, (rd ^ rr) & (rd ^ r), chainZ ? data[SREG] & FLAG_Z : FLAG_Z);
+        }
+
+        private void setArith(int r, int carries, int overflow, int zIfZero) {
+            int f = (carries >> 7 & FLAG_C) | (carries << 2 & FLAG_H) | (r == 0 ? zIfZero : 0)
+                  | (r >> 5 & FLAG_N) | (overflow >> 4 & FLAG_V);
+            data[SREG] = (data[SREG] & (FLAG_I | FLAG_T)) | f | (((f << 2) ^ (f << 1)) & FLAG_S);
+        }
+
+        private void logicFlags(int r) {
+            int n = r >> 5 & FLAG_N;
+            data[SREG] = (data[SREG] & (FLAG_I | FLAG_T | FLAG_H | FLAG_C)) | (r == 0 ? FLAG_Z : 0) | n | (n << 2);
+        }
+
+        private void incDecFlags(int r, boolean overflow) {
+            int f = (r == 0 ? FLAG_Z : 0) | (r >> 5 & FLAG_N) | (overflow ? FLAG_V : 0);
+            data[SREG] = (data[SREG] & (FLAG_I | FLAG_T | FLAG_H | FLAG_C)) | f | (((f << 2) ^ (f << 1)) & FLAG_S);
+        }
+
+        private void shiftFlags(int r, int carry) {
+            int n = r >> 7 & 1;
+            int f = carry | (r == 0 ? FLAG_Z : 0) | (n << 2) | ((n ^ carry) << 3);
+            data[SREG] = (data[SREG] & (FLAG_I | FLAG_T | FLAG_H)) | f | (((f << 2) ^ (f << 1)) & FLAG_S);
+        }
+
+        // R1:R0 = product. The FMUL family shifts left one bit; C is bit 15 before the shift.
+        private void mulResult(int product, boolean fractional) {
+            int p = product & 0xFFFF;
+            int carry = p >> 15;
+            if(fractional) p = (p << 1) & 0xFFFF;
+            data[0] = p & 0xFF;
+            data[1] = p >> 8;
+            data[SREG] = (data[SREG] & ~(FLAG_C | FLAG_Z)) | carry | (p == 0 ? FLAG_Z : 0);
+        }
+    }
+
+    // --- PERIPHERALS ---
+    // Timers, the USART and the external interrupt pins never run per instruction. Each keeps
+    // its state as of a base cycle and posts SimEvents (overflow, compare match, byte done, pin
+    // change) into the core's EventQueue at the cycle they happen. The core runs straight
+    // through to the earliest due event, fires it, then enters any pending interrupt. Registers
+    // with side effects are hooked per address; the decoder routes IN/OUT/SBI/CBI/SBIC/SBIS/
+    // LDS/STS on those addresses to a slow path, so every other I/O access stays a plain store.
+
+    abstract static class SimEvent {
+        long due = Long.MAX_VALUE;
+        int heapIndex = -1;   // slot in the EventQueue, -1 when not scheduled
+        int id = -1;          // index in AvrCore's event registry, so snapshots can name it
+
+        abstract void fire();
+    }
+
+    // Binary min-heap on due cycle. Events are long-lived objects that remember their slot, so
+    // rescheduling or cancelling one never allocates.
+    static final class EventQueue {
+        private SimEvent[] heap = new SimEvent[16];
+        private int size;
+
+        long nextDue() { return size == 0 ? Long.MAX_VALUE : heap[0].due; }
+
+        int size() { return size; }
+        SimEvent at(int i) { return heap[i]; }
+
+        void schedule(SimEvent e, long due) {
+            if(e.heapIndex >= 0) {
+                long old = e.due;
+                e.due = due;
+                if(due < old) siftUp(e.heapIndex); else siftDown(e.heapIndex);
+                return;
+            }
+            if(size == heap.length) heap = Arrays.copyOf(heap, size * 2);
+            e.due = due;
+            e.heapIndex = size;
+            heap[size++] = e;
+            siftUp(size - 1);
+        }
+
+        void cancel(SimEvent e) {
+            int i = e.heapIndex;
+            if(i < 0) return;
+            e.heapIndex = -1;
+            SimEvent last = heap[--size];
+            heap[size] = null;
+            if(i == size) return;
+            heap[i] = last;
+            last.heapIndex = i;
+            siftDown(i);
+            siftUp(last.heapIndex);
+        }
+
+        // Removes and returns the earliest event if it is due at or before now.
+        SimEvent pollDue(long now) {
+            if(size == 0 || heap[0].due > now) return null;
+            SimEvent e = heap[0];
+            cancel(e);
+            return e;
+        }
+
+        void clear() {
+            for(int i=0; i<size; i++) { heap[i].heapIndex = -1; heap[i] = null; }
+            size = 0;
+        }
+
+        private void siftUp(int i) {
+            SimEvent e = heap[i];
+            while(i > 0) {
+                int parent = (i - 1) >>> 1;
+                SimEvent p = heap[parent];
+                if(p.due <= e.due) break;
+                heap[i] = p; p.heapIndex = i;
+                i = parent;
+            }
+            heap[i] = e; e.heapIndex = i;
+        }
+
+        private void siftDown(int i) {
+            SimEvent e = heap[i];
+            while(true) {
+                int child = 2 * i + 1;
+                if(child >= size) break;
+                if(child + 1 < size && heap[child + 1].due < heap[child].due) child++;
+                SimEvent c = heap[child];
+                if(e.due <= c.due) break;
+                heap[i] = c; c.heapIndex = i;
+                i = child;
+            }
+            heap[i] = e; e.heapIndex = i;
+        }
+    }
+
+    // A register with side effects. write() runs after the new value is already in the data space.
+    interface IoHook {
+        int read(int addr);
+        void write(int addr, int old, int value);
+    }
+
+    abstract static class Peripheral implements IoHook {
+        final AvrCore core;
+
+        Peripheral(AvrCore core) { this.core = core; }
+
+        @Override public int read(int addr) { return core.data[addr]; }
+        @Override public void write(int addr, int old, int value) { }
+
+        void reset() { }
+
+        // Copies lazily computed state (e.g. a running timer's count) into the data space.
+        void sync() { }
+
+        // State that is not in the data space or the event queue, for reverse execution.
+        void save(ByteBuffer b) { }
+        void restore(ByteBuffer b) { }
+
+        void hook(int addr) { if(addr >= 0) core.hooks[addr] = this; }
+    }
+
+    static final class IrqSource {
+        final int vector, flagAddr, flagMask, enableAddr, enableMask;
+        final boolean autoClear;   // hardware clears the flag when the vector is taken
+
+        IrqSource(int vector, int flagAddr, int flagMask, int enableAddr, int enableMask, boolean autoClear) {
+            this.vector = vector; this.flagAddr = flagAddr; this.flagMask = flagMask;
+            this.enableAddr = enableAddr; this.enableMask = enableMask; this.autoClear = autoClear;
+        }
+    }
+
+    // Wires up the peripherals each supported part has. Called by AvrCore before it decodes flash.
+    static final class Peripherals {
+        private Peripherals() { }
+
+        static void install(AvrCore c) {
+            Device d = c.device;
+            InterruptRegisters irq = new InterruptRegisters(c);
+            irq.masks("SREG");
+            if(d.reg("TCCR0") >= 0) {   // ATmega32
+                irq.flags("TIFR", "GIFR");
+                irq.masks("TIMSK", "GICR");
+                new Timer(c, false, Timer.PRESCALE, "TCCR0", null, "TCNT0", "OCR0", null, null, "TIFR", "TIMSK", 0, 1, -1, "TIMER0_OVF", "TIMER0_COMP", null);
+                new Timer(c, true, Timer.PRESCALE, "TCCR1A", "TCCR1B", "TCNT1", "OCR1A", "OCR1B", "ICR1", "TIFR", "TIMSK", 2, 4, 3, "TIMER1_OVF", "TIMER1_COMPA", "TIMER1_COMPB");
+                new Timer(c, false, Timer.PRESCALE_T2, "TCCR2", null, "TCNT2", "OCR2", null, null, "TIFR", "TIMSK", 6, 7, -1, "TIMER2_OVF", "TIMER2_COMP", null);
+                c.usart = new Usart(c, "UDR", "UCSRA", "UCSRB", "UBRRL", "UBRRH", true, "USART_RXC", "USART_UDRE", "USART_TXC");
+                ExternalInterrupts ext = new ExternalInterrupts(c);
+                ext.line(3, 2, "MCUCR", 0, "GIFR", 6, "GICR", "INT0");
+                ext.line(3, 3, "MCUCR", 2, "GIFR", 7, "GICR", "INT1");
+                ext.line(1, 2, "MCUCSR", -1, "GIFR", 5, "GICR", "INT2");
+                c.pins = ext;
+                c.sleepAddr = d.reg("MCUCR");
+                c.sleepMask = 0x80;
+                c.eeprom = new Eeprom(c, 136_000);   // 8.5 ms
+            } else {                    // ATmega328P
+                irq.flags("TIFR0", "TIFR1", "TIFR2", "EIFR", "PCIFR");
+                irq.masks("TIMSK0", "TIMSK1", "TIMSK2", "EIMSK", "PCICR");
+                new Timer(c, false, Timer.PRESCALE, "TCCR0A", "TCCR0B", "TCNT0", "OCR0A", "OCR0B", null, "TIFR0", "TIMSK0", 0, 1, 2, "TIMER0_OVF", "TIMER0_COMPA", "TIMER0_COMPB");
+                new Timer(c, true, Timer.PRESCALE, "TCCR1A", "TCCR1B", "TCNT1", "OCR1A", "OCR1B", "ICR1", "TIFR1", "TIMSK1", 0, 1, 2, "TIMER1_OVF", "TIMER1_COMPA", "TIMER1_COMPB");
+                new Timer(c, false, Timer.PRESCALE_T2, "TCCR2A", "TCCR2B", "TCNT2", "OCR2A", "OCR2B", null, "TIFR2", "TIMSK2", 0, 1, 2, "TIMER2_OVF", "TIMER2_COMPA", "TIMER2_COMPB");
+                c.usart = new Usart(c, "UDR0", "UCSR0A", "UCSR0B", "UBRR0L", "UBRR0H", false, "USART_RX", "USART_UDRE", "USART_TX");
+                ExternalInterrupts ext = new ExternalInterrupts(c);
+                ext.line(3, 2, "EICRA", 0, "EIFR", 0, "EIMSK", "INT0");
+                ext.line(3, 3, "EICRA", 2, "EIFR", 1, "EIMSK", "INT1");
+                ext.pinChangeBank(1, "PCMSK0", 0, "PCINT0");
+                ext.pinChangeBank(2, "PCMSK1", 1, "PCINT1");
+                ext.pinChangeBank(3, "PCMSK2", 2, "PCINT2");
+                c.pins = ext;
+                c.sleepAddr = d.reg("SMCR");
+                c.sleepMask = 0x01;
+                c.eeprom = new Eeprom(c, 54_400);    // 3.4 ms
+            }
+        }
+    }
+
+    // EEPROM behind EEAR/EEDR/EECR (EEMWE/EEWE on the ATmega32, EEMPE/EEPE on the 328P, same bits).
+    // A read is immediate and stalls the CPU for 4 cycles. A write needs the master-enable bit set
+    // in the 4 cycles before. The byte is stored at once, but the write bit stays set for the part's
+    // programming time. That time is given in cycles at 16 MHz, because the real EEPROM is timed by
+    // its own oscillator, not the CPU clock. The contents survive a reset and start erased (0xFF).
+    static final class Eeprom extends Peripheral {
+        static final int EERE = 0x01, EEWE = 0x02, EEMWE = 0x04;
+
+        final int[] bytes;
+        private final int eecr, eedr, eearl, eearh;
+        private final long writeCycles;
+        private long masterUntil = -1;
+
+        private final SimEvent writeDone = new SimEvent() {
+            @Override void fire() { core.data[eecr] &= ~EEWE; }
+        };
+
+        Eeprom(AvrCore c, long writeCycles) {
+            super(c);
+            Device d = c.device;
+            bytes = new int[d.eepromBytes];
+            Arrays.fill(bytes, 0xFF);
+            eecr = d.reg("EECR"); eedr = d.reg("EEDR"); eearl = d.reg("EEARL"); eearh = d.reg("EEARH");
+            this.writeCycles = writeCycles;
+            hook(eecr);
+            c.peripherals.add(this);
+        }
+
+        @Override void reset() { masterUntil = -1; }
+
+        private int address() { return (core.data[eearl] | core.data[eearh] << 8) & (bytes.length - 1); }
+
+        @Override public int read(int addr) {
+            if(core.cycles > masterUntil) core.data[eecr] &= ~EEMWE;   // the hardware clears it after 4 cycles
+            return core.data[eecr];
+        }
+
+        @Override public void write(int addr, int old, int value) {
+            int[] m = core.data;
+            boolean writing = writeDone.heapIndex >= 0;
+            if((value & EEMWE) != 0 && (old & EEMWE) == 0) masterUntil = core.cycles + 4;
+            if((value & EEWE) != 0 && !writing) {
+                if(core.cycles <= masterUntil) {
+                    bytes[address()] = m[eedr];
+                    core.schedule(writeDone, core.cycles + writeCycles);
+                    writing = true;
+                    masterUntil = -1;
+                }
+            }
+            if((value & EERE) != 0 && !writing) {
+                m[eedr] = bytes[address()];
+                core.cycles += 4;
+            }
+            m[eecr] = (value & ~(EERE | EEWE)) | (writing ? EEWE : 0);
+        }
+
+        @Override void save(ByteBuffer b) {
+            b.putLong(masterUntil);
+            AvrCore.putBytes(b, bytes);
+        }
+
+        @Override void restore(ByteBuffer b) {
+            masterUntil = b.getLong();
+            AvrCore.getBytes(b, bytes);
+        }
+    }
+
+    // Interrupt flag registers clear the bits written as 1. Writes to enable registers (and SREG)
+    // can unmask a pending flag, so they make the core look for an interrupt.
+    static final class InterruptRegisters extends Peripheral {
+        private final boolean[] isFlag = new boolean[0x100];
+
+        InterruptRegisters(AvrCore core) { super(core); }
+
+        void flags(String... names) {
+            for(String n : names) { int a = core.device.reg(n); if(a >= 0) { isFlag[a] = true; hook(a); } }
+        }
+
+        void masks(String... names) {
+            for(String n : names) hook(core.device.reg(n));
+        }
+
+        @Override public void write(int addr, int old, int value) {
+            if(isFlag[addr]) core.data[addr] = old & ~value;
+            else core.requestIrqCheck();
+        }
+    }
+
+    // 8- or 16-bit timer/counter. The count is never stored while running: it is derived from
+    // the cycle counter, a base cycle and the count at that base. Overflow and compare matches
+    // are scheduled for the exact prescaled cycle they occur on. Normal, CTC and fast PWM modes
+    // are timed exactly; phase-correct modes are counted like fast PWM with the same TOP.
+    static final class Timer extends Peripheral {
+        static final int[] PRESCALE = {0, 1, 8, 64, 256, 1024, 0, 0};        // 6/7 = external clock, not modelled
+        static final int[] PRESCALE_T2 = {0, 1, 8, 32, 64, 128, 256, 1024};
+
+        private final boolean wide;
+        private final int max;
+        private final int[] prescaleTable;
+        private final int ctrlA, ctrlB;   // ctrlB is -1 for the ATmega32's single TCCR0/TCCR2
+        private final int cntL, cntH, ocrAL, ocrAH, ocrBL, ocrBH, icrL, icrH;
+        private final int flagReg, tovMask, ocfAMask, ocfBMask;
+
+        private long base;            // cycle the count was last set or re-based
+        private int baseCount;
+        private int prescaler;        // 0 = stopped
+        private int top;
+        private boolean ctc;
+        private int ocrA, ocrB, icr;
+        private int temp;             // shared high-byte latch for 16-bit accesses
+
+        private final SimEvent overflow = new SimEvent() {
+            @Override void fire() { raise(tovMask); planOverflow(due); }
+        };
+        private final SimEvent compareA = new SimEvent() {
+            @Override void fire() { raise(ocfAMask); plan(this, ocrA, due); }
+        };
+        private final SimEvent compareB = new SimEvent() {
+            @Override void fire() { raise(ocfBMask); plan(this, ocrB, due); }
+        };
+
+        Timer(AvrCore c, boolean wide, int[] prescaleTable, String ctrlA, String ctrlB, String cnt, String ocrA, String ocrB,
+              String icr, String flagReg, String maskReg, int tovBit, int ocfABit, int ocfBBit,
+              String ovfVector, String compAVector, String compBVector) {
+            super(c);
+            Device d = c.device;
+            this.wide = wide;
+            this.max = wide ? 0xFFFF : 0xFF;
+            this.prescaleTable = prescaleTable;
+            this.ctrlA = d.reg(ctrlA);
+            this.ctrlB = ctrlB == null ? -1 : d.reg(ctrlB);
+            cntL = d.reg(wide ? cnt + "L" : cnt);   cntH = wide ? d.reg(cnt + "H") : -1;
+            ocrAL = d.reg(wide ? ocrA + "L" : ocrA); ocrAH = wide ? d.reg(ocrA + "H") : -1;
+            ocrBL = ocrB == null ? -1 : d.reg(wide ? ocrB + "L" : ocrB);
+            ocrBH = ocrB != null && wide ? d.reg(ocrB + "H") : -1;
+            icrL = icr == null ? -1 : d.reg(icr + "L");
+            icrH = icr == null ? -1 : d.reg(icr + "H");
+            this.flagReg = d.reg(flagReg);
+            tovMask = 1 << tovBit;
+            ocfAMask = 1 << ocfABit;
+            ocfBMask = ocfBBit < 0 ? 0 : 1 << ocfBBit;
+            for(int a : new int[]{this.ctrlA, this.ctrlB, cntL, cntH, ocrAL, ocrAH, ocrBL, ocrBH, icrL, icrH}) hook(a);
+
+            int mask = d.reg(maskReg);
+            c.addInterrupt(d.vector(ovfVector), this.flagReg, tovMask, mask, tovMask, true);
+            c.addInterrupt(d.vector(compAVector), this.flagReg, ocfAMask, mask, ocfAMask, true);
+            if(compBVector != null) c.addInterrupt(d.vector(compBVector), this.flagReg, ocfBMask, mask, ocfBMask, true);
+            c.peripherals.add(this);
+        }
+
+        @Override void reset() {
+            base = 0; baseCount = 0; prescaler = 0; top = max; ctc = false;
+            ocrA = 0; ocrB = 0; icr = 0; temp = 0;
+        }
+
+        @Override void sync() {
+            int count = countAt(core.cycles);
+            core.data[cntL] = count & 0xFF;
+            if(wide) core.data[cntH] = count >> 8;
+        }
+
+        @Override void save(ByteBuffer b) {
+            b.putLong(base).putInt(baseCount).putInt(prescaler).putInt(top).put((byte) (ctc ? 1 : 0))
+             .putInt(ocrA).putInt(ocrB).putInt(icr).putInt(temp);
+        }
+
+        @Override void restore(ByteBuffer b) {
+            base = b.getLong(); baseCount = b.getInt(); prescaler = b.getInt(); top = b.getInt(); ctc = b.get() != 0;
+            ocrA = b.getInt(); ocrB = b.getInt(); icr = b.getInt(); temp = b.getInt();
+        }
+
+        @Override public int read(int addr) {
+            if(addr == cntL) {
+                int count = countAt(core.cycles);
+                temp = count >> 8;
+                core.data[cntL] = count & 0xFF;
+                if(wide) core.data[cntH] = temp;
+                return count & 0xFF;
+            }
+            if(addr == cntH) return temp;
+            return core.data[addr];
+        }
+
+        @Override public void write(int addr, int old, int v) {
+            if(wide && (addr == cntH || addr == ocrAH || addr == ocrBH || addr == icrH)) {
+                temp = v;   // the high byte lands when the low byte is written
+                return;
+            }
+            long now = core.cycles;
+            int count = countAt(now);
+            if(addr == cntL) count = wide ? temp << 8 | v : v;
+            else if(addr == ocrAL) ocrA = wide ? temp << 8 | v : v;
+            else if(addr == ocrBL) ocrB = wide ? temp << 8 | v : v;
+            else if(addr == icrL) icr = temp << 8 | v;
+            if(wide) {
+                if(addr == ocrAL) core.data[ocrAH] = temp;
+                else if(addr == ocrBL) core.data[ocrBH] = temp;
+                else if(addr == icrL) core.data[icrH] = temp;
+            }
+            configure(now, count);
+        }
+
+        private void raise(int mask) {
+            core.data[flagReg] |= mask;
+            core.requestIrqCheck();
+        }
+
+        // Re-reads mode and prescaler, restarts counting from count at cycle now, re-plans events.
+        private void configure(long now, int count) {
+            int a = core.data[ctrlA];
+            int wgm, cs;
+            if(ctrlB < 0) {
+                wgm = ((a >> 6) & 1) | ((a >> 2) & 2);
+                cs = a & 7;
+            } else {
+                int b = core.data[ctrlB];
+                wgm = (a & 3) | ((b >> 1) & (wide ? 0x0C : 0x04));
+                cs = b & 7;
+            }
+            top = topFor(wgm);
+            ctc = wide ? wgm == 4 || wgm == 12 : wgm == 2;
+            prescaler = prescaleTable[cs];
+            base = now;
+            baseCount = count;
+            planOverflow(now);
+            plan(compareA, ocrA, now);
+            if(ocrBL >= 0) plan(compareB, ocrB, now);
+        }
+
+        private int topFor(int wgm) {
+            if(!wide) return wgm == 2 || wgm == 5 || wgm == 7 ? ocrA : max;
+            switch(wgm) {
+                case 1: case 5: return 0x00FF;
+                case 2: case 6: return 0x01FF;
+                case 3: case 7: return 0x03FF;
+                case 4: case 9: case 11: case 15: return ocrA;
+                case 8: case 10: case 12: case 14: return icr;
+                default: return max;
+            }
+        }
+
+        private int countAt(long now) {
+            if(prescaler == 0) return baseCount;
+            long n = now / prescaler - base / prescaler;
+            if(baseCount <= top) return (int) ((baseCount + n) % (top + 1));
+            long toWrap = max - baseCount + 1L;   // above TOP (e.g. OCR lowered in CTC): run on to MAX first
+            return n < toWrap ? (int) (baseCount + n) : (int) ((n - toWrap) % (top + 1));
+        }
+
+        // Timer ticks from a count of c until the counter next shows v, or -1 if it never will.
+        private long ticksTo(int c, int v) {
+            int wrap = c <= top ? top : max;
+            if(v > wrap) return -1;
+            return v > c ? v - c : (long) wrap - c + 1 + v;
+        }
+
+        private void planOverflow(long from) {
+            int c = countAt(from);
+            plan(overflow, ctc ? (c > top ? max - c + 1L : -1) : ticksTo(c, 0), from);
+        }
+
+        private void plan(SimEvent e, int value, long from) {
+            plan(e, ticksTo(countAt(from), value), from);
+        }
+
+        private void plan(SimEvent e, long ticks, long from) {
+            if(prescaler == 0 || ticks < 0) { core.events.cancel(e); return; }
+            core.schedule(e, (from / prescaler + ticks) * prescaler);
+        }
+    }
+
+    // USART with a one-byte transmit buffer in front of the shift register, timed from UBRR
+    // (10-bit frames). Transmitted bytes go to a sink; the host feeds received bytes from any
+    // thread and they arrive one frame apart. Host input is journaled with the cycle it arrived
+    // on, so a rewound core receives it again at the same point.
+    static final class Usart extends Peripheral {
+        static final int RXC = 0x80, TXC = 0x40, UDRE = 0x20, DOR = 0x08, U2X = 0x02;
+        static final int RXEN = 0x10, TXEN = 0x08;
+
+        private final int udr, ucsra, ucsrb, ubrrl, ubrrh;
+        private final boolean sharedUcsrc;   // ATmega32: UBRRH and UCSRC share an address, told apart by URSEL
+        private int txShift = -1, txBuffer = -1, rxData;
+        private final ConcurrentLinkedQueue<byte[]> hostInput = new ConcurrentLinkedQueue<>();
+        private final java.util.List<byte[]> received = new ArrayList<>();   // sim thread only
+        private long[] arrivedAt = new long[8];
+        private int rxIndex, rxPos;                                         // read cursor into received
+        IntConsumer sink = b -> { };
+
+        private final SimEvent txDone = new SimEvent() {
+            @Override void fire() {
+                sink.accept(txShift);
+                if(txBuffer >= 0) {
+                    txShift = txBuffer;
+                    txBuffer = -1;
+                    core.data[ucsra] |= UDRE;
+                    core.schedule(this, due + frameCycles());
+                } else {
+                    txShift = -1;
+                    core.data[ucsra] |= TXC;
+                }
+                core.requestIrqCheck();
+            }
+        };
+
+        private final SimEvent rxDone = new SimEvent() {
+            @Override void fire() {
+                int b = nextHostByte();
+                if(b < 0) return;
+                complete(b);
+                if(hasHostByte()) core.schedule(this, due + frameCycles());
+            }
+        };
+
+        private final SimEvent hostArrival = new SimEvent() {
+            @Override void fire() { pollHost(); }
+        };
+
+        Usart(AvrCore c, String udr, String ucsra, String ucsrb, String ubrrl, String ubrrh, boolean sharedUcsrc,
+              String rxVector, String udreVector, String txVector) {
+            super(c);
+            Device d = c.device;
+            this.udr = d.reg(udr);
+            this.ucsra = d.reg(ucsra);
+            this.ucsrb = d.reg(ucsrb);
+            this.ubrrl = d.reg(ubrrl);
+            this.ubrrh = d.reg(ubrrh);
+            this.sharedUcsrc = sharedUcsrc;
+            for(int a : new int[]{this.udr, this.ucsra, this.ucsrb, this.ubrrh}) hook(a);
+            c.addInterrupt(d.vector(rxVector), this.ucsra, RXC, this.ucsrb, 0x80, false);
+            c.addInterrupt(d.vector(udreVector), this.ucsra, UDRE, this.ucsrb, 0x20, false);
+            c.addInterrupt(d.vector(txVector), this.ucsra, TXC, this.ucsrb, 0x40, true);
+            c.peripherals.add(this);
+        }
+
+        // Any thread: queues bytes for the receiver.
+        void feed(byte[] bytes) {
+            hostInput.add(bytes.clone());
+            core.hostInput = true;
+        }
+
+        // A frame from another simulated part (see MULTI-MCU CO-SIMULATION) has just finished
+        // arriving. It is lost while the receiver is disabled, as on the chip.
+        void receive(int b) {
+            if((core.data[ucsrb] & RXEN) != 0) complete(b);
+        }
+
+        private void complete(int b) {
+            rxData = b;
+            core.data[udr] = b;
+            if((core.data[ucsra] & RXC) != 0) core.data[ucsra] |= DOR;
+            core.data[ucsra] |= RXC;
+            core.requestIrqCheck();
+        }
+
+        // Sim thread: journals new host input and starts receiving if the receiver is idle.
+        void pollHost() {
+            byte[] chunk;
+            while((chunk = hostInput.poll()) != null) {
+                if(received.size() == arrivedAt.length) arrivedAt = Arrays.copyOf(arrivedAt, arrivedAt.length * 2);
+                arrivedAt[received.size()] = core.cycles;
+                received.add(chunk);
+            }
+            if(rxDone.heapIndex < 0 && (core.data[ucsrb] & RXEN) != 0 && hasHostByte()) core.schedule(rxDone, core.cycles + frameCycles());
+        }
+
+        private boolean hasHostByte() {
+            for(; rxIndex < received.size(); rxIndex++, rxPos = 0) {
+                if(arrivedAt[rxIndex] > core.cycles) return false;
+                if(rxPos < received.get(rxIndex).length) return true;
+            }
+            return false;
+        }
+
+        private int nextHostByte() { return hasHostByte() ? received.get(rxIndex)[rxPos++] & 0xFF : -1; }
+
+        private long frameCycles() {
+            int ubrr = ((core.data[ubrrh] & 0x0F) << 8) | core.data[ubrrl];
+            return ((core.data[ucsra] & U2X) != 0 ? 8L : 16L) * (ubrr + 1) * 10;
+        }
+
+        @Override void reset() {
+            txShift = -1; txBuffer = -1; rxData = 0;
+            core.data[ucsra] = UDRE;
+        }
+
+        @Override void save(ByteBuffer b) {
+            b.putInt(txShift).putInt(txBuffer).putInt(rxData).putInt(rxIndex).putInt(rxPos);
+        }
+
+        // Journaled input that had not arrived yet at the snapshot is delivered again on time.
+        @Override void restore(ByteBuffer b) {
+            txShift = b.getInt(); txBuffer = b.getInt(); rxData = b.getInt(); rxIndex = b.getInt(); rxPos = b.getInt();
+            if(rxDone.heapIndex < 0 && rxIndex < received.size()) core.schedule(hostArrival, Math.max(core.cycles, arrivedAt[rxIndex]));
+        }
+
+        @Override public int read(int addr) {
+            if(addr == udr) {
+                core.data[ucsra] &= ~(RXC | DOR);
+                core.data[udr] = rxData;
+                return rxData;
+            }
+            return core.data[addr];
+        }
+
+        @Override public void write(int addr, int old, int v) {
+            int[] m = core.data;
+            if(addr == udr) {
+                m[udr] = rxData;   // UDR reads back the receive buffer, not what was written
+                if((m[ucsrb] & TXEN) == 0) return;
+                if(txShift < 0) {
+                    txShift = v;
+                    core.schedule(txDone, core.cycles + frameCycles());
+                } else if(txBuffer < 0) {
+                    txBuffer = v;
+                    m[ucsra] &= ~UDRE;
+                }
+            } else if(addr == ucsra) {
+                // RXC, UDRE and the error bits are read-only; TXC clears by writing 1.
+                m[ucsra] = (old & 0xBC) | (old & TXC & ~v) | (v & 0x03);
+            } else if(addr == ucsrb) {
+                core.requestIrqCheck();
+                if((v & RXEN) != 0) pollHost();
+            } else if(addr == ubrrh && sharedUcsrc && (v & 0x80) != 0) {
+                m[ubrrh] = old;    // URSEL set: this was a UCSRC write (frame format is fixed at 8N1 here)
+            }
+        }
+    }
+
+    // INTn lines and pin-change banks, driven by AvrCore.setPin(). Low-level sense (ISCn = 00) is
+    // treated as a falling edge.
+    static final class ExternalInterrupts extends Peripheral {
+        private final java.util.List<int[]> lines = new ArrayList<>();   // {port, bit, senseReg, senseShift, flagReg, flagMask}
+        private final int[] pcMaskReg = {-1, -1, -1, -1}, pcFlagMask = new int[4];
+        private int pcFlagReg = -1;
+
+        ExternalInterrupts(AvrCore c) { super(c); }
+
+        // senseShift -1 selects the ATmega32 INT2 scheme: ISC2 (bit 6) picks rising over falling.
+        void line(int port, int bit, String senseReg, int senseShift, String flagReg, int flagBit, String maskReg, String vector) {
+            Device d = core.device;
+            int flag = d.reg(flagReg);
+            lines.add(new int[]{port, bit, d.reg(senseReg), senseShift, flag, 1 << flagBit});
+            core.addInterrupt(d.vector(vector), flag, 1 << flagBit, d.reg(maskReg), 1 << flagBit, true);
+        }
+
+        void pinChangeBank(int port, String maskReg, int bank, String vector) {
+            Device d = core.device;
+            pcFlagReg = d.reg("PCIFR");
+            pcMaskReg[port] = d.reg(maskReg);
+            pcFlagMask[port] = 1 << bank;
+            core.addInterrupt(d.vector(vector), pcFlagReg, 1 << bank, d.reg("PCICR"), 1 << bank, true);
+        }
+
+        void pinChanged(int port, int bit, boolean high) {
+            int[] m = core.data;
+            for(int[] l : lines) {
+                if(l[0] != port || l[1] != bit) continue;
+                int sense = l[3] < 0 ? 2 + ((m[l[2]] >> 6) & 1) : (m[l[2]] >> l[3]) & 3;
+                if(sense == 1 || (sense == 3) == high) {
+                    m[l[4]] |= l[5];
+                    core.requestIrqCheck();
+                }
+            }
+            if(pcMaskReg[port] >= 0 && (m[pcMaskReg[port]] & (1 << bit)) != 0) {
+                m[pcFlagReg] |= pcFlagMask[port];
+                core.requestIrqCheck();
+            }
+        }
+    }
+
+    // --- EXECUTION TRACE ---
+    // Fixed-width binary trace, one 16-byte little-endian record per executed instruction:
+    //   long cycle | u16 pc (word) | u16 opcode | u16 written address | u8 new value | u8 SREG
+    // The written address is the data-space byte the instruction stored (register, I/O or SRAM),
+    // NO_WRITE if none, or IRQ for an interrupt entry (the opcode field then holds the vector).
+    // Records go straight into memory-mapped windows of the file, so the heap stays flat no
+    // matter how long the run is. A 32-byte header holds the magic, record size and count.
+
+    static final class TraceWriter implements Closeable {
+        static final byte[] MAGIC = "AVRTRC01".getBytes(StandardCharsets.US_ASCII);
+        static final int HEADER = 32, RECORD = 16;
+        static final int NO_WRITE = 0xFFFF, IRQ = 0xFFFE;
+        static final long WINDOW = 64L << 20;   // bytes mapped at a time (a multiple of RECORD)
+
+        final File file;
+        private final FileChannel channel;
+        private MappedByteBuffer buf;
+        long count;
+
+        TraceWriter(File file) throws IOException {
+            this.file = file;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                       StandardOpenOption.READ, StandardOpenOption.WRITE);
+            map(HEADER);
+        }
+
+        // Two 8-byte stores per record instead of six field writes.
+        void record(long cycle, int pc, int opcode, int addr, int value, int sreg) {
+            if(buf.remaining() < RECORD) {
+                try { map(HEADER + count * RECORD); }
+                catch(IOException e) { throw new UncheckedIOException(e); }
+            }
+            buf.putLong(cycle);
+            buf.putLong((pc & 0xFFFFL) | (opcode & 0xFFFFL) << 16 | (addr & 0xFFFFL) << 32 | (value & 0xFFL) << 48 | (sreg & 0xFFL) << 56);
+            count++;
+        }
+
+        private void map(long pos) throws IOException {
+            buf = channel.map(FileChannel.MapMode.READ_WRITE, pos, WINDOW);
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        // Writes the header and trims the unused tail of the last window.
+        @Override public void close() throws IOException {
+            buf = null;
+            ByteBuffer h = ByteBuffer.allocate(HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            h.put(MAGIC).putInt(RECORD).putInt(0).putLong(count).flip();
+            channel.write(h, 0);
+            channel.truncate(HEADER + count * RECORD);
+            channel.close();
+        }
+    }
+
+    // Random access over a trace file through a sliding read-only window.
+    static final class TraceReader implements Closeable {
+        final File file;
+        final long count;
+        private final FileChannel channel;
+        private MappedByteBuffer win;
+        private long winStart = -1;
+
+        TraceReader(File file) throws IOException {
+            this.file = file;
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            ByteBuffer h = ByteBuffer.allocate(TraceWriter.HEADER).order(ByteOrder.LITTLE_ENDIAN);
+            channel.read(h, 0);
+            h.flip();
+            byte[] magic = new byte[8];
+            if(h.remaining() < TraceWriter.HEADER) { channel.close(); throw new IOException(file + ": not a trace file"); }
+            h.get(magic);
+            int recSize = h.getInt();
+            h.getInt();
+            long n = h.getLong();
+            if(!Arrays.equals(magic, TraceWriter.MAGIC) || recSize != TraceWriter.RECORD) {
+                channel.close();
+                throw new IOException(file + ": not a trace file");
+            }
+            // A run that crashed before close() leaves count 0; recover what the file holds.
+            long fit = (channel.size() - TraceWriter.HEADER) / TraceWriter.RECORD;
+            count = n > 0 ? Math.min(n, fit) : fit;
+        }
+
+        // Byte offset of record i inside the current window, mapping a new window if needed.
+        private int at(long i) {
+            long pos = TraceWriter.HEADER + i * TraceWriter.RECORD;
+            if(win == null || pos < winStart || pos >= winStart + win.capacity()) {
+                winStart = TraceWriter.HEADER + (i * TraceWriter.RECORD / TraceWriter.WINDOW) * TraceWriter.WINDOW;
+                try {
+                    long len = Math.min(TraceWriter.WINDOW, TraceWriter.HEADER + count * TraceWriter.RECORD - winStart);
+                    win = channel.map(FileChannel.MapMode.READ_ONLY, winStart, len);
+                    win.order(ByteOrder.LITTLE_ENDIAN);
+                } catch(IOException e) { throw new UncheckedIOException(e); }
+            }
+            return (int) (pos - winStart);
+        }
+
+        long cycle(long i)  { int o = at(i); return win.getLong(o); }
+        int pc(long i)      { int o = at(i); return win.getShort(o + 8) & 0xFFFF; }
+        int opcode(long i)  { int o = at(i); return win.getShort(o + 10) & 0xFFFF; }
+        int addr(long i)    { int o = at(i); return win.getShort(o + 12) & 0xFFFF; }
+        int value(long i)   { int o = at(i); return win.get(o + 14) & 0xFF; }
+        int sreg(long i)    { int o = at(i); return win.get(o + 15) & 0xFF; }
+
+        // Index of the first record at or after the given cycle (count if there is none).
+        long seekCycle(long cycle) {
+            long lo = 0, hi = count;
+            while(lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                if(cycle(mid) < cycle) lo = mid + 1; else hi = mid;
+            }
+            return lo;
+        }
+
+        // "R16 = 0x0A", "0x0060 = 0x12", "IRQ #11" or "".
+        String describeWrite(long i) {
+            int a = addr(i);
+            if(a == TraceWriter.IRQ) return "IRQ #" + opcode(i);
+            if(a == TraceWriter.NO_WRITE) return "";
+            return (a < 32 ? "R" + a : String.format("0x%04X", a)) + String.format(" = 0x%02X", value(i));
+        }
+
+        String format(long i) {
+            return String.format("%10d  %12d  0x%04X  %04X  %-16s SREG=%02X", i, cycle(i), pc(i) * 2, opcode(i), describeWrite(i), sreg(i));
+        }
+
+        @Override public void close() throws IOException {
+            win = null;
+            channel.close();
+        }
+    }
+
+    // --- REVERSE EXECUTION ---
+    // Step-back and run-back rebuild an earlier state instead of undoing instructions. Every
+    // 'interval' cycles the core's complete state (data space, pc, cycles, pending events and
+    // peripheral registers) is serialized into an off-heap ring. A second off-heap ring records
+    // the start cycle and pc of every executed instruction. To go back to instruction k, the
+    // nearest snapshot at or before it is restored and execution is replayed up to its start
+    // cycle. The core is deterministic, so the replay reaches exactly the same state, and any
+    // rewind costs one restore plus at most 'interval' cycles. Both rings have a fixed size
+    // taken from the memory budget, and the oldest history is dropped first.
+
+    static final class ReverseHistory {
+        final AvrCore core;
+        final long interval;
+        long nextSnapshot;
+
+        private final ByteBuffer snaps;                                  // serialized snapshots
+        private final ArrayDeque<long[]> index = new ArrayDeque<>();     // {cycles, offset, length}, oldest first
+        private int head;
+        private ByteBuffer scratch = ByteBuffer.allocate(4096);
+
+        private final LongBuffer steps;                                  // cycle | pc << 48 per instruction
+        private final int stepMask;
+        private long stepCount;
+
+        // A quarter of the budget holds snapshots, the rest the per-instruction ring.
+        ReverseHistory(AvrCore core, long budgetBytes, long interval) {
+            this.core = core;
+            this.interval = Math.max(1, interval);
+            long budget = Math.max(budgetBytes, 1L << 20);
+            int stepCap = Integer.highestOneBit((int) Math.min(budget * 3 / 4 / 8, 1 << 27));
+            steps = ByteBuffer.allocateDirect(stepCap * 8).asLongBuffer();
+            stepMask = stepCap - 1;
+            snaps = ByteBuffer.allocateDirect((int) Math.min(budget / 4, Integer.MAX_VALUE));
+            snapshot();
+        }
+
+        void record(long cycle, int pc) {
+            steps.put((int) (stepCount++ & stepMask), cycle | (long) pc << 48);
+        }
+
+        private long oldestStep() { return Math.max(0, stepCount - stepMask - 1); }
+        private long stepCycle(long i) { return steps.get((int) (i & stepMask)) & 0xFFFF_FFFF_FFFFL; }
+        private int stepPc(long i) { return (int) (steps.get((int) (i & stepMask)) >>> 48); }
+
+        void snapshot() {
+            AvrCore c = core;
+            ByteBuffer b;
+            while(true) {
+                b = scratch;
+                b.clear();
+                try {
+                    c.saveState(b);
+                    break;
+                } catch(BufferOverflowException e) {
+                    scratch = ByteBuffer.allocate(scratch.capacity() * 2);
+                }
+            }
+            b.flip();
+
+            int len = b.remaining();
+            nextSnapshot = c.cycles + interval;
+            if(len > snaps.capacity()) return;
+            if(head + len > snaps.capacity()) {
+                // Snapshots past head are left from the previous lap and are the oldest; the
+                // lengths vary, so they end at a different point than this lap does.
+                while(!index.isEmpty() && index.peekFirst()[1] >= head) index.removeFirst();
+                head = 0;
+            }
+            // Writing goes round the ring, so the oldest snapshots are the ones in the way.
+            while(!index.isEmpty()) {
+                long[] first = index.peekFirst();
+                if(first[1] >= head + len || first[1] + first[2] <= head) break;
+                index.removeFirst();
+            }
+            ByteBuffer dst = snaps.duplicate();
+            dst.position(head);
+            dst.put(b);
+            index.addLast(new long[]{c.cycles, head, len});
+            head += len;
+        }
+
+        private void restore(long[] snap) {
+            ByteBuffer b = snaps.duplicate();
+            b.limit((int) (snap[1] + snap[2])).position((int) snap[1]);
+            core.loadState(b);
+        }
+
+        // Puts the core back at the instruction boundary at 'target'. Later history is dropped.
+        boolean rewindTo(long target) {
+            long[] snap = null;
+            for(Iterator<long[]> it = index.descendingIterator(); it.hasNext(); ) {
+                long[] e = it.next();
+                if(e[0] <= target) { snap = e; break; }
+            }
+            if(snap == null) return false;
+            while(index.peekLast() != snap) index.removeLast();
+            head = (int) (snap[1] + snap[2]);
+            restore(snap);
+            if(core.wave != null) core.wave.truncate(core.cycles);   // the replay records them again
+            core.replayTo(target);
+            while(stepCount > oldestStep() && stepCycle(stepCount - 1) >= target) stepCount--;
+            nextSnapshot = snap[0] + interval;
+            return true;
+        }
+
+        // Undoes the last executed instruction.
+        boolean stepBack() {
+            if(stepCount <= oldestStep()) return false;
+            return rewindTo(stepCycle(stepCount - 1));
+        }
+
+        // Rewinds to the most recent earlier execution of a user breakpoint. If there is none
+        // in the history, rewinds as far as it reaches and returns false.
+        boolean runBack() {
+            if(index.isEmpty()) return false;
+            long first = index.peekFirst()[0];
+            for(long i = stepCount - 1; i >= oldestStep() && stepCycle(i) >= first; i--) {
+                if((core.breakFlags[stepPc(i)] & AvrCore.BP_USER) != 0) return rewindTo(stepCycle(i));
+            }
+            rewindTo(first);
+            return false;
+        }
+    }
+
+    // --- WAVEFORM CAPTURE ---
+    // Records every write that changes a PORTx register as one long:
+    //   cycle << 16 | port << 8 | new value        (port 0 = PORTA ... 3 = PORTD)
+    // The capture hooks the PORT registers like a co-simulation wire, so only instructions that
+    // write a port leave the fast paths; everything else runs as before.
+    // Records fill chunks of CHUNK longs. Once more than RESIDENT chunks are full, the oldest is
+    // written to a temporary spill file and dropped, so memory stays bounded. Every BLOCK records
+    // an index entry keeps the first cycle, the port values before the block (a keyframe) and the
+    // bits that changed inside it, which lets a viewer seek by cycle and summarize long stretches
+    // without reading them.
+    // One thread (the core's) writes; any number of readers may follow along. A record is
+    // visible to them once count covers it, and chunks are never reused, so a reader never sees
+    // one overwritten.
+
+    static final class WaveCapture implements IoHook, Closeable {
+        static final int CHUNK_BITS = 16, CHUNK = 1 << CHUNK_BITS;   // records per chunk (512 KB)
+        static final int BLOCK = 1024;                               // records per index entry
+        static final int RESIDENT = Integer.getInteger("openavr.wave.chunks", 8);
+
+        final AvrCore core;
+        final int[] portAddr = new int[4];          // data address of PORTA..PORTD, -1 if absent
+        final long start;                           // cycle the capture began at
+        final int initial;                          // port values then, one byte per port
+        volatile long end;                          // complete up to this cycle (see update())
+        private final IoHook[] next = new IoHook[4];
+        private boolean detached;
+
+        private volatile long count;
+        private volatile long[][] chunks = new long[16][];           // by chunk number, null once spilled
+        private volatile int spilled;                                // chunks [0, spilled) are in the file
+        private volatile long[] index = new long[2 * 64];            // per block: first cycle, keyframe | mask << 32
+        private volatile int generation;                             // bumped when truncate() rewrites history
+        private File spillFile;
+        private FileChannel spill;
+        private long[] current;
+        private int state;
+
+        WaveCapture(AvrCore core) {
+            this.core = core;
+            int s = 0;
+            for(int p=0; p<4; p++) {
+                int io = core.device.ports[p];
+                portAddr[p] = io < 0 ? -1 : io < 0x40 ? io + AvrCore.IO_BASE : io;
+                if(portAddr[p] >= 0) s |= core.data[portAddr[p]] << 8 * p;
+            }
+            start = end = core.cycles;
+            initial = state = s;
+            for(int p=0; p<4; p++) if(portAddr[p] >= 0) next[p] = core.hook(portAddr[p], this);
+        }
+
+        long count() { return count; }
+        long spilledBytes() { return (long) spilled * CHUNK * 8; }
+
+        // Sim thread: marks the capture complete up to the current cycle.
+        void update() { end = core.cycles; }
+
+        @Override public int read(int addr) {
+            IoHook n = next[port(addr)];
+            return n != null ? n.read(addr) : core.data[addr];
+        }
+
+        @Override public void write(int addr, int old, int value) {
+            int p = port(addr);
+            if(next[p] != null) next[p].write(addr, old, value);
+            if(!detached && (state >> 8 * p & 0xFF) != value) record(p, value);
+        }
+
+        private int port(int addr) {
+            for(int p=0; p<3; p++) if(portAddr[p] == addr) return p;
+            return 3;
+        }
+
+        private void record(int p, int value) {
+            long i = count;
+            long cycle = core.cycles;
+            int off = (int) i & (CHUNK - 1);
+            if(off == 0) current = newChunk((int) (i >>> CHUNK_BITS));
+            long[] idx = index;
+            int b = (int) (i / BLOCK);
+            if(i % BLOCK == 0) {
+                if(2 * b + 1 >= idx.length) index = idx = Arrays.copyOf(idx, idx.length * 2);
+                idx[2 * b] = cycle;
+                idx[2 * b + 1] = state & 0xFFFF_FFFFL;
+            }
+            int shift = 8 * p;
+            idx[2 * b + 1] |= (long) ((state >> shift ^ value) & 0xFF) << shift << 32;
+            state = state & ~(0xFF << shift) | value << shift;
+            current[off] = cycle << 16 | (long) p << 8 | value;
+            end = cycle;
+            count = i + 1;
+        }
+
+        private long[] newChunk(int k) {
+            long[][] cs = chunks;
+            if(k >= cs.length) chunks = cs = Arrays.copyOf(cs, cs.length * 2);
+            int oldest = k - RESIDENT;
+            if(oldest >= spilled) {
+                try {
+                    if(spill == null) {
+                        spillFile = File.createTempFile("openavr-wave", ".bin");
+                        spillFile.deleteOnExit();
+                        spill = FileChannel.open(spillFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    }
+                    ByteBuffer buf = ByteBuffer.allocate(CHUNK * 8);
+                    buf.asLongBuffer().put(cs[oldest]);
+                    for(long pos = (long) oldest * CHUNK * 8; buf.hasRemaining(); ) pos += spill.write(buf, pos);
+                } catch(IOException e) { throw new UncheckedIOException(e); }
+                spilled = oldest + 1;
+                cs[oldest] = null;
+            }
+            return cs[k] = new long[CHUNK];
+        }
+
+        // Drops every record at or after cycle, after reverse execution went back there. The
+        // replay to the target then records those writes again.
+        void truncate(long cycle) {
+            Reader r = new Reader();
+            long n = r.seek(cycle);
+            if(n == count) return;
+            int k = (int) (n >>> CHUNK_BITS);
+            long[][] cs = chunks;
+            if(k < spilled) { cs[k] = r.chunk(k); spilled = k; }
+            for(int j = k + 1; j < cs.length; j++) cs[j] = null;
+            state = r.stateAt(n);
+            if(n % BLOCK != 0) {
+                long[] idx = index;
+                int b = (int) (n / BLOCK);
+                int s = (int) idx[2 * b + 1], mask = 0;
+                for(long i = (long) b * BLOCK; i < n; i++) {
+                    long rec = r.record(i);
+                    mask |= changed(s, rec);
+                    s = apply(s, rec);
+                }
+                idx[2 * b + 1] = (idx[2 * b + 1] & 0xFFFF_FFFFL) | (mask & 0xFFFF_FFFFL) << 32;
+            }
+            current = cs[k];
+            count = n;
+            end = cycle;
+            generation++;
+        }
+
+        // Stops recording. The hooks are removed unless something has hooked over them since.
+        void detach() {
+            if(detached) return;
+            detached = true;
+            for(int p=0; p<4; p++) if(portAddr[p] >= 0 && core.hooks[portAddr[p]] == this) core.hook(portAddr[p], next[p]);
+        }
+
+        @Override public void close() throws IOException {
+            if(spill != null) { spill.close(); Files.deleteIfExists(spillFile.toPath()); }
+        }
+
+        // Random access for one thread, with a one-chunk cache for spilled data.
+        final class Reader {
+            private long[] cached;
+            private int cachedChunk = -1, cachedGen;
+
+            long record(long i) {
+                return chunk((int) (i >>> CHUNK_BITS))[(int) i & (CHUNK - 1)];
+            }
+
+            private long[] chunk(int k) {
+                if(k >= spilled) {
+                    long[] c = chunks[k];
+                    if(c != null) return c;
+                }
+                if(k == cachedChunk && cachedGen == generation) return cached;
+                ByteBuffer buf = ByteBuffer.allocate(CHUNK * 8);
+                try {
+                    for(long pos = (long) k * CHUNK * 8; buf.hasRemaining(); ) {
+                        int n = spill.read(buf, pos);
+                        if(n < 0) throw new EOFException("wave spill file truncated");
+                        pos += n;
+                    }
+                } catch(IOException e) { throw new UncheckedIOException(e); }
+                buf.flip();
+                long[] c = new long[CHUNK];
+                buf.asLongBuffer().get(c);
+                cached = c;
+                cachedChunk = k;
+                cachedGen = generation;
+                return c;
+            }
+
+            // Index of the first record at or after cycle (count() if none).
+            long seek(long cycle) {
+                long n = count;
+                long[] idx = index;
+                int lo = 0, hi = (int) ((n + BLOCK - 1) / BLOCK);   // first block starting after cycle
+                while(lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if(idx[2 * mid] <= cycle) lo = mid + 1; else hi = mid;
+                }
+                long a = Math.max(0, (long) (lo - 1) * BLOCK), b = Math.min(n, (long) lo * BLOCK);
+                while(a < b) {
+                    long mid = (a + b) >>> 1;
+                    if(record(mid) >>> 16 < cycle) a = mid + 1; else b = mid;
+                }
+                return a;
+            }
+
+            // First record of the last block that starts before cycle (0 if none). Every record
+            // before it is earlier than cycle. Reads only the index.
+            long blockBefore(long cycle) {
+                long[] idx = index;
+                int lo = 0, hi = (int) ((count + BLOCK - 1) / BLOCK);
+                while(lo < hi) {
+                    int mid = (lo + hi) >>> 1;
+                    if(idx[2 * mid] < cycle) lo = mid + 1; else hi = mid;
+                }
+                return Math.max(0, (long) (lo - 1) * BLOCK);
+            }
+
+            // Port values after the first i records.
+            int stateAt(long i) {
+                if(i == 0) return initial;
+                int b = (int) ((i < count ? i : i - 1) / BLOCK);
+                int s = (int) index[2 * b + 1];
+                for(long j = (long) b * BLOCK; j < i; j++) s = apply(s, record(j));
+                return s;
+            }
+
+            // Bits that changed in the full blocks covering records [from, to): both on block edges.
+            int blockMask(long from, long to) {
+                long[] idx = index;
+                int mask = 0;
+                for(int b = (int) (from / BLOCK); b < to / BLOCK; b++) mask |= (int) (idx[2 * b + 1] >>> 32);
+                return mask;
+            }
+        }
+
+        static int apply(int state, long rec) {
+            int shift = 8 * (int) (rec >> 8 & 3);
+            return state & ~(0xFF << shift) | ((int) rec & 0xFF) << shift;
+        }
+
+        // Bits of state that rec changes.
+        static int changed(int state, long rec) {
+            int shift = 8 * (int) (rec >> 8 & 3);
+            return ((state >> shift ^ (int) rec) & 0xFF) << shift;
+        }
+
+        // --- VCD export ---
+        // One 8-bit vector per port and a wire per pin (PB0 ...), timed in picoseconds from
+        // the clock frequency. Time 0 is the start of the capture.
+
+        void writeVcd(Writer out, long clockHz) throws IOException {
+            java.util.List<Integer> ports = new ArrayList<>();
+            for(int p=0; p<4; p++) if(portAddr[p] >= 0) ports.add(p);
+            out.write("$version OpenAVR Studio $end\n");
+            out.write("$comment " + core.device.name + " at " + clockHz + " Hz, capture started at cycle " + start + " $end\n");
+            out.write("$timescale 1 ps $end\n$scope module " + core.device.name + " $end\n");
+            for(int p : ports) {
+                out.write("$var reg 8 " + vcdId(p, 8) + " PORT" + (char) ('A' + p) + " [7:0] $end\n");
+                for(int bit=0; bit<8; bit++) out.write("$var wire 1 " + vcdId(p, bit) + " P" + (char) ('A' + p) + bit + " $end\n");
+            }
+            out.write("$upscope $end\n$enddefinitions $end\n#0\n$dumpvars\n");
+            for(int p : ports) writeVcdPort(out, p, initial >> 8 * p & 0xFF, 0xFF);
+            out.write("$end\n");
+
+            Reader r = new Reader();
+            long n = count, lastTime = 0;
+            int s = initial;
+            for(long i=0; i<n; i++) {
+                long rec = r.record(i);
+                int p = (int) (rec >> 8 & 3), v = (int) rec & 0xFF;
+                long time = Math.round(((rec >>> 16) - start) * 1e12 / clockHz);
+                if(time != lastTime) { out.write("#" + time + "\n"); lastTime = time; }
+                writeVcdPort(out, p, v, (s >> 8 * p ^ v) & 0xFF);
+                s = apply(s, rec);
+            }
+            long t = Math.round((end - start) * 1e12 / clockHz);
+            if(t > lastTime) out.write("#" + t + "\n");
+        }
+
+        private static void writeVcdPort(Writer out, int p, int v, int changed) throws IOException {
+            StringBuilder sb = new StringBuilder("b");
+            for(int bit=7; bit>=0; bit--) sb.append((char) ('0' + (v >> bit & 1)));
+            out.write(sb.append(' ').append(vcdId(p, 8)).append('\n').toString());
+            for(int bit=0; bit<8; bit++) {
+                if((changed >> bit & 1) != 0) out.write((char) ('0' + (v >> bit & 1)) + vcdId(p, bit) + "\n");
+            }
+        }
+
+        // Single printable characters: '!' + 9 * port + bit, the vector at bit 8.
+        private static String vcdId(int port, int bit) { return String.valueOf((char) ('!' + 9 * port + bit)); }
+    }
+
+    // --- PROFILER ---
+    // Flat counts per flash word (executions and cycles) plus a shadow call stack that times
+    // every subroutine call and interrupt from entry to return. The counters are plain long[]
+    // indexed by word, so the per-instruction cost is two increments and a table lookup.
+    // Returns are matched by stack pointer: a frame ends once SP has risen above the slot its
+    // return address was pushed to. That also copes with code that drops frames or resets SP.
+
+    static final class Profiler {
+        private static final byte OTHER = 1, CALL = 2, RET = 3;
+        private static final int MAX_DEPTH = 256;
+
+        final AvrCore core;
+        final long start;
+        final long[] hits, cycles;           // per flash word
+        final long[] calls, callCycles;      // per call target: completed calls, inclusive cycles
+        final long[] isrCalls, isrCycles;    // per vector
+        long entryCycles;                    // spent entering interrupts (not in any word)
+        private final byte[] kind;           // 0 until the word is first executed
+
+        private final int[] frameTarget = new int[MAX_DEPTH];   // callee word, or -1 - vector
+        private final int[] frameSp = new int[MAX_DEPTH];
+        private final long[] frameStart = new long[MAX_DEPTH];
+        private int depth;
+
+        Profiler(AvrCore core) {
+            this.core = core;
+            this.start = core.cycles;
+            int n = core.flash.length;
+            hits = new long[n]; cycles = new long[n]; calls = new long[n]; callCycles = new long[n];
+            kind = new byte[n];
+            isrCalls = new long[64]; isrCycles = new long[64];
+        }
+
+        // After the instruction at word 'at', which started at cycle 'before', has executed.
+        void count(int at, long before) {
+            hits[at]++;
+            cycles[at] += core.cycles - before;
+            int k = kind[at];
+            if(k == 0) kind[at] = (byte) (k = classify(core.flash[at]));
+            if(k == CALL) push(core.pc, before);
+            else if(k == RET) unwind();
+        }
+
+        // After the core has entered an interrupt that started at cycle 'before'.
+        void interrupt(int vector, long before) {
+            entryCycles += core.cycles - before;
+            push(-1 - vector, before);
+        }
+
+        private void push(int target, long before) {
+            if(depth == MAX_DEPTH) return;   // runaway recursion: the outer frames still time correctly
+            frameTarget[depth] = target;
+            frameSp[depth] = core.sp();
+            frameStart[depth] = before;
+            depth++;
+        }
+
+        private void unwind() {
+            int sp = core.sp();
+            while(depth > 0 && frameSp[depth-1] < sp) {
+                depth--;
+                long spent = core.cycles - frameStart[depth];
+                int t = frameTarget[depth];
+                if(t >= 0) { calls[t]++; callCycles[t] += spent; }
+                else if(-1 - t < isrCalls.length) { isrCalls[-1 - t]++; isrCycles[-1 - t] += spent; }
+            }
+        }
+
+        private static int classify(int op) {
+            if((op & 0xF000) == 0xD000 || (op & 0xFE0E) == 0x940E || op == 0x9509 || op == 0x9519) return CALL;
+            if(op == 0x9508 || op == 0x9518) return RET;
+            return OTHER;
+        }
+
+        // Target word of a backward RJMP/JMP/conditional branch at w, or -1.
+        private static int backwardTarget(int[] flash, int w) {
+            int op = flash[w], t;
+            if((op & 0xF000) == 0xC000) t = w + 1 + ((op << 20) >> 20);
+            else if((op & 0xF800) == 0xF000 || (op & 0xF800) == 0xF400) t = w + 1 + ((op << 22) >> 25);
+            else if((op & 0xFE0E) == 0x940C && w + 1 < flash.length) t = flash[w + 1] | ((op >> 4 & 0x1F) << 17 | (op & 1) << 16);
+            else return -1;
+            return t >= 0 && t <= w ? t : -1;
+        }
+
+        // Plain-text report. lineOfWord/source may be null (then everything is by address).
+        String report(Device dev, long hz, int[] lineOfWord, String[] source) {
+            int n = hits.length;
+            long elapsed = core.cycles - start, busy = entryCycles, instructions = 0;
+            for(int w=0; w<n; w++) { busy += cycles[w]; instructions += hits[w]; }
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("Profile: %s @ %.3f MHz%n", dev.name, hz / 1e6));
+            sb.append(String.format("%,d cycles (%s), %,d instructions, %,d cycles asleep, %,d entering interrupts%n",
+                    elapsed, time(elapsed, hz), instructions, Math.max(0, elapsed - busy), entryCycles));
+
+            // Hottest lines (or words, without a listing)
+            Map<Integer, long[]> byLine = new HashMap<>();
+            for(int w=0; w<n; w++) {
+                if(hits[w] == 0) continue;
+                int key = lineOfWord != null && lineOfWord[w] >= 0 ? lineOfWord[w] : -1 - w;
+                long[] v = byLine.computeIfAbsent(key, k -> new long[2]);
+                v[0] += hits[w];
+                v[1] += cycles[w];
+            }
+            java.util.List<Map.Entry<Integer, long[]>> lines = new ArrayList<>(byLine.entrySet());
+            lines.sort((a, b) -> Long.compare(b.getValue()[1], a.getValue()[1]));
+            sb.append(String.format("%nHOTTEST LINES%n%-14s %14s %14s %6s  %s%n", "where", "executions", "cycles", "%", "source"));
+            for(int i=0; i<Math.min(20, lines.size()); i++) {
+                int key = lines.get(i).getKey();
+                long[] v = lines.get(i).getValue();
+                sb.append(String.format("%-14s %,14d %,14d %5.1f%%  %s", key >= 0 ? "line " + (key + 1) : String.format("0x%04X", (-1 - key) * 2),
+                        v[0], v[1], pct(v[1], elapsed), key >= 0 ? text(source, key) : "").stripTrailing()).append(System.lineSeparator());
+            }
+
+            // Hottest loops: every executed backward branch closes a loop body [target, branch]
+            long[] prefix = new long[n + 1];
+            for(int w=0; w<n; w++) prefix[w + 1] = prefix[w] + cycles[w];
+            java.util.List<long[]> loops = new ArrayList<>();   // {from, to, cycles, passes}
+            for(int w=0; w<n; w++) {
+                if(hits[w] == 0) continue;
+                int t = backwardTarget(core.flash, w);
+                if(t >= 0) loops.add(new long[]{t, w, prefix[w + 1] - prefix[t], hits[w]});
+            }
+            loops.sort((a, b) -> Long.compare(b[2], a[2]));
+            sb.append(String.format("%nHOTTEST LOOPS%n%-26s %14s %6s %12s %12s%n", "body", "cycles", "%", "passes", "cycles/pass"));
+            for(int i=0; i<Math.min(15, loops.size()); i++) {
+                long[] l = loops.get(i);
+                sb.append(String.format("%-26s %,14d %5.1f%% %,12d %12.1f%n", where((int) l[0], (int) l[1], lineOfWord),
+                        l[2], pct(l[2], elapsed), l[3], (double) l[2] / l[3]));
+            }
+
+            // Subroutines, by inclusive time
+            java.util.List<Integer> subs = new ArrayList<>();
+            for(int w=0; w<n; w++) if(calls[w] > 0) subs.add(w);
+            subs.sort((a, b) -> Long.compare(callCycles[b], callCycles[a]));
+            sb.append(String.format("%nSUBROUTINES (inclusive)%n%-26s %10s %14s %6s %12s %12s%n", "entry", "calls", "cycles", "%", "cycles/call", "time/call"));
+            for(int w : subs) {
+                double per = (double) callCycles[w] / calls[w];
+                sb.append(String.format("%-26s %,10d %,14d %5.1f%% %12.1f %12s%n", name(w, lineOfWord, source),
+                        calls[w], callCycles[w], pct(callCycles[w], elapsed), per, time(per, hz)));
+            }
+
+            // Interrupts, including the 4-cycle entry
+            sb.append(String.format("%nINTERRUPTS (inclusive)%n%-26s %10s %14s %6s %12s %12s%n", "vector", "calls", "cycles", "%", "cycles/call", "time/call"));
+            for(int v=0; v<isrCalls.length; v++) {
+                if(isrCalls[v] == 0) continue;
+                String name = "#" + v;
+                for(Map.Entry<String, Integer> e : dev.vectors.entrySet()) if(e.getValue() == v) name = e.getKey() + "_vect";
+                double per = (double) isrCycles[v] / isrCalls[v];
+                sb.append(String.format("%-26s %,10d %,14d %5.1f%% %12.1f %12s%n", name,
+                        isrCalls[v], isrCycles[v], pct(isrCycles[v], elapsed), per, time(per, hz)));
+            }
+            return sb.toString();
+        }
+
+        private static double pct(long part, long whole) { return whole == 0 ? 0 : 100.0 * part / whole; }
+
+        private static String time(double cyc, long hz) {
+            double us = cyc * 1e6 / Math.max(hz, 1);
+            return us >= 1e6 ? String.format("%.3f s", us / 1e6) : us >= 1e3 ? String.format("%.3f ms", us / 1e3) : String.format("%.3f us", us);
+        }
+
+        private static String text(String[] source, int line) {
+            return source != null && line < source.length ? source[line].trim() : "";
+        }
+
+        private static String where(int from, int to, int[] lineOfWord) {
+            String s = String.format("0x%04X-0x%04X", from * 2, to * 2);
+            if(lineOfWord != null && lineOfWord[from] >= 0 && lineOfWord[to] >= 0) s += " (" + (lineOfWord[from] + 1) + "-" + (lineOfWord[to] + 1) + ")";
+            return s;
+        }
+
+        // The label in front of a call target ("delay" for "delay: dec r20" or a "delay:" line above).
+        private static String name(int w, int[] lineOfWord, String[] source) {
+            String addr = String.format("0x%04X", w * 2);
+            if(lineOfWord == null || source == null || lineOfWord[w] < 0) return addr;
+            for(int line = lineOfWord[w]; line >= 0 && line < source.length; line--) {
+                String s = source[line].replaceAll(";.*", "").trim();
+                int colon = s.indexOf(':');
+                if(colon > 0) return s.substring(0, colon).trim() + " " + addr;
+                if(line != lineOfWord[w] && !s.isEmpty()) break;
+            }
+            return addr + " (line " + (lineOfWord[w] + 1) + ")";
+        }
+    }
+
+    // --- BINARY TRANSLATION ---
+    // A second tier behind AvrCore.exec(). run() counts how often each basic block is entered (a
+    // block starts wherever control did not just fall through). After HOT entries the block is
+    // translated into a hidden class whose run() executes all of it, so HotSpot compiles the
+    // AVR code to native code like any other Java method.
+    //
+    // A translated block must behave exactly like stepping through its instructions:
+    // - It is entered only if it finishes before stopAt, so events and interrupts are still
+    //   taken between the same two instructions.
+    // - Before a pointer access (LD/ST/PUSH/POP/CALL/RET, which can reach a hooked register),
+    //   cycles is brought up to date. After it the block exits if a hook has moved stopAt.
+    // - Hooked I/O, SEI, RETI, SLEEP, BREAK and breakpoints are never translated: a block ends
+    //   in front of them and the interpreter runs them.
+    // - Re-decoding a word (a flash write or a breakpoint change) drops every block covering it.
+    // The generated code is straight-line, plus one backward jump when a block branches to its
+    // own start (delay loops). That is small enough to write the class files by hand.
+
+    static final class Translator {
+        static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("openavr.jit", "true"));
+        static final int HOT = Integer.getInteger("openavr.jit.threshold", 500);
+        private static final int MAX_INSNS = 48;
+        private static final int NEVER = -1;        // counts[]: nothing translatable starts here
+        private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+        final AvrCore core;
+        final TranslatedBlock[] blocks;             // by start word, null while interpreted
+        private final int[] counts;                 // entries while interpreted, or NEVER
+        int translated;                             // blocks generated so far
+
+        Translator(AvrCore core) {
+            this.core = core;
+            blocks = new TranslatedBlock[core.flash.length];
+            counts = new int[core.flash.length];
+        }
+
+        // Same contract as the interpreter loop in AvrCore.run(): executes until cycles reaches
+        // stopAt or the core halts. Near stopAt it falls back to single instructions.
+        void run() {
+            final AvrCore c = core;
+            final TranslatedBlock[] bs = blocks;
+            final int[] n = counts;
+            boolean leader = false;
+            while(c.cycles < c.stopAt) {
+                int pc = c.pc;
+                if(pc >= 0 && pc < bs.length) {
+                    TranslatedBlock b = bs[pc];
+                    if(b != null) {
+                        if(c.cycles + b.maxCycles <= c.stopAt) { b.run(c); leader = true; continue; }
+                    } else if(leader && n[pc] >= 0 && ++n[pc] >= HOT) {
+                        translate(pc);
+                        if(bs[pc] != null) continue;
+                    }
+                }
+                if(!c.exec()) return;
+                leader = c.pc != pc + 1 || n[pc] == NEVER;
+            }
+        }
+
+        // Drops every block that covers addr. They are counted afresh and translated again.
+        void invalidate(int addr) {
+            for(int s = Math.max(0, addr - 2 * MAX_INSNS + 1); s <= addr; s++) {
+                TranslatedBlock b = blocks[s];
+                if(b != null && s + b.words > addr) { blocks[s] = null; counts[s] = 0; }
+            }
+            if(counts[addr] == NEVER) counts[addr] = 0;
+        }
+
+        private static boolean translatable(int w) {
+            switch(w & 0xFF) {
+                case AvrCore.K_UNDECODED: case AvrCore.K_IO: case AvrCore.K_SLEEP: case AvrCore.K_BREAK:
+                case AvrCore.K_BREAKPOINT: case AvrCore.K_RETI:
+                    return false;
+                case AvrCore.K_BSET:
+                    return ((w >> 8) & 0xFF) != AvrCore.FLAG_I;   // SEI delays the interrupt check
+                default:
+                    return true;
+            }
+        }
+
+        private static boolean endsBlock(int kind) {
+            switch(kind) {
+                case AvrCore.K_RJMP: case AvrCore.K_JMP: case AvrCore.K_BRBS: case AvrCore.K_BRBC: case AvrCore.K_RCALL:
+                case AvrCore.K_CALL: case AvrCore.K_IJMP: case AvrCore.K_ICALL: case AvrCore.K_RET: case AvrCore.K_CPSE:
+                case AvrCore.K_SBRC: case AvrCore.K_SBRS: case AvrCore.K_SBIC: case AvrCore.K_SBIS:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        private void translate(int start) {
+            final AvrCore c = core;
+            int[] ws = new int[MAX_INSNS], at = new int[MAX_INSNS];
+            int n = 0, p = start;
+            while(n < MAX_INSNS && p < c.flash.length) {
+                if((c.decoded[p] & 0xFF) == AvrCore.K_UNDECODED) c.decodeAt(p);
+                int w = c.decoded[p];
+                if(!translatable(w)) break;
+                ws[n] = w;
+                at[n++] = p;
+                p += AvrCore.isTwoWord(c.flash[p]) ? 2 : 1;
+                if(endsBlock(w & 0xFF)) break;
+            }
+            if(n == 0) { counts[start] = NEVER; return; }
+            try {
+                BlockWriter bw = new BlockWriter(c, start, ws, at, n, p);
+                byte[] bytes = bw.write();
+                Class<?> k = LOOKUP.defineHiddenClass(bytes, true).lookupClass();
+                TranslatedBlock b = (TranslatedBlock) k.getDeclaredConstructor().newInstance();
+                b.words = p - start;
+                b.maxCycles = bw.maxCycles;
+                blocks[start] = b;
+                translated++;
+            } catch(IOException | ReflectiveOperationException | LinkageError e) {
+                counts[start] = NEVER;   // interpreting it gives the same result, only slower
+            }
+        }
+
+        // Writes the class file for one block: a final subclass of TranslatedBlock whose
+        // run(AvrCore) executes ws[0..n) (at words at[]) and leaves pc at the next instruction.
+        // Locals: 0 = this, 1 = the core, 2 = its data array.
+        private static final class BlockWriter {
+            private static final String CORE = "OpenAVRStudio$AvrCore", BASE = "OpenAVRStudio$TranslatedBlock";
+            private static final String[] HELPER = new String[AvrCore.K_BREAKPOINT + 1];
+            static {
+                String[] names = {
+                    "add", "adc", "sub", "sbc", "subi", "sbci", "cp", "cpc", "cpi", "and", "andi", "or", "ori", "eor",
+                    "com", "neg", "inc", "dec", "asr", "lsr", "ror", "swap", "movw", "adiw", "sbiw", "mul", "muls",
+                    "mulsu", "fmul", "fmuls", "fmulsu", "bst", "bld", "lds", "sts", "lpm", "lpmInc",
+                    "ld", "st", "ldInc", "ldDec", "stInc", "stDec", "push", "pop" };
+                int[] kinds = {
+                    AvrCore.K_ADD, AvrCore.K_ADC, AvrCore.K_SUB, AvrCore.K_SBC, AvrCore.K_SUBI, AvrCore.K_SBCI, AvrCore.K_CP,
+                    AvrCore.K_CPC, AvrCore.K_CPI, AvrCore.K_AND, AvrCore.K_ANDI, AvrCore.K_OR, AvrCore.K_ORI, AvrCore.K_EOR,
+                    AvrCore.K_COM, AvrCore.K_NEG, AvrCore.K_INC, AvrCore.K_DEC, AvrCore.K_ASR, AvrCore.K_LSR, AvrCore.K_ROR,
+                    AvrCore.K_SWAP, AvrCore.K_MOVW, AvrCore.K_ADIW, AvrCore.K_SBIW, AvrCore.K_MUL, AvrCore.K_MULS,
+                    AvrCore.K_MULSU, AvrCore.K_FMUL, AvrCore.K_FMULS, AvrCore.K_FMULSU, AvrCore.K_BST, AvrCore.K_BLD,
+                    AvrCore.K_LDS, AvrCore.K_STS, AvrCore.K_LPM, AvrCore.K_LPM_INC,
+                    AvrCore.K_LD, AvrCore.K_ST, AvrCore.K_LD_INC, AvrCore.K_LD_DEC, AvrCore.K_ST_INC, AvrCore.K_ST_DEC,
+                    AvrCore.K_PUSH, AvrCore.K_POP };
+                for(int i=0; i<kinds.length; i++) HELPER[kinds[i]] = names[i];
+            }
+            private static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11, LDC_W = 0x13, LCONST_0 = 0x09,
+                ALOAD_0 = 0x2A, ALOAD_1 = 0x2B, ALOAD_2 = 0x2C, ASTORE_2 = 0x4D, IALOAD = 0x2E, IASTORE = 0x4F,
+                DUP = 0x59, DUP2 = 0x5C, LADD = 0x61, IAND = 0x7E, IOR = 0x80, I2L = 0x85, LCMP = 0x94,
+                IFEQ = 0x99, IFNE = 0x9A, IFGT = 0x9D, IFLE = 0x9E, GOTO = 0xA7, RETURN = 0xB1,
+                GETFIELD = 0xB4, PUTFIELD = 0xB5, INVOKESPECIAL = 0xB7, INVOKESTATIC = 0xB8;
+
+            private final AvrCore core;
+            private final int start, n, end;
+            private final int[] ws, at;
+            int maxCycles;
+
+            private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+            private final DataOutputStream cp = new DataOutputStream(pool);
+            private final Map<String, Integer> poolIndex = new HashMap<>();
+            private int poolCount = 1;
+
+            private byte[] code = new byte[512];
+            private int len;
+            private int[] labelAt = new int[8], fixFrom = new int[8], fixLabel = new int[8];
+            private int labels, fixes;
+            private int pending;      // cycles executed since the generated code last updated core.cycles
+
+            BlockWriter(AvrCore core, int start, int[] ws, int[] at, int n, int end) {
+                this.core = core; this.start = start; this.ws = ws; this.at = at; this.n = n; this.end = end;
+            }
+
+            byte[] write() throws IOException {
+                int thisClass = classRef("OpenAVRStudio$Block" + Integer.toHexString(start * 2));
+                int superClass = classRef(BASE);
+                byte[] init = {(byte) ALOAD_0, (byte) INVOKESPECIAL, 0, 0, (byte) RETURN};
+                int ctor = methodRef(BASE, "<init>", "()V");
+                init[2] = (byte) (ctor >> 8); init[3] = (byte) ctor;
+                emitRun();
+                byte[] frames = frames();
+
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                DataOutputStream out = new DataOutputStream(bytes);
+                int codeName = utf8("Code"), mapName = frames != null ? utf8("StackMapTable") : 0;
+                int initName = utf8("<init>"), initDesc = utf8("()V"), runName = utf8("run"), runDesc = utf8("(L" + CORE + ";)V");
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(52);
+                out.writeShort(poolCount);
+                pool.writeTo(out);
+                out.writeShort(0x0030);   // ACC_FINAL | ACC_SUPER
+                out.writeShort(thisClass);
+                out.writeShort(superClass);
+                out.writeShort(0);        // interfaces
+                out.writeShort(0);        // fields
+                out.writeShort(2);        // methods
+                writeMethod(out, initName, initDesc, codeName, 1, 1, init, init.length, 0, null);
+                writeMethod(out, runName, runDesc, codeName, 8, 3, code, len, mapName, frames);
+                out.writeShort(0);        // attributes
+                return bytes.toByteArray();
+            }
+
+            private static void writeMethod(DataOutputStream out, int name, int desc, int codeName, int maxStack, int maxLocals,
+                                            byte[] code, int len, int mapName, byte[] frames) throws IOException {
+                out.writeShort(0);        // package access, like TranslatedBlock.run
+                out.writeShort(name);
+                out.writeShort(desc);
+                out.writeShort(1);
+                out.writeShort(codeName);
+                out.writeInt(12 + len + (frames != null ? 6 + frames.length : 0));
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(len);
+                out.write(code, 0, len);
+                out.writeShort(0);        // exception table
+                if(frames == null) { out.writeShort(0); return; }
+                out.writeShort(1);
+                out.writeShort(mapName);
+                out.writeInt(frames.length);
+                out.write(frames);
+            }
+
+            // --- Code generation ---
+
+            private void emitRun() throws IOException {
+                int dataField = fieldRef(CORE, "data", "[I");
+                op(ALOAD_1); op(GETFIELD); u2(dataField); op(ASTORE_2);
+
+                int last = ws[n - 1] & 0xFF;
+                int[] base = new int[n];
+                for(int i=0; i<n; i++) { base[i] = core.decCycles[at[i]]; maxCycles += base[i]; }
+                boolean terminated = Translator.endsBlock(last);
+                int lastNext = end;
+                if(last == AvrCore.K_BRBS || last == AvrCore.K_BRBC) maxCycles++;
+                else if(last == AvrCore.K_CPSE || last == AvrCore.K_SBRC || last == AvrCore.K_SBRS
+                        || last == AvrCore.K_SBIC || last == AvrCore.K_SBIS) maxCycles += core.skip(lastNext) - lastNext;
+                int target = terminated ? branchTarget(n - 1) : -1;
+                int top = target == start ? bind(newLabel()) : -1;
+
+                int done = 0;             // cycles of the instructions emitted so far
+                for(int i=0; i<(terminated ? n - 1 : n); i++) {
+                    int w = ws[i], kind = w & 0xFF, a = (w >> 8) & 0xFF, b = w >>> 16;
+                    int next = i + 1 < n ? at[i + 1] : end;
+                    done += base[i];
+                    switch(kind) {
+                        case AvrCore.K_NOP: break;
+                        case AvrCore.K_LDI: op(ALOAD_2); push(a); push(b); op(IASTORE); break;
+                        case AvrCore.K_MOV: case AvrCore.K_IN: copy(a, b); break;
+                        case AvrCore.K_OUT: copy(b, a); break;
+                        case AvrCore.K_SBI: combine(a, b, IOR); break;
+                        case AvrCore.K_CBI: combine(a, ~b, IAND); break;
+                        case AvrCore.K_BSET: combine(AvrCore.SREG, a, IOR); break;
+                        case AvrCore.K_BCLR: combine(AvrCore.SREG, ~a, IAND); break;
+                        case AvrCore.K_LD: case AvrCore.K_ST: case AvrCore.K_LD_INC: case AvrCore.K_LD_DEC:
+                        case AvrCore.K_ST_INC: case AvrCore.K_ST_DEC: case AvrCore.K_PUSH: case AvrCore.K_POP: {
+                            flush();
+                            helper(HELPER[kind], a, b);
+                            pending = base[i];
+                            flush();
+                            if(maxCycles - done > 0) {   // leave if the rest of the block no longer fits
+                                int stay = newLabel();
+                                op(ALOAD_1); op(GETFIELD); u2(fieldRef(CORE, "cycles", "J"));
+                                pushLong(maxCycles - done); op(LADD);
+                                op(ALOAD_1); op(GETFIELD); u2(fieldRef(CORE, "stopAt", "J"));
+                                op(LCMP); jump(IFLE, stay);
+                                exit(next);
+                                bind(stay);
+                            }
+                            continue;
+                        }
+                        default: helper(HELPER[kind], a, b); break;
+                    }
+                    pending += base[i];
+                }
+                if(!terminated) { flush(); exit(end); return; }
+
+                int i = n - 1, w = ws[i], kind = w & 0xFF, a = (w >> 8) & 0xFF, b = w >>> 16, cyc = base[i];
+                switch(kind) {
+                    case AvrCore.K_RJMP: case AvrCore.K_JMP:
+                        pending += cyc;
+                        jumpTo(target, top);
+                        break;
+                    case AvrCore.K_BRBS: case AvrCore.K_BRBC: {
+                        int notTaken = newLabel(), before = pending;
+                        op(ALOAD_2); push(AvrCore.SREG); op(IALOAD); push(a); op(IAND);
+                        jump(kind == AvrCore.K_BRBS ? IFEQ : IFNE, notTaken);
+                        pending = before + cyc + 1;
+                        jumpTo(target, top);
+                        bind(notTaken);
+                        pending = before + cyc;
+                        flush();
+                        exit(end);
+                        break;
+                    }
+                    default: {
+                        // The rest go through a helper returning the next pc; calls and returns
+                        // touch the stack, so cycles must be current first.
+                        flush();
+                        op(ALOAD_1);
+                        op(ALOAD_1);
+                        String desc;
+                        switch(kind) {
+                            case AvrCore.K_RCALL: push(end); push(end + (w >> 16)); desc = "call:(L" + CORE + ";II)I"; break;
+                            case AvrCore.K_CALL:  push(end); push(b); desc = "call:(L" + CORE + ";II)I"; break;
+                            case AvrCore.K_ICALL: push(end); desc = "icall:(L" + CORE + ";I)I"; break;
+                            case AvrCore.K_IJMP:  desc = "ijmp:(L" + CORE + ";)I"; break;
+                            case AvrCore.K_RET:   desc = "ret:(L" + CORE + ";)I"; break;
+                            default: {
+                                push(a); push(b); push(end); push(core.skip(end));
+                                String name = kind == AvrCore.K_CPSE ? "cpse" : kind == AvrCore.K_SBRC || kind == AvrCore.K_SBIC ? "skipIfClear" : "skipIfSet";
+                                desc = name + ":(L" + CORE + ";IIII)I";
+                                break;
+                            }
+                        }
+                        int colon = desc.indexOf(':');
+                        op(INVOKESTATIC); u2(methodRef(BASE, desc.substring(0, colon), desc.substring(colon + 1)));
+                        op(PUTFIELD); u2(fieldRef(CORE, "pc", "I"));
+                        pending = cyc;
+                        flush();
+                        op(RETURN);
+                        break;
+                    }
+                }
+            }
+
+            // Target of a direct jump or branch, or -1 for computed ones.
+            private int branchTarget(int i) {
+                int w = ws[i], next = at[i] + 1;
+                switch(w & 0xFF) {
+                    case AvrCore.K_RJMP: case AvrCore.K_BRBS: case AvrCore.K_BRBC: return next + (w >> 16);
+                    case AvrCore.K_JMP: return w >>> 16;
+                    default: return -1;
+                }
+            }
+
+            // Taken branch: loops back to the top while another pass fits before stopAt.
+            private void jumpTo(int target, int top) throws IOException {
+                flush();
+                if(target == start && top >= 0) {
+                    int out = newLabel();
+                    op(ALOAD_1); op(GETFIELD); u2(fieldRef(CORE, "cycles", "J"));
+                    pushLong(maxCycles); op(LADD);
+                    op(ALOAD_1); op(GETFIELD); u2(fieldRef(CORE, "stopAt", "J"));
+                    op(LCMP); jump(IFGT, out);
+                    jump(GOTO, top);
+                    bind(out);
+                }
+                exit(target);
+            }
+
+            private void exit(int pc) throws IOException {
+                op(ALOAD_1); push(pc); op(PUTFIELD); u2(fieldRef(CORE, "pc", "I"));
+                op(RETURN);
+            }
+
+            // core.cycles += pending
+            private void flush() throws IOException {
+                if(pending == 0) return;
+                int f = fieldRef(CORE, "cycles", "J");
+                op(ALOAD_1); op(DUP); op(GETFIELD); u2(f);
+                pushLong(pending); op(LADD);
+                op(PUTFIELD); u2(f);
+                pending = 0;
+            }
+
+            private void helper(String name, int a, int b) throws IOException {
+                op(ALOAD_1); push(a); push(b);
+                op(INVOKESTATIC); u2(methodRef(BASE, name, "(L" + CORE + ";II)V"));
+            }
+
+            // m[to] = m[from]
+            private void copy(int to, int from) throws IOException {
+                op(ALOAD_2); push(to); op(ALOAD_2); push(from); op(IALOAD); op(IASTORE);
+            }
+
+            // m[addr] = m[addr] (op) k
+            private void combine(int addr, int k, int opcode) throws IOException {
+                op(ALOAD_2); push(addr); op(DUP2); op(IALOAD); push(k); op(opcode); op(IASTORE);
+            }
+
+            private void push(int v) throws IOException {
+                if(v >= -1 && v <= 5) op(ICONST_0 + v);
+                else if(v == (byte) v) { op(BIPUSH); op(v & 0xFF); }
+                else if(v == (short) v) { op(SIPUSH); u2(v); }
+                else { op(LDC_W); u2(intConst(v)); }
+            }
+
+            private void pushLong(int v) throws IOException {
+                if(v == 0 || v == 1) op(LCONST_0 + v);
+                else { push(v); op(I2L); }
+            }
+
+            private void op(int b) {
+                if(len == code.length) code = Arrays.copyOf(code, len * 2);
+                code[len++] = (byte) b;
+            }
+
+            private void u2(int v) { op(v >> 8); op(v); }
+
+            // --- Labels and stack map ---
+            // Every branch target has the same frame: the three locals, empty stack.
+
+            private int newLabel() {
+                if(labels == labelAt.length) labelAt = Arrays.copyOf(labelAt, labels * 2);
+                labelAt[labels] = -1;
+                return labels++;
+            }
+
+            private int bind(int label) { labelAt[label] = len; return label; }
+
+            private void jump(int opcode, int label) {
+                if(fixes == fixFrom.length) { fixFrom = Arrays.copyOf(fixFrom, fixes * 2); fixLabel = Arrays.copyOf(fixLabel, fixes * 2); }
+                fixFrom[fixes] = len;
+                fixLabel[fixes++] = label;
+                op(opcode); u2(0);
+            }
+
+            private byte[] frames() throws IOException {
+                for(int i=0; i<fixes; i++) {
+                    int delta = labelAt[fixLabel[i]] - fixFrom[i];
+                    code[fixFrom[i] + 1] = (byte) (delta >> 8);
+                    code[fixFrom[i] + 2] = (byte) delta;
+                }
+                if(labels == 0) return null;
+                int[] targets = Arrays.copyOf(labelAt, labels);
+                Arrays.sort(targets);
+                int count = 0, prev = -1;
+                int intArray = classRef("[I");
+                ByteArrayOutputStream entries = new ByteArrayOutputStream();
+                DataOutputStream e = new DataOutputStream(entries);
+                for(int t : targets) {
+                    if(t == prev) continue;
+                    if(count == 0) { e.writeByte(252); e.writeShort(t); e.writeByte(7); e.writeShort(intArray); }   // append_frame: + int[]
+                    else if(t - prev - 1 < 64) e.writeByte(t - prev - 1);                                          // same_frame
+                    else { e.writeByte(251); e.writeShort(t - prev - 1); }                                          // same_frame_extended
+                    prev = t;
+                    count++;
+                }
+                byte[] table = new byte[2 + entries.size()];
+                table[0] = (byte) (count >> 8);
+                table[1] = (byte) count;
+                System.arraycopy(entries.toByteArray(), 0, table, 2, entries.size());
+                return table;
+            }
+
+            // --- Constant pool ---
+
+            private int entry(String key, int tag, int a, int b, String text) throws IOException {
+                Integer known = poolIndex.get(key);
+                if(known != null) return known;
+                cp.writeByte(tag);
+                if(tag == 1) cp.writeUTF(text);
+                else if(tag == 3) cp.writeInt(a);
+                else if(tag == 7) cp.writeShort(a);
+                else { cp.writeShort(a); cp.writeShort(b); }
+                poolIndex.put(key, poolCount);
+                return poolCount++;
+            }
+
+            private int utf8(String s) throws IOException { return entry("U" + s, 1, 0, 0, s); }
+            private int classRef(String name) throws IOException { return entry("C" + name, 7, utf8(name), 0, null); }
+            private int intConst(int v) throws IOException { return entry("I" + v, 3, v, 0, null); }
+
+            private int nameAndType(String name, String desc) throws IOException {
+                return entry("N" + name + ":" + desc, 12, utf8(name), utf8(desc), null);
+            }
+
+            private int fieldRef(String owner, String name, String desc) throws IOException {
+                return entry("F" + owner + "." + name + ":" + desc, 9, classRef(owner), nameAndType(name, desc), null);
+            }
+
+            private int methodRef(String owner, String name, String desc) throws IOException {
+                return entry("M" + owner + "." + name + ":" + desc, 10, classRef(owner), nameAndType(name, desc), null);
+            }
+        }
+    }
+
+    // Superclass of the generated blocks. The static methods are instruction bodies that the
+    // generated code calls with constant operands, and HotSpot inlines them into the block. Each
+    // must do exactly what its case in AvrCore.exec() does.
+    abstract static class TranslatedBlock {
+        int words;        // flash words covered, from the start address
+        int maxCycles;    // longest path through the block
+
+        abstract void run(AvrCore c);
+
+        static void add(AvrCore c, int a, int b) { int[] m = c.data; int rd = m[a], rr = m[b], r = (rd + rr) & 0xFF; m[a] = r; c.addFlags(rd, rr, r); }
+        static void adc(AvrCore c, int a, int b) { int[] m = c.data; int rd = m[a], rr = m[b], r = (rd + rr + (m[AvrCore.SREG] & AvrCore.FLAG_C)) & 0xFF; m[a] = r; c.addFlags(rd, rr, r); }
+        static void sub(AvrCore c, int a, int b) { int[] m = c.data; int rd = m[a], rr = m[b], r = (rd - rr) & 0xFF; m[a] = r; c.subFlags(rd, rr, r, false); }
+        static void sbc(AvrCore c, int a, int b) { int[] m = c.data; int rd = m[a], rr = m[b], r = (rd - rr - (m[AvrCore.SREG] & AvrCore.FLAG_C)) & 0xFF; m[a] = r; c.subFlags(rd, rr, r, true); }
+        static void subi(AvrCore c, int a, int b) { int[] m = c.data; int rd = m[a], r = (rd - b) & 0xFF; m[a] = r; c.subFlags(rd, b, r, false); }
+        static void sbci(AvrCore c, int a, int b) { int[] m = c.data; int rd = m[a], r = (rd - b - (m[AvrCore.SREG] & AvrCore.FLAG_C)) & 0xFF; m[a] = r; c.subFlags(rd, b, r, true); }
+        static void cp(AvrCore c, int a, int b) { int[] m = c.data; int rd = m[a], rr = m[b]; c.subFlags(rd, rr, (rd - rr) & 0xFF, false); }
+        static void cpc(AvrCore c, int a, int b) { int[] m = c.data; int rd = m[a], rr = m[b]; c.subFlags(rd, rr, (rd - rr - (m[AvrCore.SREG] & AvrCore.FLAG_C)) & 0xFF, true); }
+        static void cpi(AvrCore c, int a, int b) { int rd = c.data[a]; c.subFlags(rd, b, (rd - b) & 0xFF, false); }
+        static void and(AvrCore c, int a, int b) { c.logicFlags(c.data[a] &= c.data[b]); }
+        static void andi(AvrCore c, int a, int b) { c.logicFlags(c.data[a] &= b); }
+        static void or(AvrCore c, int a, int b) { c.logicFlags(c.data[a] |= c.data[b]); }
+        static void ori(AvrCore c, int a, int b) { c.logicFlags(c.data[a] |= b); }
+        static void eor(AvrCore c, int a, int b) { c.logicFlags(c.data[a] ^= c.data[b]); }
+        static void com(AvrCore c, int a, int b) { c.logicFlags(c.data[a] ^= 0xFF); c.data[AvrCore.SREG] |= AvrCore.FLAG_C; }
+        static void neg(AvrCore c, int a, int b) { int[] m = c.data; int rd = m[a], r = (-rd) & 0xFF; m[a] = r; c.subFlags(0, rd, r, false); }
+        static void inc(AvrCore c, int a, int b) { int r = (c.data[a] + 1) & 0xFF; c.data[a] = r; c.incDecFlags(r, r == 0x80); }
+        static void dec(AvrCore c, int a, int b) { int r = (c.data[a] - 1) & 0xFF; c.data[a] = r; c.incDecFlags(r, r == 0x7F); }
+        static void asr(AvrCore c, int a, int b) { int[] m = c.data; int rd = m[a], r = (rd >> 1) | (rd & 0x80); m[a] = r; c.shiftFlags(r, rd & 1); }
+        static void lsr(AvrCore c, int a, int b) { int[] m = c.data; int rd = m[a], r = rd >> 1; m[a] = r; c.shiftFlags(r, rd & 1); }
+        static void ror(AvrCore c, int a, int b) { int[] m = c.data; int rd = m[a], r = (rd >> 1) | ((m[AvrCore.SREG] & AvrCore.FLAG_C) << 7); m[a] = r; c.shiftFlags(r, rd & 1); }
+        static void swap(AvrCore c, int a, int b) { int rd = c.data[a]; c.data[a] = ((rd << 4) | (rd >> 4)) & 0xFF; }
+        static void movw(AvrCore c, int a, int b) { int[] m = c.data; m[a] = m[b]; m[a + 1] = m[b + 1]; }
+        static void adiw(AvrCore c, int a, int b) { word(c, a, b, true); }
+        static void sbiw(AvrCore c, int a, int b) { word(c, a, b, false); }
+        static void mul(AvrCore c, int a, int b) { c.mulResult(c.data[a] * c.data[b], false); }
+        static void muls(AvrCore c, int a, int b) { c.mulResult((byte) c.data[a] * (byte) c.data[b], false); }
+        static void mulsu(AvrCore c, int a, int b) { c.mulResult((byte) c.data[a] * c.data[b], false); }
+        static void fmul(AvrCore c, int a, int b) { c.mulResult(c.data[a] * c.data[b], true); }
+        static void fmuls(AvrCore c, int a, int b) { c.mulResult((byte) c.data[a] * (byte) c.data[b], true); }
+        static void fmulsu(AvrCore c, int a, int b) { c.mulResult((byte) c.data[a] * c.data[b], true); }
+        static void bst(AvrCore c, int a, int b) { int[] m = c.data; if((m[a] & b) != 0) m[AvrCore.SREG] |= AvrCore.FLAG_T; else m[AvrCore.SREG] &= ~AvrCore.FLAG_T; }
+        static void bld(AvrCore c, int a, int b) { int[] m = c.data; if((m[AvrCore.SREG] & AvrCore.FLAG_T) != 0) m[a] |= b; else m[a] &= ~b; }
+        static void lds(AvrCore c, int a, int b) { c.data[a] = c.load(b); }
+        static void sts(AvrCore c, int a, int b) { c.store(b, c.data[a]); }
+        static void lpm(AvrCore c, int a, int b) { lpm(c, a, false); }
+        static void lpmInc(AvrCore c, int a, int b) { lpm(c, a, true); }
+
+        // Pointer accesses: generated code updates cycles before these and checks stopAt after.
+        static void ld(AvrCore c, int a, int b) { int[] m = c.data; int ptr = b & 0xFF; m[a] = c.load((m[ptr] | m[ptr + 1] << 8) + (b >> 8)); }
+        static void st(AvrCore c, int a, int b) { int[] m = c.data; int ptr = b & 0xFF; c.store((m[ptr] | m[ptr + 1] << 8) + (b >> 8), m[a]); }
+        static void ldInc(AvrCore c, int a, int b) {
+            int[] m = c.data;
+            int p = m[b] | m[b + 1] << 8;
+            int v = c.load(p);
+            p = (p + 1) & 0xFFFF; m[b] = p & 0xFF; m[b + 1] = p >> 8;
+            m[a] = v;
+        }
+        static void ldDec(AvrCore c, int a, int b) {
+            int[] m = c.data;
+            int p = ((m[b] | m[b + 1] << 8) - 1) & 0xFFFF;
+            m[b] = p & 0xFF; m[b + 1] = p >> 8;
+            m[a] = c.load(p);
+        }
+        static void stInc(AvrCore c, int a, int b) {
+            int[] m = c.data;
+            int p = m[b] | m[b + 1] << 8;
+            c.store(p, m[a]);
+            p = (p + 1) & 0xFFFF; m[b] = p & 0xFF; m[b + 1] = p >> 8;
+        }
+        static void stDec(AvrCore c, int a, int b) {
+            int[] m = c.data;
+            int p = ((m[b] | m[b + 1] << 8) - 1) & 0xFFFF;
+            m[b] = p & 0xFF; m[b + 1] = p >> 8;
+            c.store(p, m[a]);
+        }
+        static void push(AvrCore c, int a, int b) { c.push(c.data[a]); }
+        static void pop(AvrCore c, int a, int b) { c.data[a] = c.pop(); }
+
+        // Block-ending instructions return the next pc. Skips add their extra cycles themselves.
+        static int call(AvrCore c, int ret, int target) { c.pushPc(ret); return target; }
+        static int icall(AvrCore c, int ret) { c.pushPc(ret); return c.data[30] | c.data[31] << 8; }
+        static int ijmp(AvrCore c) { return c.data[30] | c.data[31] << 8; }
+        static int ret(AvrCore c) { int hi = c.pop(); return hi << 8 | c.pop(); }
+        static int cpse(AvrCore c, int a, int b, int next, int to) { return c.data[a] == c.data[b] ? skipTo(c, next, to) : next; }
+        static int skipIfClear(AvrCore c, int a, int b, int next, int to) { return (c.data[a] & b) == 0 ? skipTo(c, next, to) : next; }
+        static int skipIfSet(AvrCore c, int a, int b, int next, int to) { return (c.data[a] & b) != 0 ? skipTo(c, next, to) : next; }
+
+        private static int skipTo(AvrCore c, int next, int to) { c.cycles += to - next; return to; }
+
+        private static void word(AvrCore c, int a, int b, boolean add) {
+            int[] m = c.data;
+            int rd = m[a] | m[a + 1] << 8;
+            int r = (add ? rd + b : rd - b) & 0xFFFF;
+            m[a] = r & 0xFF; m[a + 1] = r >> 8;
+            int ov = add ? ~rd & r : rd & ~r;       // V in bit 15
+            int cy = add ? ~r & rd : r & ~rd;       // C in bit 15
+            int f = (cy >> 15 & 1) | (r == 0 ? AvrCore.FLAG_Z : 0) | (r >> 13 & AvrCore.FLAG_N) | (ov >> 12 & AvrCore.FLAG_V);
+            m[AvrCore.SREG] = (m[AvrCore.SREG] & (AvrCore.FLAG_I | AvrCore.FLAG_T | AvrCore.FLAG_H)) | f | (((f << 2) ^ (f << 1)) & AvrCore.FLAG_S);
+        }
+
+        private static void lpm(AvrCore c, int a, boolean inc) {
+            int[] m = c.data;
+            int z = m[30] | m[31] << 8;
+            int word = (z >> 1) < c.flash.length ? c.flash[z >> 1] : 0xFFFF;
+            m[a] = (z & 1) == 0 ? word & 0xFF : word >> 8;
+            if(inc) { z = (z + 1) & 0xFFFF; m[30] = z & 0xFF; m[31] = z >> 8; }
+        }
+    }
+
+    // --- MULTI-MCU CO-SIMULATION ---
+    // Several cores on parallel threads, joined by simulated wires. A UART link connects one
+    // part's TXD to another's RXD, and a pin wire lets an output pin drive another part's input pin.
+    // The cores advance in quanta of K cycles and meet at a barrier after each one, so none is
+    // ever more than K cycles ahead of another. During a quantum a core only appends to its own
+    // outbox. The last thread to reach the barrier moves every outbox entry into the inboxes of
+    // the receiving cores while the others wait.
+    // Every signal takes exactly K cycles from sender to receiver: it was sent during the quantum
+    // that just ended, so it is due during the next one. That keeps UART frames spaced as they
+    // were sent, and the result does not depend on how the threads were scheduled.
+
+    static final class CoSim {
+        static final int UART = -1;                 // signal target: the receiving USART, not a pin
+
+        final AvrCore[] cores;
+        final long quantum;
+        private final Outbox[] outboxes;
+        private final Inbox[] inboxes;
+        private final Map<Integer, PinTap> taps = new HashMap<>();   // by core * 4 + port
+
+        private final AtomicInteger arrived = new AtomicInteger();
+        private volatile int phase;
+        private long time;                          // every core has run up to here
+        private long limit;                         // end of the current quantum
+        private long until;
+        private boolean done;
+        private volatile RuntimeException failure;
+        private int threads;
+
+        CoSim(AvrCore[] cores, long quantum) {
+            if(quantum < 1) throw new IllegalArgumentException("quantum must be at least 1 cycle");
+            this.cores = cores;
+            this.quantum = quantum;
+            outboxes = new Outbox[cores.length];
+            inboxes = new Inbox[cores.length];
+            for(int i=0; i<cores.length; i++) { outboxes[i] = new Outbox(); inboxes[i] = new Inbox(cores[i]); }
+        }
+
+        // Bytes transmitted by core 'from' arrive at the receiver of core 'to'. Call it twice,
+        // with the cores swapped, for a full-duplex link.
+        void uart(int from, int to) {
+            Usart u = cores[from].usart, target = cores[to].usart;
+            if(u == null || target == null) throw new IllegalArgumentException("both parts need a USART");
+            AvrCore c = cores[from];
+            Outbox out = outboxes[from];
+            IntConsumer previous = u.sink;
+            u.sink = b -> { out.add(c.cycles, to, UART, b); previous.accept(b); };
+        }
+
+        // Output pin 'bit' of port 'port' (0-3 = A-D) on core 'from' drives the input pin
+        // toBit of toPort on core 'to'. A pin that is not an output leaves the line high, as if
+        // pulled up.
+        void wire(int from, int port, int bit, int to, int toPort, int toBit) {
+            String name = String.valueOf((char) ('A' + port));
+            AvrCore c = cores[from];
+            if(c.device.reg("PORT" + name) < 0 || cores[to].device.reg("PIN" + (char) ('A' + toPort)) < 0)
+                throw new IllegalArgumentException("no such port");
+            PinTap tap = taps.computeIfAbsent(from * 4 + port, k -> new PinTap(c, outboxes[from], name));
+            tap.add(bit, to, toPort * 8 + toBit);
+            cores[to].setPin(toPort, toBit, tap.level(bit));
+        }
+
+        // Runs every core to untilCycle, or until all of them have halted. With fewer CPUs than
+        // cores, each thread runs several cores one after the other; the result is the same.
+        // The calling thread is one of them.
+        void run(long untilCycle) throws InterruptedException {
+            if(time >= untilCycle) return;
+            until = untilCycle;
+            done = false;
+            limit = Math.min(time + quantum, untilCycle);
+            threads = Math.min(cores.length, Runtime.getRuntime().availableProcessors());
+            Thread[] started = new Thread[threads - 1];
+            for(int i=1; i<threads; i++) {
+                int n = i;
+                started[i - 1] = new Thread(() -> worker(n), "cosim-" + n);
+                started[i - 1].start();
+            }
+            worker(0);
+            for(Thread t : started) t.join();
+            if(failure != null) throw failure;
+        }
+
+        private void worker(int first) {
+            while(!done) {
+                for(int i = first; i < cores.length && failure == null; i += threads) {
+                    try {
+                        cores[i].run(limit);
+                    } catch(RuntimeException e) {
+                        failure = e;
+                    }
+                }
+                await();
+            }
+        }
+
+        // Spin barrier. A quantum is only tens of microseconds of host time, less than it takes
+        // to park and wake a thread.
+        private void await() {
+            int p = phase;
+            if(arrived.incrementAndGet() == threads) {
+                arrived.set(0);
+                exchange();
+                phase = p + 1;
+                return;
+            }
+            for(int spins = 0; phase == p; spins++) {
+                if(spins < 20_000) Thread.onSpinWait();
+                else Thread.yield();
+            }
+        }
+
+        // Barrier action, all cores stopped: deliver this quantum's signals and set up the next.
+        private void exchange() {
+            for(int from=0; from<cores.length; from++) {
+                Outbox out = outboxes[from];
+                for(int j=0; j<out.size; j++) {
+                    AvrCore target = cores[out.dest[j]];
+                    inboxes[out.dest[j]].add(Math.max(out.at[j] + quantum, target.cycles), out.pin[j], out.value[j]);
+                }
+                out.size = 0;
+            }
+            for(Inbox in : inboxes) in.arm();
+            time = limit;
+            boolean running = false;
+            for(AvrCore c : cores) running |= c.halt == AvrCore.RUNNING;
+            done = !running || failure != null || time >= until;
+            limit = Math.min(time + quantum, until);
+        }
+
+        // Signals one core sent during the current quantum, in the order it sent them. Only that
+        // core's thread appends; the barrier drains it.
+        private static final class Outbox {
+            long[] at = new long[64];
+            int[] dest = new int[64], pin = new int[64], value = new int[64];   // pin: port * 8 + bit, or UART
+            int size;
+
+            void add(long cycle, int to, int target, int v) {
+                if(size == at.length) {
+                    at = Arrays.copyOf(at, size * 2);
+                    dest = Arrays.copyOf(dest, size * 2); pin = Arrays.copyOf(pin, size * 2); value = Arrays.copyOf(value, size * 2);
+                }
+                at[size] = cycle; dest[size] = to; pin[size] = target; value[size] = v;
+                size++;
+            }
+        }
+
+        // Signals on their way to one core, ordered by arrival. It is a single event in that core's
+        // queue, due at the earliest arrival.
+        private static final class Inbox extends SimEvent {
+            final AvrCore core;
+            long[] at = new long[64];
+            int[] pin = new int[64], value = new int[64];
+            int head, size;
+
+            Inbox(AvrCore core) { this.core = core; }
+
+            // Keeps arrival order; equal arrivals stay in the order they were added.
+            void add(long cycle, int target, int v) {
+                if(head == size) head = size = 0;
+                if(size == at.length) { at = Arrays.copyOf(at, size * 2); pin = Arrays.copyOf(pin, size * 2); value = Arrays.copyOf(value, size * 2); }
+                int i = size++;
+                for(; i > head && at[i - 1] > cycle; i--) { at[i] = at[i - 1]; pin[i] = pin[i - 1]; value[i] = value[i - 1]; }
+                at[i] = cycle; pin[i] = target; value[i] = v;
+            }
+
+            void arm() { if(head < size) core.schedule(this, at[head]); }
+
+            @Override void fire() {
+                for(; head < size && at[head] <= core.cycles; head++) {
+                    int p = pin[head];
+                    if(p == UART) core.usart.receive(value[head]);
+                    else core.setPin(p >> 3, p & 7, value[head] != 0);
+                }
+                arm();
+            }
+        }
+
+        // Watches PORTx and DDRx of one port and reports level changes on wired pins.
+        private static final class PinTap implements IoHook {
+            final AvrCore core;
+            final Outbox out;
+            final int portAddr, ddrAddr;
+            final IoHook portNext, ddrNext;
+            int[] bit = new int[0], dest = new int[0], target = new int[0];
+            int levels;                               // last reported level of every pin, as a byte
+
+            PinTap(AvrCore core, Outbox out, String port) {
+                this.core = core;
+                this.out = out;
+                portAddr = core.device.reg("PORT" + port);
+                ddrAddr = core.device.reg("DDR" + port);
+                portNext = core.hook(portAddr, this);
+                ddrNext = core.hook(ddrAddr, this);
+                levels = driven();
+            }
+
+            void add(int b, int to, int pin) {
+                int n = bit.length;
+                bit = Arrays.copyOf(bit, n + 1); dest = Arrays.copyOf(dest, n + 1); target = Arrays.copyOf(target, n + 1);
+                bit[n] = b; dest[n] = to; target[n] = pin;
+            }
+
+            boolean level(int b) { return (levels >> b & 1) != 0; }
+
+            // Outputs drive their PORT bit; inputs leave the line pulled high.
+            private int driven() {
+                int ddr = core.data[ddrAddr];
+                return (core.data[portAddr] & ddr | ~ddr) & 0xFF;
+            }
+
+            @Override public int read(int addr) {
+                IoHook next = addr == portAddr ? portNext : ddrNext;
+                return next != null ? next.read(addr) : core.data[addr];
+            }
+
+            @Override public void write(int addr, int old, int value) {
+                IoHook next = addr == portAddr ? portNext : ddrNext;
+                if(next != null) next.write(addr, old, value);
+                int now = driven(), changed = now ^ levels;
+                if(changed == 0) return;
+                levels = now;
+                for(int i=0; i<bit.length; i++) {
+                    if((changed >> bit[i] & 1) != 0) out.add(core.cycles, dest[i], target[i], now >> bit[i] & 1);
+                }
+            }
+        }
+    }
+
+    // --- FUZZ HARNESS ---
+    // Property tests for a single routine. Each case writes random values into the chosen inputs
+    // (registers, I/O or SRAM bytes), calls the routine with a return address just past the end
+    // of flash, so that its RET halts the core, and then checks the properties.
+    // Cases are split into fixed chunks that run as tasks on a ForkJoinPool. A task builds its own
+    // core, brings it to the starting state once and snapshots it; every case starts by restoring
+    // that snapshot. Tasks share only the read-only flash image. Case i draws its values from
+    // (seed, i) alone, so a run finds the same failures however many threads it has.
+    // The lowest failing case is then shrunk: its inputs are lowered one at a time for as long as
+    // it keeps failing.
+
+    static final class Fuzzer {
+        static final int CHUNK = 4096;                  // cases per task
+        private static final int[] EDGES = {0x00, 0x01, 0x7F, 0x80, 0xFF};
+        private static final String[] REGISTERS = new String[32];
+        static { for(int i=0; i<32; i++) REGISTERS[i] = "R" + i; }
+
+        // Checked once the routine has returned. before is the data space at the call. Returns
+        // null if the property holds, otherwise what went wrong.
+        interface Property { String check(int[] before, AvrCore after); }
+
+        final int[] flash;
+        final Device device;
+        final int entry;                                // word address of the routine
+        final int[] inputs;                             // data addresses, random in every case
+        final java.util.List<Property> properties = new ArrayList<>();
+        int ready = -1;                                 // run from reset to this word first; -1 = start at reset
+        long budget = 1_000_000;                        // cycles a call may take
+        long seed = 1;
+        boolean translate = Translator.ENABLED;
+
+        Fuzzer(int[] flash, Device device, int entry, int[] inputs) {
+            this.flash = flash;
+            this.device = device;
+            this.entry = entry;
+            this.inputs = inputs;
+        }
+
+        static final class Report {
+            long cases;                                 // cases run; a task stops at its first failure
+            long failed = -1;                           // lowest failing case, -1 if none
+            int[] original, shrunk;                     // its inputs as drawn, and after shrinking
+            String message;                             // why the shrunk inputs fail
+            long nanos;                                 // running the cases, without shrinking
+
+            double casesPerSecond() { return nanos == 0 ? 0 : cases * 1e9 / nanos; }
+        }
+
+        Report run(long cases, int threads) {
+            long start = System.nanoTime();
+            ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+            java.util.List<ForkJoinTask<Report>> tasks = new ArrayList<>();
+            Report r = new Report();
+            try {
+                for(long lo = 0; lo < cases; lo += CHUNK) {
+                    long from = lo, to = Math.min(cases, lo + CHUNK);
+                    tasks.add(pool.submit(() -> new Worker(this).run(from, to)));
+                }
+                for(ForkJoinTask<Report> t : tasks) {    // in case order: the first failure found is the lowest
+                    Report part = t.join();
+                    r.cases += part.cases;
+                    if(r.failed < 0 && part.failed >= 0) { r.failed = part.failed; r.original = part.original; }
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+            r.nanos = System.nanoTime() - start;
+            if(r.failed >= 0) shrink(r);
+            return r;
+        }
+
+        // Tries zero, half, the lowest set bit cleared and one less for each input, keeping any
+        // step that still fails, until no input can be lowered.
+        private void shrink(Report r) {
+            Worker w = new Worker(this);
+            int[] v = r.original.clone();
+            String msg = w.check(v);
+            for(boolean progress = true; progress; ) {
+                progress = false;
+                for(int k=0; k<v.length; k++) {
+                    int x = v[k];
+                    for(int smaller : new int[]{0, x >> 1, x & (x - 1), x - 1}) {
+                        if(smaller < 0 || smaller >= x) continue;
+                        v[k] = smaller;
+                        String m = w.check(v);
+                        if(m != null) { msg = m; progress = true; break; }
+                        v[k] = x;
+                    }
+                }
+            }
+            r.shrunk = v;
+            r.message = msg;
+        }
+
+        // Case i's values depend on nothing but (seed, i). One in four bytes is an edge value.
+        static void draw(long seed, long i, int[] v) {
+            SplittableRandom rnd = new SplittableRandom(seed * 0x9E3779B97F4A7C15L + i);
+            for(int k=0; k<v.length; k++) v[k] = rnd.nextInt(4) == 0 ? EDGES[rnd.nextInt(EDGES.length)] : rnd.nextInt(256);
+        }
+
+        // One per task, and one for shrinking. Owns its core, its snapshot and its scratch arrays.
+        private static final class Worker {
+            final Fuzzer f;
+            final AvrCore core;
+            final ByteBuffer start;
+            final int[] before;
+
+            Worker(Fuzzer f) {
+                this.f = f;
+                AvrCore c = core = new AvrCore(f.flash, f.device);
+                if(!f.translate) c.jit = null;
+                if(f.ready >= 0) {
+                    c.setTempBreak(f.ready);
+                    c.run(f.budget);
+                    if(c.halt != AvrCore.HALT_BREAKPOINT || c.pc != f.ready)
+                        throw new IllegalStateException(String.format("setup did not reach 0x%04X within %d cycles", f.ready * 2, f.budget));
+                    c.halt = AvrCore.RUNNING;
+                }
+                ByteBuffer b = ByteBuffer.allocate(c.data.length + 1024);
+                while(true) {
+                    try { c.saveState(b); break; }
+                    catch(BufferOverflowException e) { b = ByteBuffer.allocate(b.capacity() * 2); }
+                }
+                b.flip();
+                start = b;
+                before = new int[c.data.length];
+            }
+
+            Report run(long from, long to) {
+                Report r = new Report();
+                int[] v = new int[f.inputs.length];
+                for(long i = from; i < to; i++) {
+                    draw(f.seed, i, v);
+                    r.cases++;
+                    if(check(v) != null) { r.failed = i; r.original = v; break; }
+                }
+                return r;
+            }
+
+            // Runs one case. Returns null if it passes, otherwise what went wrong.
+            String check(int[] v) {
+                AvrCore c = core;
+                start.rewind();
+                c.loadState(start);
+                for(int k=0; k<v.length; k++) c.data[f.inputs[k]] = v[k];
+                System.arraycopy(c.data, 0, before, 0, before.length);
+                c.pushPc(c.flash.length);
+                c.pc = f.entry;
+                c.run(c.cycles + f.budget);
+                if(c.halt == AvrCore.RUNNING) return "did not return within " + f.budget + " cycles";
+                if(c.halt == AvrCore.HALT_BREAK) return String.format("hit BREAK at 0x%04X", c.pc * 2);
+                if(c.pc != c.flash.length) return String.format("jumped outside flash (0x%X)", c.pc * 2);
+                for(Property p : f.properties) {
+                    String m = p.check(before, c);
+                    if(m != null) return m;
+                }
+                return null;
+            }
+        }
+
+        // --- Properties ---
+
+        // Every byte must be back at its value from before the call.
+        static Property preserves(Device dev, int[] addrs) {
+            return (before, c) -> {
+                for(int a : addrs) {
+                    if(c.data[a] != before[a]) return String.format("%s changed from 0x%02X to 0x%02X", name(dev, a), before[a], c.data[a]);
+                }
+                return null;
+            };
+        }
+
+        // The result bytes, low byte first, must equal reference(before) cut to their width.
+        static Property expect(String name, int[] result, ToLongFunction<int[]> reference) {
+            long mask = result.length >= 8 ? -1 : (1L << 8 * result.length) - 1;
+            return (before, c) -> {
+                long got = 0;
+                for(int k = result.length - 1; k >= 0; k--) got = got << 8 | c.data[result[k]];
+                long want = reference.applyAsLong(before) & mask;
+                return got == want ? null : String.format("%s = 0x%X, expected 0x%X", name, got, want);
+            };
+        }
+
+        // "R25:R24 = (R24 + R22) * 2". The left side names the result registers, high byte first.
+        // The right side is an assembler expression in which R0-R31 are the values at the call.
+        static Property expect(Device dev, String spec) {
+            int eq = spec.indexOf('=');
+            if(eq < 0) throw new IllegalArgumentException("expected RESULT = expression, got '" + spec + "'");
+            String lhs = spec.substring(0, eq).replace(" ", "").toUpperCase(), expr = spec.substring(eq + 1);
+            String[] regs = lhs.split(":");
+            int[] result = new int[regs.length];
+            for(int k=0; k<regs.length; k++) {
+                int a = address(dev, regs[k]);
+                if(a >= 32) throw new IllegalArgumentException("result must be registers, got '" + regs[k] + "'");
+                result[regs.length - 1 - k] = a;
+            }
+            // The evaluator keeps state, so each thread gets its own.
+            ThreadLocal<Assembler.Evaluator> evaluators = ThreadLocal.withInitial(() -> new Assembler.Evaluator(dev));
+            ToLongFunction<int[]> reference = before -> {
+                Assembler.Evaluator e = evaluators.get();
+                for(int r=0; r<32; r++) e.bind(REGISTERS[r], before[r]);
+                return e.eval(expr);
+            };
+            reference.applyAsLong(new int[32]);         // a bad expression fails here, not in every case
+            return expect(lhs, result, reference);
+        }
+
+        // "R0-R15,SREG,0x100-0x103" -> data addresses. Registers, I/O names or numbers, and ranges.
+        static int[] addresses(Device dev, String spec) {
+            java.util.List<Integer> out = new ArrayList<>();
+            for(String part : spec.split(",")) {
+                if(part.isBlank()) continue;
+                String[] ends = part.split("-", 2);
+                int lo = address(dev, ends[0]), hi = ends.length > 1 ? address(dev, ends[1]) : lo;
+                if(hi < lo) throw new IllegalArgumentException("empty range '" + part.trim() + "'");
+                for(int a = lo; a <= hi; a++) out.add(a);
+            }
+            int[] a = new int[out.size()];
+            for(int i=0; i<a.length; i++) a[i] = out.get(i);
+            return a;
+        }
+
+        private static int address(Device dev, String s) {
+            String t = s.trim().toUpperCase();
+            if(t.matches("R([0-9]|[12][0-9]|3[01])")) return Integer.parseInt(t.substring(1));
+            int a = dev.reg(t);
+            if(a >= 0) return a;
+            try { a = Integer.decode(t); } catch(NumberFormatException e) { a = -1; }
+            if(a < 0 || a > dev.ramEnd) throw new IllegalArgumentException("not a register or data address: '" + s.trim() + "'");
+            return a;
+        }
+
+        static String name(Device dev, int addr) {
+            if(addr < 32) return REGISTERS[addr];
+            String n = dev.regName(addr);
+            return n != null ? n : String.format("0x%04X", addr);
+        }
+    }
+
+    // --- HEADLESS BATCH RUNNER ---
+    // java OpenAVRStudio --headless (--hex FILE | --dir DIR) [--device NAME] [--max-cycles N] [--dump-regs] [--threads N]
+    //                   [--uart-in TEXT] [--pin CYCLE:D2=0 ...] [--trace FILE] [--vcd FILE] [--no-jit]
+    // java OpenAVRStudio --headless --node FILE --node FILE ... [--uart 0-1 ...] [--wire 0:B0=1:D2 ...] [--quantum K]
+    // java OpenAVRStudio --headless --fuzz FILE --call LABEL [--ready LABEL] [--inputs LIST] [--preserve LIST]
+    //                   [--expect "R25:R24 = EXPR" ...] [--cases N] [--seed N] [--threads N] [--max-cycles PER_CALL]
+    // java OpenAVRStudio --headless --trace-dump FILE [--at CYCLE] [--rows N] [--pc LO-HI]
+    // Runs the same core with no Swing and prints the final machine state as JSON.
+
+    static final class HeadlessRunner {
+        long maxCycles = 10_000_000L;
+        boolean dumpRegs = false;
+        Device device = Device.ATMEGA32;
+        int threads = Runtime.getRuntime().availableProcessors();
+        byte[] uartIn;
+        File traceFile;
+        File profileFile;
+        File vcdFile;
+        long clockHz = 16_000_000L;   // only used to turn cycles into time (profile, VCD)
+        boolean translate = Translator.ENABLED;
+        final java.util.List<long[]> pinEvents = new ArrayList<>();   // {cycle, port, bit, level}
+        final java.util.List<File> nodes = new ArrayList<>();           // co-simulation: one image per part
+        final java.util.List<int[]> uartLinks = new ArrayList<>();      // {a, b}, full duplex
+        final java.util.List<int[]> wires = new ArrayList<>();          // {from, port, bit, to, port, bit}
+        long quantum = 10_000;
+        File fuzzFile;                                                  // fuzzing: the image or source under test
+        String call, ready, inputs = "", preserve;
+        final java.util.List<String> expects = new ArrayList<>();
+        long cases = 100_000, seed = 1;
+
+        static int main(String[] args) throws Exception {
+            HeadlessRunner r = new HeadlessRunner();
+            String hex = null, dir = null, dump = null, pcRange = null;
+            long at = 0;
+            int rows = 50;
+            for(int i=0; i<args.length; i++) {
+                switch(args[i]) {
+                    case "--headless": break;
+                    case "--hex": hex = args[++i]; break;
+                    case "--dir": dir = args[++i]; break;
+                    case "--max-cycles": r.maxCycles = Long.parseLong(args[++i]); break;
+                    case "--dump-regs": r.dumpRegs = true; break;
+                    case "--device": r.device = Device.byName(args[++i]); break;
+                    case "--threads": r.threads = Integer.parseInt(args[++i]); break;
+                    case "--trace": r.traceFile = new File(args[++i]); break;
+                    case "--profile": r.profileFile = new File(args[++i]); break;
+                    case "--vcd": r.vcdFile = new File(args[++i]); break;
+                    case "--freq": r.clockHz = Long.parseLong(args[++i]); break;
+                    case "--no-jit": r.translate = false; break;
+                    case "--node": r.nodes.add(new File(args[++i])); break;
+                    case "--quantum": r.quantum = Long.parseLong(args[++i]); break;
+                    case "--uart": {
+                        Matcher m = Pattern.compile("(\\d+)-(\\d+)").matcher(args[++i]);
+                        if(!m.matches()) { System.err.println("Bad --uart (expected A-B): " + args[i]); return 2; }
+                        r.uartLinks.add(new int[]{Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2))});
+                        break;
+                    }
+                    case "--wire": {
+                        int[] w = parseWire(args[++i]);
+                        if(w == null) { System.err.println("Bad --wire (expected 0:B0=1:D2): " + args[i]); return 2; }
+                        r.wires.add(w);
+                        break;
+                    }
+                    case "--fuzz": r.fuzzFile = new File(args[++i]); break;
+                    case "--call": r.call = args[++i]; break;
+                    case "--ready": r.ready = args[++i]; break;
+                    case "--inputs": r.inputs = args[++i]; break;
+                    case "--preserve": r.preserve = args[++i]; break;
+                    case "--expect": r.expects.add(args[++i]); break;
+                    case "--cases": r.cases = Long.parseLong(args[++i]); break;
+                    case "--seed": r.seed = Long.parseLong(args[++i]); break;
+                    case "--trace-dump": dump = args[++i]; break;
+                    case "--at": at = Long.parseLong(args[++i]); break;
+                    case "--rows": rows = Integer.parseInt(args[++i]); break;
+                    case "--pc": pcRange = args[++i]; break;
+                    case "--uart-in": r.uartIn = args[++i].getBytes(StandardCharsets.ISO_8859_1); break;
+                    case "--pin": {
+                        long[] ev = parsePin(args[++i]);
+                        if(ev == null) { System.err.println("Bad --pin (expected CYCLE:D2=0): " + args[i]); return 2; }
+                        r.pinEvents.add(ev);
+                        break;
+                    }
+                    default:
+                        System.err.println("Unknown option: " + args[i]);
+                        return 2;
+                }
+            }
+            if(dump != null) return dumpTrace(new File(dump), at, rows, pcRange);
+            if(!r.nodes.isEmpty()) return r.coSimulate();
+            if(r.fuzzFile != null) return r.fuzz();
+            if(dir != null && (r.traceFile != null || r.profileFile != null || r.vcdFile != null)) {
+                System.err.println("--trace, --profile and --vcd record a single image; use them with --hex");
+                return 2;
+            }
+            if(hex == null && dir == null) {
+                System.err.println("Usage: java OpenAVRStudio --headless (--hex FILE | --dir DIR) [--device NAME] [--max-cycles N] [--dump-regs] [--threads N] [--uart-in TEXT] [--pin CYCLE:D2=0] [--trace FILE] [--profile FILE] [--vcd FILE] [--freq HZ] [--no-jit]");
+                System.err.println("       java OpenAVRStudio --headless --node FILE --node FILE ... [--uart 0-1] [--wire 0:B0=1:D2] [--quantum K]");
+                System.err.println("       java OpenAVRStudio --headless --fuzz FILE --call LABEL [--ready LABEL] [--inputs R24,R22] [--preserve R0-R15,SREG] [--expect \"R24=R24+R22\"] [--cases N] [--seed N]");
+                return 2;
+            }
+            if(hex != null) {
+                String json = r.simulate(new File(hex));
+                System.out.println(json);
+                return json.contains("\"error\"") ? 1 : 0;
+            }
+            return r.simulateDirectory(new File(dir));
+        }
+
+        // One isolated core per image, spread across a fixed thread pool. Output keeps file order.
+        int simulateDirectory(File dir) throws InterruptedException {
+            File[] images = dir.listFiles((d, n) -> n.toLowerCase().endsWith(".hex"));
+            if(images == null) { System.err.println("Not a directory: " + dir); return 2; }
+            Arrays.sort(images);
+
+            ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+            java.util.List<Future<String>> results = new ArrayList<>();
+            for(File img : images) results.add(pool.submit(() -> simulate(img)));
+            pool.shutdown();
+
+            int failures = 0;
+            StringBuilder out = new StringBuilder("[\n");
+            for(int i=0; i<results.size(); i++) {
+                String json;
+                try { json = results.get(i).get(); }
+                catch(ExecutionException e) { json = errorJson(images[i], String.valueOf(e.getCause())); }
+                if(json.contains("\"error\"")) failures++;
+                out.append("  ").append(json).append(i < results.size()-1 ? ",\n" : "\n");
+            }
+            out.append("]");
+            System.out.println(out);
+            return failures == 0 ? 0 : 1;
+        }
+
+        String simulate(File image) {
+            int[] flash;
+            try { flash = loadHex(image.getPath(), device); }
+            catch(IOException e) { return errorJson(image, e.getMessage()); }
+
+            AvrCore c = new AvrCore(flash, device);
+            if(!translate) c.jit = null;
+            StringBuilder uart = new StringBuilder();
+            c.usart.sink = b -> uart.append((char) b);
+            if(uartIn != null) c.usart.feed(uartIn);
+            for(long[] ev : pinEvents) c.schedulePin(ev[0], (int) ev[1], (int) ev[2], ev[3] != 0);
+            long traced = -1;
+            if(profileFile != null) c.profile = new Profiler(c);
+            if(vcdFile != null) c.wave = new WaveCapture(c);
+            try {
+                if(traceFile != null) c.startTrace(new TraceWriter(traceFile));
+                c.run(maxCycles);
+                traced = c.stopTrace();
+            } catch(IOException e) { return errorJson(image, "trace: " + e.getMessage()); }
+            if(profileFile != null) {
+                try { Files.write(profileFile.toPath(), c.profile.report(device, clockHz, null, null).getBytes(StandardCharsets.UTF_8)); }
+                catch(IOException e) { return errorJson(image, "profile: " + e.getMessage()); }
+            }
+            if(c.wave != null) {
+                c.wave.update();
+                try(WaveCapture w = c.wave; Writer out = Files.newBufferedWriter(vcdFile.toPath(), StandardCharsets.US_ASCII)) { w.writeVcd(out, clockHz); }
+                catch(IOException | UncheckedIOException e) { return errorJson(image, "vcd: " + e.getMessage()); }
+            }
+            c.syncIo();
+            return stateJson(image, c, uart, traced);
+        }
+
+        private String stateJson(File image, AvrCore c, CharSequence uart, long traced) {
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\"image\": \"").append(jsonEscape(image.getPath())).append("\"");
+            sb.append(", \"halt\": \"").append(c.halt == AvrCore.HALT_BREAK ? "break"
+                    : c.halt == AvrCore.HALT_END_OF_FLASH ? "end_of_flash" : "max_cycles").append("\"");
+            sb.append(", \"cycles\": ").append(c.cycles);
+            sb.append(", \"pc\": ").append(c.pc * 2);
+            sb.append(", \"uart\": \"").append(jsonEscape(uart.toString())).append("\"");
+            if(traced >= 0 && traceFile != null) sb.append(", \"trace_records\": ").append(traced);
+            if(c.wave != null) sb.append(", \"port_transitions\": ").append(c.wave.count());
+            if(dumpRegs) {
+                sb.append(", \"registers\": ");
+                appendArray(sb, c.data, 0, 32);
+                sb.append(", \"io\": ");
+                appendArray(sb, c.data, AvrCore.IO_BASE, AvrCore.IO_BASE + 64);
+                sb.append(", \"sreg\": ").append(c.data[AvrCore.SREG]);
+                sb.append(", \"sp\": ").append(c.sp());
+            }
+            return sb.append("}").toString();
+        }
+
+        // The --node images as one board: each part on its own thread, linked as given. --uart-in
+        // and --pin apply to the first part. Prints one JSON object per part, in --node order.
+        int coSimulate() throws InterruptedException {
+            AvrCore[] cores = new AvrCore[nodes.size()];
+            StringBuilder[] uart = new StringBuilder[cores.length];
+            for(int i=0; i<cores.length; i++) {
+                int[] flash;
+                try { flash = loadHex(nodes.get(i).getPath(), device); }
+                catch(IOException e) { System.out.println("[\n  " + errorJson(nodes.get(i), e.getMessage()) + "\n]"); return 1; }
+                AvrCore c = cores[i] = new AvrCore(flash, device);
+                if(!translate) c.jit = null;
+                StringBuilder sb = uart[i] = new StringBuilder();
+                c.usart.sink = b -> sb.append((char) b);
+            }
+            if(uartIn != null) cores[0].usart.feed(uartIn);
+            for(long[] ev : pinEvents) cores[0].schedulePin(ev[0], (int) ev[1], (int) ev[2], ev[3] != 0);
+
+            CoSim sim;
+            try {
+                sim = new CoSim(cores, quantum);
+                for(int[] l : uartLinks) { sim.uart(l[0], l[1]); sim.uart(l[1], l[0]); }
+                for(int[] w : wires) sim.wire(w[0], w[1], w[2], w[3], w[4], w[5]);
+            } catch(IllegalArgumentException | IndexOutOfBoundsException e) {
+                System.err.println("Bad co-simulation setup: " + e.getMessage());
+                return 2;
+            }
+            sim.run(maxCycles);
+
+            StringBuilder out = new StringBuilder("[\n");
+            for(int i=0; i<cores.length; i++) {
+                cores[i].syncIo();
+                out.append("  ").append(stateJson(nodes.get(i), cores[i], uart[i], -1)).append(i < cores.length-1 ? ",\n" : "\n");
+            }
+            System.out.println(out.append("]"));
+            return 0;
+        }
+
+        // Fuzzes the --call routine of an image (.hex, addresses only) or an assembly source (labels
+        // too). --max-cycles is the budget of one call. Prints one JSON object; exits 1 if a case failed.
+        int fuzz() {
+            int[] flash;
+            Map<String, Integer> labels = Collections.emptyMap();
+            try {
+                if(fuzzFile.getName().toLowerCase().endsWith(".hex")) {
+                    flash = loadHex(fuzzFile.getPath(), device);
+                } else {
+                    Assembler.Result asm = Assembler.assemble(new String(Files.readAllBytes(fuzzFile.toPath()), StandardCharsets.UTF_8), device);
+                    asm.warnings.forEach(w -> System.err.println("warning: " + w));
+                    if(!asm.errors.isEmpty()) { asm.errors.forEach(System.err::println); return 2; }
+                    flash = asm.flash;
+                    labels = asm.labels;
+                }
+            } catch(IOException e) { System.out.println(errorJson(fuzzFile, e.getMessage())); return 1; }
+            if(call == null) { System.err.println("--fuzz needs --call LABEL"); return 2; }
+
+            Fuzzer f;
+            try {
+                f = new Fuzzer(flash, device, location(labels, call), Fuzzer.addresses(device, inputs));
+                if(ready != null) f.ready = location(labels, ready);
+                if(preserve != null) f.properties.add(Fuzzer.preserves(device, Fuzzer.addresses(device, preserve)));
+                for(String e : expects) f.properties.add(Fuzzer.expect(device, e));
+            } catch(IllegalArgumentException e) {
+                System.err.println("Bad fuzz setup: " + e.getMessage());
+                return 2;
+            }
+            f.budget = maxCycles;
+            f.seed = seed;
+            f.translate = translate;
+
+            Fuzzer.Report rep;
+            try { rep = f.run(cases, threads); }
+            catch(IllegalStateException e) { System.out.println(errorJson(fuzzFile, e.getMessage())); return 1; }
+            StringBuilder sb = new StringBuilder();
+            sb.append("{\"image\": \"").append(jsonEscape(fuzzFile.getPath())).append("\"");
+            sb.append(", \"call\": \"").append(jsonEscape(call)).append("\"");
+            sb.append(", \"cases\": ").append(rep.cases);
+            sb.append(", \"seconds\": ").append(String.format(Locale.ROOT, "%.3f", rep.nanos / 1e9));
+            sb.append(", \"cases_per_second\": ").append(Math.round(rep.casesPerSecond()));
+            sb.append(", \"passed\": ").append(rep.failed < 0);
+            if(rep.failed >= 0) {
+                sb.append(", \"failed_case\": ").append(rep.failed);
+                sb.append(", \"inputs\": ");
+                appendInputs(sb, f, rep.original);
+                sb.append(", \"shrunk\": ");
+                appendInputs(sb, f, rep.shrunk);
+                sb.append(", \"message\": \"").append(jsonEscape(rep.message)).append("\"");
+            }
+            System.out.println(sb.append("}"));
+            return rep.failed < 0 ? 0 : 1;
+        }
+
+        // A label, or a byte address in any Integer.decode form -> word address
+        private static int location(Map<String, Integer> labels, String s) {
+            Integer a = labels.get(s.trim().toUpperCase());
+            if(a == null) {
+                try { a = Integer.decode(s.trim()); }
+                catch(NumberFormatException e) { throw new IllegalArgumentException("unknown label '" + s.trim() + "'"); }
+            }
+            return a / 2;
+        }
+
+        private static void appendInputs(StringBuilder sb, Fuzzer f, int[] values) {
+            sb.append("{");
+            for(int k=0; k<values.length; k++) {
+                if(k > 0) sb.append(", ");
+                sb.append("\"").append(jsonEscape(Fuzzer.name(f.device, f.inputs[k]))).append("\": ").append(values[k]);
+            }
+            sb.append("}");
+        }
+
+        // Prints up to rows records from the first one at or after cycle at, optionally only those
+        // whose PC (byte address) lies in the inclusive range "LO-HI".
+        static int dumpTrace(File file, long at, int rows, String pcRange) throws IOException {
+            int lo = 0, hi = Integer.MAX_VALUE;
+            if(pcRange != null) {
+                String[] p = pcRange.split("-", 2);
+                if(p.length != 2) { System.err.println("Bad --pc (expected LO-HI): " + pcRange); return 2; }
+                lo = Integer.decode(p[0].trim());
+                hi = Integer.decode(p[1].trim());
+            }
+            try(TraceReader t = new TraceReader(file)) {
+                System.out.println(t.count + " records");
+                int shown = 0;
+                for(long i = t.seekCycle(at); i < t.count && shown < rows; i++) {
+                    int pcByte = t.pc(i) * 2;
+                    if(pcByte < lo || pcByte > hi) continue;
+                    System.out.println(t.format(i));
+                    shown++;
+                }
+            }
+            return 0;
+        }
+
+        // "1200:D2=0" -> {1200, 3, 2, 0}
+        private static long[] parsePin(String spec) {
+            Matcher m = Pattern.compile("(\\d+):([A-Da-d])([0-7])=([01])").matcher(spec);
+            if(!m.matches()) return null;
+            return new long[]{Long.parseLong(m.group(1)), Character.toUpperCase(m.group(2).charAt(0)) - 'A',
+                              m.group(3).charAt(0) - '0', m.group(4).charAt(0) - '0'};
+        }
+
+        // "0:B0=1:D2" -> {0, 1, 0, 1, 3, 2}
+        private static int[] parseWire(String spec) {
+            Matcher m = Pattern.compile("(\\d+):([A-Da-d])([0-7])=(\\d+):([A-Da-d])([0-7])").matcher(spec);
+            if(!m.matches()) return null;
+            return new int[]{Integer.parseInt(m.group(1)), Character.toUpperCase(m.group(2).charAt(0)) - 'A', m.group(3).charAt(0) - '0',
+                             Integer.parseInt(m.group(4)), Character.toUpperCase(m.group(5).charAt(0)) - 'A', m.group(6).charAt(0) - '0'};
+        }
+
+        private static String errorJson(File image, String msg) {
+            return "{\"image\": \"" + jsonEscape(image.getPath()) + "\", \"error\": \"" + jsonEscape(msg) + "\"}";
+        }
+
+        private static void appendArray(StringBuilder sb, int[] values, int from, int to) {
+            sb.append('[');
+            for(int i=from; i<to; i++) {
+                if(i > from) sb.append(", ");
+                sb.append(values[i]);
+            }
+            sb.append(']');
+        }
+
+        private static String jsonEscape(String s) {
+            StringBuilder sb = new StringBuilder(s.length());
+            for(int i=0; i<s.length(); i++) {
+                char ch = s.charAt(i);
+                if(ch == '"' || ch == '\\') sb.append('\\').append(ch);
+                else if(ch < 0x20 || ch >= 0x7F) sb.append(String.format("\\u%04x", (int) ch));
+                else sb.append(ch);
+            }
+            return sb.toString();
+        }
+    }
+
+    private String getStarterCode() {
+        return "; ATmega32 Blink Demo\n.INCLUDE \"M32DEF.INC\"\n\nLDI R16, 0xFF\nOUT DDRB, R16   ; Set Port B Output\n\nLOOP:\n  SBI PORTB, 0  ; LED ON\n  RCALL DELAY\n  CBI PORTB, 0  ; LED OFF\n  RCALL DELAY\n  RJMP LOOP\n\nDELAY:\n  LDI R20, 10\nL1: DEC R20\n  BRNE L1\n  RET";
+    }
+
+    public static void main(String[] args) {
+        if(Arrays.asList(args).contains("--headless")) {
+            System.setProperty("java.awt.headless", "true");
+            int status;
+            try { status = HeadlessRunner.main(args); }
+            catch(Exception e) { System.err.println("Error: " + e); status = 1; }
+            System.exit(status);
+        }
         SwingUtilities.invokeLater(OpenAVRStudio::new);
     }
 }
@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+import javax.swing.text.StyledDocument;
+
+import openavr.bench.AppBridge;
+
+public class AppBridgeImpl implements AppBridge {
+
+    private OpenAVRStudio.AvrCore core;
+    private OpenAVRStudio.CoSim board;
+    private long boardCycles;
+    private OpenAVRStudio.Fuzzer fuzzer;
+
+    @Override
+    public void loadProgram(int[] words) {
+        int[] flash = new int[OpenAVRStudio.Device.ATMEGA32.flashWords];
+        System.arraycopy(words, 0, flash, 0, words.length);
+        core = new OpenAVRStudio.AvrCore(flash);
+    }
+
+    @Override
+    public long runCycles(long budget) {
+        core.run(core.cycles + budget);
+        return core.cycles;
+    }
+
+    @Override
+    public void setTranslation(boolean on) {
+        core.jit = on ? new OpenAVRStudio.Translator(core) : null;
+    }
+
+    @Override
+    public void setCapture(boolean on) {
+        if (core.wave != null) {
+            core.wave.detach();
+            try {
+                core.wave.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            core.wave = null;
+        }
+        if (on) {
+            core.wave = new OpenAVRStudio.WaveCapture(core);
+        }
+    }
+
+    @Override
+    public String state() {
+        core.syncIo();
+        return "cycles=" + core.cycles + " pc=" + core.pc + " halt=" + core.halt + " data=" + Arrays.hashCode(core.data);
+    }
+
+    @Override
+    public void loadBoard(int[] words, int nodes, long quantum) {
+        OpenAVRStudio.AvrCore[] cores = new OpenAVRStudio.AvrCore[nodes];
+        for (int i = 0; i < nodes; i++) {
+            int[] flash = new int[OpenAVRStudio.Device.ATMEGA32.flashWords];
+            System.arraycopy(words, 0, flash, 0, words.length);
+            cores[i] = new OpenAVRStudio.AvrCore(flash);
+        }
+        board = new OpenAVRStudio.CoSim(cores, quantum);
+        boardCycles = 0;
+        if (nodes > 1) {
+            for (int i = 0; i < nodes; i++) board.wire(i, 1, 0, (i + 1) % nodes, 3, 2);
+        }
+    }
+
+    @Override
+    public long runBoard(long budget) {
+        boardCycles += budget;
+        try {
+            board.run(boardCycles);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return boardCycles;
+    }
+
+    @Override
+    public void loadFuzz(String source, String call, String inputs, String preserve) {
+        OpenAVRStudio.Device dev = OpenAVRStudio.Device.ATMEGA32;
+        OpenAVRStudio.Assembler.Result r = OpenAVRStudio.Assembler.assemble(source, dev);
+        if (!r.errors.isEmpty()) {
+            throw new IllegalArgumentException(r.errors.get(0));
+        }
+        fuzzer = new OpenAVRStudio.Fuzzer(r.flash, dev, r.labels.get(call.toUpperCase()) / 2, OpenAVRStudio.Fuzzer.addresses(dev, inputs));
+        fuzzer.properties.add(OpenAVRStudio.Fuzzer.preserves(dev, OpenAVRStudio.Fuzzer.addresses(dev, preserve)));
+    }
+
+    @Override
+    public long fuzz(long cases, int threads) {
+        OpenAVRStudio.Fuzzer.Report r = fuzzer.run(cases, threads);
+        if (r.failed >= 0) {
+            throw new IllegalStateException("case " + r.failed + " failed: " + r.message);
+        }
+        return r.cases;
+    }
+
+    @Override
+    public int[] loadHex(String path) throws IOException {
+        return OpenAVRStudio.loadHex(path, OpenAVRStudio.Device.ATMEGA32);
+    }
+
+    @Override
+    public String convertToGcc(String source) {
+        return OpenAVRStudio.convertToGcc(source);
+    }
+
+    @Override
+    public int[] assemble(String source) {
+        OpenAVRStudio.Assembler.Result r = OpenAVRStudio.Assembler.assemble(source, OpenAVRStudio.Device.ATMEGA32);
+        if (!r.errors.isEmpty()) {
+            throw new IllegalArgumentException(r.errors.get(0));
+        }
+        return r.flash;
+    }
+
+    @Override
+    public void highlight(StyledDocument doc) {
+        OpenAVRStudio.SyntaxHighlighter.highlightAll(doc);
+    }
+
+    @Override
+    public void highlightEdit(StyledDocument doc, int offset) {
+        OpenAVRStudio.SyntaxHighlighter.highlightRange(doc, offset, offset);
+    }
+}
@@ -0,0 +1,67 @@
+package openavr.bench;
+
+import java.io.IOException;
+
+import javax.swing.text.StyledDocument;
+
+/**
+ * The app lives in the unnamed package, which named packages (and JMH's generated code)
+ * cannot reference. {@code AppBridgeImpl} sits in the unnamed package next to it and is
+ * looked up reflectively once; every measured call then goes through this interface.
+ */
+public interface AppBridge {
+
+    static AppBridge create() {
+        try {
+            return (AppBridge) Class.forName("AppBridgeImpl").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("AppBridgeImpl not on the classpath", e);
+        }
+    }
+
+    /** Creates a fresh core with {@code words} at flash address 0. */
+    void loadProgram(int[] words);
+
+    /** Runs the current core for {@code budget} more cycles and returns its cycle counter. */
+    long runCycles(long budget);
+
+    /** Switches the current core between the block translator and the plain interpreter. */
+    void setTranslation(boolean on);
+
+    /** Starts recording the current core's port writes, or with {@code false} drops the recording. */
+    void setCapture(boolean on);
+
+    /** Cycles, PC, halt state and a hash of the data space, for comparing two cores. */
+    String state();
+
+    /**
+     * Creates a co-simulated board of {@code nodes} cores, each with {@code words} at flash address 0,
+     * where PB0 of every core drives PD2 of the next one (in a ring).
+     */
+    void loadBoard(int[] words, int nodes, long quantum);
+
+    /** Runs the board for {@code budget} more cycles on every core and returns the board time. */
+    long runBoard(long budget);
+
+    /**
+     * Sets up the fuzz harness on {@code source} (ATmega32 assembly): random {@code inputs} for the
+     * routine at label {@code call}, which must preserve the {@code preserve} list.
+     */
+    void loadFuzz(String source, String call, String inputs, String preserve);
+
+    /** Runs {@code cases} fuzz cases on {@code threads} threads and returns how many ran. */
+    long fuzz(long cases, int threads);
+
+    int[] loadHex(String path) throws IOException;
+
+    String convertToGcc(String source);
+
+    /** Assembles {@code source} for the ATmega32 with the built-in assembler; fails on any error. */
+    int[] assemble(String source);
+
+    /** Highlights the whole document. */
+    void highlight(StyledDocument doc);
+
+    /** Re-highlights what a single edit at {@code offset} makes dirty. */
+    void highlightEdit(StyledDocument doc, int offset);
+}
@@ -0,0 +1,61 @@
+package openavr.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Edit-to-image latency of the built-in assembler, on the blink demo and on a 5,000-line
+ * source (the same shape as {@link SourceBenchmark}, with a unique label per block and CALL
+ * instead of RCALL so the shared DELAY stays in range).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AssemblerBenchmark {
+
+    static final String BLINK = "; ATmega32 Blink Demo\n.INCLUDE \"M32DEF.INC\"\n\nLDI R16, 0xFF\n"
+            + "OUT DDRB, R16   ; Set Port B Output\n\nLOOP:\n  SBI PORTB, 0  ; LED ON\n  RCALL DELAY\n"
+            + "  CBI PORTB, 0  ; LED OFF\n  RCALL DELAY\n  RJMP LOOP\n\nDELAY:\n  LDI R20, 10\n"
+            + "L1: DEC R20\n  BRNE L1\n  RET";
+
+    private AppBridge app;
+    private String large;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        app = AppBridge.create();
+        StringBuilder sb = new StringBuilder();
+        int blocks = SourceBenchmark.LINES / SourceBenchmark.TEMPLATE.length;
+        for (int b = 0; b < blocks; b++) {
+            for (String line : SourceBenchmark.TEMPLATE) {
+                sb.append(line.replace("LOOP", "LOOP" + b).replace("RCALL", "CALL")).append('\n');
+            }
+        }
+        sb.append("DELAY:\n  RET\n");
+        large = sb.toString();
+    }
+
+    @Benchmark
+    public int[] assembleBlink() {
+        return app.assemble(BLINK);
+    }
+
+    @Benchmark
+    public int[] assembleLarge() {
+        return app.assemble(large);
+    }
+}
@@ -0,0 +1,90 @@
+package openavr.bench;
+
+import java.util.Arrays;
+
+/**
+ * Assembles short sources with the built-in assembler and compares the words with encodings
+ * checked by hand against the instruction set manual. Labels placed after data directives catch
+ * a size that pass 1 reserves but pass 2 does not emit. Labels are byte addresses, as in avr-gcc.
+ */
+public final class AssemblerCheck {
+
+    static final String[] NAMES = {"decBrne", "sbiCbi", "blink", "data", "strings"};
+
+    static final String[] SOURCES = {
+        String.join("\n",
+            "start:",
+            "    ldi r20, 0",
+            "l1: dec r20",
+            "    brne l1",
+            "    rjmp start"),
+        String.join("\n",
+            ".include \"m32def.inc\"",
+            "start:",
+            "    sbi PORTB, 0",
+            "    cbi PORTB, 0",
+            "    rjmp start"),
+        String.join("\n",
+            ".include \"m32def.inc\"",
+            "    ldi r16, 0xFF",
+            "    out DDRB, r16",
+            "loop:",
+            "    sbi PORTB, 0",
+            "    rcall delay",
+            "    cbi PORTB, 0",
+            "    rcall delay",
+            "    rjmp loop",
+            "delay:",
+            "    ldi r20, 10",
+            "d1: dec r20",
+            "    brne d1",
+            "    ret"),
+        String.join("\n",
+            "    rjmp after",
+            "    .db \"abc\", 0x41",
+            "    .db 1, 2, 3",
+            "    .dw 0x1234, after",
+            "after:",
+            "    rjmp after"),
+        String.join("\n",
+            "    rjmp after",
+            "    .asciz \"ab\", 5",
+            "    .string \"x\"",
+            "    .asciz 7, \"\"",
+            "after:",
+            "    rjmp after"),
+    };
+
+    static final int[][] EXPECTED = {
+        CoreBenchmark.DEC_BRNE,
+        CoreBenchmark.SBI_CBI,
+        CoreBenchmark.BLINK,
+        {0xC006, 0x6261, 0x4163, 0x0201, 0x0003, 0x1234, 0x000E, 0xCFFF},   // labels are byte addresses
+        {0xC004, 0x6261, 0x0500, 0x0078, 0x0007, 0xCFFF},
+    };
+
+    public static void main(String[] args) {
+        AppBridge app = AppBridge.create();
+        int failures = 0;
+        for (int i = 0; i < NAMES.length; i++) {
+            String result;
+            try {
+                int[] words = app.assemble(SOURCES[i]);
+                int[] got = Arrays.copyOf(words, EXPECTED[i].length + 1);
+                int[] want = Arrays.copyOf(EXPECTED[i], EXPECTED[i].length + 1);
+                result = Arrays.equals(got, want) ? null : "got " + hex(got) + ", expected " + hex(want);
+            } catch (IllegalArgumentException e) {
+                result = "error " + e.getMessage();
+            }
+            System.out.println(NAMES[i] + ": " + (result == null ? "ok" : "MISMATCH " + result));
+            if (result != null) failures++;
+        }
+        if (failures != 0) System.exit(1);
+    }
+
+    private static String hex(int[] words) {
+        StringBuilder sb = new StringBuilder();
+        for (int w : words) sb.append(sb.length() == 0 ? "" : " ").append(String.format("%04X", w));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,87 @@
+package openavr.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of the waveform capture behind the logic analyzer. Each invocation executes
+ * {@link CoreBenchmark#CYCLES_PER_OP} cycles with or without every port write being recorded;
+ * the two scores should match. Every iteration starts a fresh core and capture, so the spill
+ * file stays small.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CaptureBenchmark {
+
+    /** A 1 kHz square wave on PB0 at 16 MHz, toggled by the Timer0 compare interrupt in CTC mode. */
+    static final String PWM = String.join("\n",
+        ".include \"m32def.inc\"",
+        ".org 0",
+        "    rjmp main",
+        ".org TIMER0_COMP_vect_num*4",
+        "    rjmp comp",
+        ".org 0x60",
+        "main:",
+        "    ldi r16, 0xFF",
+        "    out DDRB, r16",
+        "    ldi r16, 124",
+        "    out OCR0, r16",
+        "    ldi r16, (1<<WGM01)|(1<<CS01)|(1<<CS00)",
+        "    out TCCR0, r16",
+        "    ldi r16, 1<<OCIE0",
+        "    out TIMSK, r16",
+        "    ldi r17, 1",
+        "    sei",
+        "loop:",
+        "    dec r20",
+        "    brne loop",
+        "    rjmp loop",
+        "comp:",
+        "    in r18, PORTB",
+        "    eor r18, r17",
+        "    out PORTB, r18",
+        "    reti");
+
+    /** {@code pwm}: 1 kHz square wave; {@code timerIsr}: PORTB toggled every 256 cycles. */
+    @Param({"pwm", "timerIsr"})
+    public String program;
+
+    @Param({"off", "on"})
+    public String capture;
+
+    private AppBridge app;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        app = AppBridge.create();
+        app.loadProgram(app.assemble(program.equals("pwm") ? PWM : CoreBenchmark.TIMER_ISR));
+        app.setCapture(capture.equals("on"));
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        app.setCapture(false);
+    }
+
+    @Benchmark
+    public long execute() {
+        return app.runCycles(CoreBenchmark.CYCLES_PER_OP);
+    }
+}
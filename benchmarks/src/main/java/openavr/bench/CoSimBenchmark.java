@@ -0,0 +1,51 @@
+package openavr.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Multi-MCU co-simulation throughput: every node runs the Timer0 interrupt program from
+ * {@link CoreBenchmark}, and its PB0 drives PD2 of the next node. Each invocation advances the
+ * whole board by {@link #CYCLES_PER_OP} cycles, so score x nodes x 1,000,000 = aggregate simulated
+ * cycles per second. With enough CPUs, the score for 2 nodes should stay close to 1 node's.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CoSimBenchmark {
+
+    static final long CYCLES_PER_OP = 1_000_000L;
+
+    @Param({"1", "2", "4"})
+    public int nodes;
+
+    @Param({"1000", "10000"})
+    public long quantum;
+
+    private AppBridge app;
+
+    @Setup
+    public void setup() {
+        app = AppBridge.create();
+        app.loadBoard(app.assemble(CoreBenchmark.TIMER_ISR), nodes, quantum);
+    }
+
+    @Benchmark
+    public long execute() {
+        return app.runBoard(CYCLES_PER_OP);
+    }
+}
@@ -0,0 +1,101 @@
+package openavr.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Raw simulator throughput on fixed synthetic opcode mixes. Each invocation executes
+ * {@link #CYCLES_PER_OP} simulated cycles, so score x 1,000,000 = simulated cycles per second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CoreBenchmark {
+
+    static final long CYCLES_PER_OP = 1_000_000L;
+
+    /** LDI R20,0 / L1: DEC R20 / BRNE L1 / RJMP start */
+    static final int[] DEC_BRNE = {0xE040, 0x954A, 0xF7F1, 0xCFFC};
+
+    /** SBI PORTB,0 / CBI PORTB,0 / RJMP start */
+    static final int[] SBI_CBI = {0x9AC0, 0x98C0, 0xCFFD};
+
+    /** The editor's starter Blink program (LDI, OUT, SBI, CBI, RCALL, RJMP, DEC, BRNE, RET). */
+    static final int[] BLINK = {0xEF0F, 0xBB07, 0x9AC0, 0xD003, 0x98C0, 0xD001, 0xCFFB, 0xE04A, 0x954A, 0xF7F1, 0x9508};
+
+    /**
+     * Timer0 overflow interrupt every 256 cycles (clk/1) toggling PORTB while the main loop
+     * spins in DEC/BRNE: exercises the event queue and interrupt entry/exit.
+     */
+    static final String TIMER_ISR = String.join("\n",
+        ".include \"m32def.inc\"",
+        ".org 0",
+        "    rjmp main",
+        ".org TIMER0_OVF_vect_num*4",
+        "    rjmp ovf",
+        ".org 0x60",
+        "main:",
+        "    ldi r16, 0xFF",
+        "    out DDRB, r16",
+        "    ldi r16, 1<<CS00",
+        "    out TCCR0, r16",
+        "    ldi r16, 1<<TOIE0",
+        "    out TIMSK, r16",
+        "    ldi r17, 1",
+        "    sei",
+        "loop:",
+        "    dec r20",
+        "    brne loop",
+        "    rjmp loop",
+        "ovf:",
+        "    in r18, PORTB",
+        "    eor r18, r17",
+        "    out PORTB, r18",
+        "    reti");
+
+    static final String[] PROGRAMS = {"decBrne", "sbiCbi", "blink", "timerIsr"};
+
+    @Param({"decBrne", "sbiCbi", "blink", "timerIsr"})
+    public String program;
+
+    /** {@code translated}: hot blocks run as generated bytecode; {@code interpreted}: plain interpreter. */
+    @Param({"translated", "interpreted"})
+    public String engine;
+
+    private AppBridge app;
+
+    @Setup
+    public void setup() {
+        app = AppBridge.create();
+        load(app, program);
+        app.setTranslation(engine.equals("translated"));
+    }
+
+    static void load(AppBridge app, String program) {
+        switch (program) {
+            case "decBrne": app.loadProgram(DEC_BRNE); break;
+            case "sbiCbi": app.loadProgram(SBI_CBI); break;
+            case "timerIsr": app.loadProgram(app.assemble(TIMER_ISR)); break;
+            default: app.loadProgram(BLINK); break;
+        }
+    }
+
+    @Benchmark
+    public long execute() {
+        return app.runCycles(CYCLES_PER_OP);
+    }
+}
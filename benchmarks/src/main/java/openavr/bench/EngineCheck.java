@@ -0,0 +1,38 @@
+package openavr.bench;
+
+import java.util.Random;
+
+/**
+ * Runs every {@link CoreBenchmark} program on the block translator and on the interpreter side by
+ * side and compares the machine state after each slice. Slice lengths are random (fixed seed), so
+ * events and interrupts land at many different points inside translated blocks.
+ */
+public final class EngineCheck {
+
+    static final long CYCLES = 20_000_000L;
+
+    public static void main(String[] args) {
+        int failures = 0;
+        for (String program : CoreBenchmark.PROGRAMS) {
+            AppBridge translated = AppBridge.create(), interpreted = AppBridge.create();
+            CoreBenchmark.load(translated, program);
+            CoreBenchmark.load(interpreted, program);
+            translated.setTranslation(true);
+            interpreted.setTranslation(false);
+            Random rnd = new Random(program.hashCode());
+            long done = 0;
+            String mismatch = null;
+            while (done < CYCLES && mismatch == null) {
+                long slice = 1 + rnd.nextInt(rnd.nextBoolean() ? 16 : 50_000);
+                translated.runCycles(slice);
+                interpreted.runCycles(slice);
+                done += slice;
+                String a = translated.state(), b = interpreted.state();
+                if (!a.equals(b)) mismatch = "translated " + a + ", interpreted " + b;
+            }
+            System.out.println(program + ": " + (mismatch == null ? "identical over " + done + " cycles" : "MISMATCH " + mismatch));
+            if (mismatch != null) failures++;
+        }
+        if (failures != 0) System.exit(1);
+    }
+}
@@ -0,0 +1,72 @@
+package openavr.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Fuzz harness throughput. Each invocation runs {@link #CASES_PER_OP} cases, so score x 65,536 =
+ * cases per second. {@code add16} is a three-instruction routine, so it measures the per-case
+ * cost (snapshot restore, input drawing, property check); {@code delay} spends a few hundred
+ * cycles in a loop per call. Each invocation includes building the per-task cores.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FuzzBenchmark {
+
+    static final long CASES_PER_OP = 65_536L;
+
+    static final String ROUTINES = String.join("\n",
+        ".include \"m32def.inc\"",
+        ".org 0",
+        "    rjmp add16",
+        "add16:",
+        "    add r24, r22",
+        "    adc r25, r23",
+        "    ret",
+        "delay:",
+        "    push r20",
+        "    in r20, SREG",
+        "    push r20",
+        "    ldi r20, 0x40",
+        "d1: dec r20",
+        "    brne d1",
+        "    pop r20",
+        "    out SREG, r20",
+        "    pop r20",
+        "    ret");
+
+    @Param({"add16", "delay"})
+    public String routine;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    private AppBridge app;
+
+    @Setup
+    public void setup() {
+        app = AppBridge.create();
+        if (routine.equals("add16")) app.loadFuzz(ROUTINES, routine, "R22-R25", "R0-R21,R26-R31");
+        else app.loadFuzz(ROUTINES, routine, "R16-R31,SREG", "R0-R31,SREG");
+    }
+
+    @Benchmark
+    public long execute() {
+        return app.fuzz(CASES_PER_OP, threads);
+    }
+}
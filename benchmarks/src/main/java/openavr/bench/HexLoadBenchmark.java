@@ -0,0 +1,75 @@
+package openavr.bench;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Parses a full 32 KiB Intel HEX image (16-byte records, fixed seed). */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HexLoadBenchmark {
+
+    static final int IMAGE_BYTES = 32 * 1024;
+
+    private AppBridge app;
+    private Path image;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        app = AppBridge.create();
+        image = Files.createTempFile("bench", ".hex");
+        byte[] data = new byte[IMAGE_BYTES];
+        new Random(42).nextBytes(data);
+        try (Writer w = Files.newBufferedWriter(image, StandardCharsets.US_ASCII)) {
+            writeIntelHex(w, data);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(image);
+    }
+
+    @Benchmark
+    public int[] loadHex() throws IOException {
+        return app.loadHex(image.toString());
+    }
+
+    static void writeIntelHex(Writer w, byte[] data) throws IOException {
+        for (int off = 0; off < data.length; off += 16) {
+            int len = Math.min(16, data.length - off);
+            int sum = len + (off >> 8) + (off & 0xFF);
+            StringBuilder sb = new StringBuilder(":");
+            sb.append(String.format("%02X%04X00", len, off));
+            for (int i = 0; i < len; i++) {
+                int b = data[off + i] & 0xFF;
+                sum += b;
+                sb.append(String.format("%02X", b));
+            }
+            sb.append(String.format("%02X", (-sum) & 0xFF)).append('\n');
+            w.write(sb.toString());
+        }
+        w.write(":00000001FF\n");
+    }
+}
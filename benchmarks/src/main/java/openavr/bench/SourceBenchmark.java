@@ -0,0 +1,77 @@
+package openavr.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultStyledDocument;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Editor-side costs on a 5,000-line assembly source: syntax highlighting and the GCC patcher. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SourceBenchmark {
+
+    static final int LINES = 5_000;
+
+    static final String[] TEMPLATE = {
+        "; ATmega32 routine block",
+        "LOOP:",
+        "  LDI R16, 0xFF      ; load all ones",
+        "  OUT DDRB, R16",
+        "  SBI PORTB, 0       ; LED ON",
+        "  RCALL DELAY",
+        "  CBI PORTB, 0       ; LED OFF",
+        "  MOV R17, R16",
+        "  DEC R20",
+        "  BRNE LOOP",
+    };
+
+    private AppBridge app;
+    private String source;
+    private DefaultStyledDocument doc;
+
+    @Setup(Level.Trial)
+    public void setup() throws BadLocationException {
+        app = AppBridge.create();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < LINES; i++) {
+            sb.append(TEMPLATE[i % TEMPLATE.length]).append('\n');
+        }
+        source = sb.toString();
+        doc = new DefaultStyledDocument();
+        doc.insertString(0, source, null);
+    }
+
+    @Benchmark
+    public DefaultStyledDocument highlightFullDocument() {
+        app.highlight(doc);
+        return doc;
+    }
+
+    /** The work done per (debounced) keystroke in the middle of the file. */
+    @Benchmark
+    public DefaultStyledDocument highlightEditedLine() {
+        app.highlightEdit(doc, doc.getLength() / 2);
+        return doc;
+    }
+
+    @Benchmark
+    public String convertToGcc() {
+        return app.convertToGcc(source);
+    }
+}